@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+/**
+ * ATT constants used by the GATT client, the GATT server and the sessions. The class has no
+ * dependencies, so the benchmark can compile it on a plain JVM.
+ */
+public final class Att {
+    public static final int ATT_DEFAULT_MTU = 23;
+    /* Fills a 251 byte LE data PDU after the 4 byte L2CAP header */
+    public static final int ATT_DLE_MTU = 247;
+    public static final int ATT_MAX_MTU = 517;
+}
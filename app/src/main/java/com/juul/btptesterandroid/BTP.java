@@ -21,6 +21,7 @@ import com.juul.btptesterandroid.gatt.GattDBDescriptor;
 import com.juul.btptesterandroid.gatt.GattDBIncludeService;
 import com.juul.btptesterandroid.gatt.GattDBService;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.UUID;
@@ -409,6 +410,32 @@ public final class BTP {
         }
     }
 
+    /* Vendor specific, picks the link profile of a connection, see LinkProfile */
+    public static final byte GAP_SET_LINK_PROFILE = 0x60;
+
+    public static class GapSetLinkProfileCmd {
+        byte addressType;
+        byte[] address;
+        byte profile;
+
+        private GapSetLinkProfileCmd(ByteBuffer byteBuffer) {
+            address = new byte[6];
+
+            addressType = byteBuffer.get();
+            byteBuffer.get(address, 0, address.length);
+            Utils.reverseBytes(address);
+            profile = byteBuffer.get();
+        }
+
+        public static GapSetLinkProfileCmd parse(ByteBuffer byteBuffer) {
+            if (byteBuffer.array().length < 8) {
+                return null;
+            }
+
+            return new GapSetLinkProfileCmd(byteBuffer);
+        }
+    }
+
     public static final byte GAP_EV_DEVICE_FOUND = (byte) 0x81;
 
     public static class GapDeviceFoundEv {
@@ -438,7 +465,7 @@ public final class BTP {
             byteBuffer.put(flags);
             byteBuffer.putShort(eirDataLen);
             if (eirDataLen != 0 && eirData != null) {
-                byteBuffer.put(eirData);
+                byteBuffer.put(eirData, 0, eirDataLen);
             }
 
             return byteBuffer.array();
@@ -1014,6 +1041,29 @@ public final class BTP {
         }
     }
 
+    public static final byte GATT_EXCHANGE_MTU = 0x0a;
+
+    public static class GattExchangeMtuCmd {
+        byte addressType;
+        byte[] address;
+
+        public GattExchangeMtuCmd(ByteBuffer byteBuffer) {
+            address = new byte[6];
+
+            addressType = byteBuffer.get();
+            byteBuffer.get(address, 0, address.length);
+            Utils.reverseBytes(address);
+        }
+
+        public static GattExchangeMtuCmd parse(ByteBuffer byteBuffer) {
+            if (byteBuffer.array().length < 7) {
+                return null;
+            }
+
+            return new GattExchangeMtuCmd(byteBuffer);
+        }
+    }
+
     public static final byte GATT_DISC_ALL_PRIM_SVCS = 0x0b;
 
     public static class GattDiscAllPrimSvcsCmd {
@@ -1659,6 +1709,73 @@ public final class BTP {
         }
     }
 
+    /* Vendor specific, pipelined GATT client operations */
+    public static final byte GATT_PIPELINE = 0x60;
+
+    public static final byte GATT_PIPELINE_OP_READ = 0x00;
+    public static final byte GATT_PIPELINE_OP_WRITE = 0x01;
+
+    public static class GattPipelineOp {
+        byte type;
+        short handle;
+        short dataLen;
+        byte[] data;
+
+        public GattPipelineOp(ByteBuffer byteBuffer) {
+            type = byteBuffer.get();
+            handle = byteBuffer.getShort();
+            dataLen = byteBuffer.getShort();
+            data = new byte[Short.toUnsignedInt(dataLen)];
+            byteBuffer.get(data, 0, data.length);
+        }
+    }
+
+    public static class GattPipelineCmd {
+        byte addressType;
+        byte[] address;
+        byte opCount;
+        GattPipelineOp[] ops;
+
+        public GattPipelineCmd(ByteBuffer byteBuffer) {
+            address = new byte[6];
+
+            addressType = byteBuffer.get();
+            byteBuffer.get(address, 0, address.length);
+            Utils.reverseBytes(address);
+
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            opCount = byteBuffer.get();
+            ops = new GattPipelineOp[Byte.toUnsignedInt(opCount)];
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] = new GattPipelineOp(byteBuffer);
+            }
+        }
+
+        public static GattPipelineCmd parse(ByteBuffer byteBuffer) {
+            if (byteBuffer.array().length < 8) {
+                return null;
+            }
+
+            try {
+                return new GattPipelineCmd(byteBuffer);
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+        }
+    }
+
+    public static class GattPipelineRp {
+        byte opCount;
+
+        public GattPipelineRp() {
+            this.opCount = 0;
+        }
+
+        public byte[] toBytes() {
+            return new byte[]{opCount};
+        }
+    }
+
     public static final byte GATT_EV_NOTIFICATION = (byte) 0x80;
 
     public static class GattNotificationEv {
@@ -1722,4 +1839,72 @@ public final class BTP {
         }
     }
 
+    public static final byte GATT_EV_PIPELINE_RESULT = (byte) 0xe0;
+
+    public static class GattPipelineResultEv {
+        byte addressType;
+        byte[] address;
+        byte seq;
+        byte type;
+        byte attResponse;
+        short handle;
+        short dataLen;
+        byte[] data;
+
+        public GattPipelineResultEv() {
+            addressType = 0;
+            address = null;
+            seq = 0;
+            type = 0;
+            attResponse = 0;
+            handle = 0;
+            dataLen = 0;
+            data = null;
+        }
+
+        public byte[] toBytes() {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(1 + 6 + 1 + 1 + 1 + 2 + 2 + dataLen);
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            byteBuffer.put(addressType);
+            byteBuffer.put(address);
+            byteBuffer.put(seq);
+            byteBuffer.put(type);
+            byteBuffer.put(attResponse);
+            byteBuffer.putShort(handle);
+            byteBuffer.putShort(dataLen);
+            if (dataLen > 0) {
+                byteBuffer.put(data, 0, dataLen);
+            }
+
+            return byteBuffer.array();
+        }
+    }
+
+    /* Vendor specific, reported whenever the ATT MTU of a connection changes */
+    public static final byte GATT_EV_MTU_CHANGED = (byte) 0xe1;
+
+    public static class GattMtuChangedEv {
+        byte addressType;
+        byte[] address;
+        short mtu;
+
+        public GattMtuChangedEv() {
+            addressType = 0;
+            address = null;
+            mtu = 0;
+        }
+
+        public byte[] toBytes() {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(1 + 6 + 2);
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            byteBuffer.put(addressType);
+            byteBuffer.put(address);
+            byteBuffer.putShort(mtu);
+
+            return byteBuffer.array();
+        }
+    }
+
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only recorder of BTP frames.
+ * <p>
+ * The file starts with {@link #MAGIC} and a version byte, followed by one record per frame:
+ * <pre>
+ *   u64 timestamp in nanoseconds since the capture was opened
+ *   u8  direction, {@link Trace#DIR_IN} or {@link Trace#DIR_OUT}
+ *   u32 frame length
+ *   frame bytes, header included
+ * </pre>
+ * All fields are little endian. Records are staged in a direct buffer and written to the
+ * channel when it fills up, on {@link #flush()} and on {@link #close()}.
+ */
+public class BTPCapture implements Closeable {
+    public static final int MAGIC = 0x43505442; /* "BTPC" */
+    public static final byte VERSION = 1;
+    public static final int FILE_HDR_LEN = 5;
+    public static final int RECORD_HDR_LEN = 8 + 1 + 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long startNanos;
+    private long records = 0;
+
+    public BTPCapture(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        startNanos = System.nanoTime();
+
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+    }
+
+    /**
+     * Appends the remaining bytes of the frame without moving its position.
+     */
+    public synchronized void record(byte direction, ByteBuffer frame) throws IOException {
+        int len = frame.remaining();
+
+        ensureRoom(RECORD_HDR_LEN);
+        buffer.putLong(System.nanoTime() - startNanos);
+        buffer.put(direction);
+        buffer.putInt(len);
+
+        if (len > buffer.capacity()) {
+            /* Too big to stage, write it straight after the pending records */
+            drain();
+            ByteBuffer src = frame.duplicate();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } else {
+            ensureRoom(len);
+            buffer.put(frame.duplicate());
+        }
+
+        ++records;
+    }
+
+    private void ensureRoom(int len) throws IOException {
+        if (buffer.remaining() < len) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public synchronized void flush() throws IOException {
+        drain();
+        channel.force(false);
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
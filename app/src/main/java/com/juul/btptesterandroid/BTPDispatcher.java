@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_CORE;
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GAP;
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GATT;
+import static com.juul.btptesterandroid.BTP.BTP_STATUS_FAILED;
+
+/**
+ * Moves BTP command handling off the WebSocket reader thread.
+ * <p>
+ * Core, GAP and GATT commands each run on their own single threaded executor with a bounded
+ * queue, so commands of one service are handled in order while a blocked service, e.g. a GAP
+ * disconnect waiting for the link to go down, does not stall the others. Messages for unknown
+ * services are handled on the core executor. Messages that don't fit in the queue are answered
+ * with {@link BTP#BTP_STATUS_FAILED}.
+ * <p>
+ * Work that sets up or tears down state used by two services runs through
+ * {@link #executeExclusive(byte, byte, Runnable)}, which holds the other service back until
+ * the work is done.
+ */
+public class BTPDispatcher {
+    private static final String TAG = "BTPDispatcher";
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+    public interface MessageHandler {
+        void handleMessage(BTPMessage msg);
+    }
+
+    public interface Responder {
+        void response(byte service, byte opcode, byte index, byte status);
+    }
+
+    public static class ServiceStats {
+        final String name;
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLong maxDepth = new AtomicLong();
+        private ArrayBlockingQueue<Runnable> queue;
+
+        ServiceStats(String name) {
+            this.name = name;
+        }
+
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        public long getMaxQueueDepth() {
+            return maxDepth.get();
+        }
+
+        public long getSubmitted() {
+            return submitted.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        public long getAverageWaitNanos() {
+            long count = completed.get();
+            return count == 0 ? 0 : totalWaitNanos.get() / count;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        void onQueued() {
+            submitted.incrementAndGet();
+            long depth = queue.size();
+            long max;
+            while (depth > (max = maxDepth.get())) {
+                if (maxDepth.compareAndSet(max, depth)) {
+                    break;
+                }
+            }
+        }
+
+        void onStarted(long waitNanos) {
+            totalWaitNanos.addAndGet(waitNanos);
+            long max;
+            while (waitNanos > (max = maxWaitNanos.get())) {
+                if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s depth=%d maxDepth=%d submitted=%d rejected=%d " +
+                            "completed=%d avgWaitUs=%d maxWaitUs=%d", name, getQueueDepth(),
+                    getMaxQueueDepth(), getSubmitted(), getRejected(), getCompleted(),
+                    TimeUnit.NANOSECONDS.toMicros(getAverageWaitNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(getMaxWaitNanos()));
+        }
+    }
+
+    private final MessageHandler handler;
+    private final Responder responder;
+    private final ThreadPoolExecutor[] executors = new ThreadPoolExecutor[3];
+    private final ServiceStats[] stats = new ServiceStats[3];
+
+    public BTPDispatcher(MessageHandler handler, Responder responder) {
+        this(handler, responder, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public BTPDispatcher(MessageHandler handler, Responder responder, int queueCapacity) {
+        this.handler = handler;
+        this.responder = responder;
+
+        createExecutor(BTP_SERVICE_ID_CORE, "core", queueCapacity);
+        createExecutor(BTP_SERVICE_ID_GAP, "gap", queueCapacity);
+        createExecutor(BTP_SERVICE_ID_GATT, "gatt", queueCapacity);
+    }
+
+    private void createExecutor(int index, String name, int queueCapacity) {
+        ServiceStats serviceStats = new ServiceStats(name);
+        serviceStats.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        executors[index] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                serviceStats.queue, r -> {
+                    Thread thread = new Thread(r, "BTP-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        stats[index] = serviceStats;
+    }
+
+    private int executorIndex(byte service) {
+        switch (service) {
+            case BTP_SERVICE_ID_GAP:
+                return BTP_SERVICE_ID_GAP;
+            case BTP_SERVICE_ID_GATT:
+                return BTP_SERVICE_ID_GATT;
+            default:
+                return BTP_SERVICE_ID_CORE;
+        }
+    }
+
+    private class Task implements Runnable {
+        private final ServiceStats serviceStats;
+        private final Runnable work;
+        private final long queuedAt;
+
+        Task(ServiceStats serviceStats, Runnable work) {
+            this.serviceStats = serviceStats;
+            this.work = work;
+            this.queuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            serviceStats.onStarted(System.nanoTime() - queuedAt);
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, String.format("%s handler failed", serviceStats.name), e);
+            } finally {
+                serviceStats.completed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Queues the message on the executor of its service, or responds with a failure status
+     * if it can't be queued.
+     *
+     * @return false if the service queue is full or the dispatcher is shut down.
+     */
+    public boolean dispatch(BTPMessage msg) {
+        if (execute(msg.service, () -> handler.handleMessage(msg))) {
+            return true;
+        }
+
+        responder.response(msg.service, msg.opcode, msg.index, BTP_STATUS_FAILED);
+        return false;
+    }
+
+    public boolean execute(byte service, Runnable work) {
+        int idx = executorIndex(service);
+        ServiceStats serviceStats = stats[idx];
+
+        try {
+            executors[idx].execute(new Task(serviceStats, work));
+        } catch (RejectedExecutionException e) {
+            serviceStats.rejected.incrementAndGet();
+            Log.e(TAG, String.format("%s queue full, dropping work", serviceStats.name));
+            return false;
+        }
+
+        serviceStats.onQueued();
+        return true;
+    }
+
+    /**
+     * Runs work on the executor of service after everything queued so far on both service and
+     * other. The other executor waits until the work is done, so commands of either service
+     * queued later see its result.
+     *
+     * @return false if either queue is full or the dispatcher is shut down.
+     */
+    public synchronized boolean executeExclusive(byte service, byte other, Runnable work) {
+        CountDownLatch parked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        if (!execute(other, () -> {
+            parked.countDown();
+            await(done);
+        })) {
+            return false;
+        }
+
+        if (!execute(service, () -> {
+            await(parked);
+            try {
+                work.run();
+            } finally {
+                done.countDown();
+            }
+        })) {
+            done.countDown();
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public ServiceStats getStats(byte service) {
+        return stats[executorIndex(service)];
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+
+        try {
+            for (ThreadPoolExecutor executor : executors) {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s; %s; %s", stats[BTP_SERVICE_ID_CORE],
+                stats[BTP_SERVICE_ID_GAP], stats[BTP_SERVICE_ID_GATT]);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.juul.btptesterandroid.BTP.HDR_LEN;
+
+/**
+ * Packs several BTP event frames into a single WebSocket message.
+ * <p>
+ * Frames are appended back to back, each one with its own header, so a client reading the
+ * message as a stream of frames sees the same events as with one message per frame. The
+ * batch is sent once it holds the maximum number of events, or when the time window that
+ * started with its first event ends. Events added after {@link #close()} are dropped.
+ */
+public class BTPEventBatcher {
+    public static final int DEFAULT_MAX_BYTES = 8192;
+
+    public interface Sink {
+        void send(ByteBuffer message, int frames);
+    }
+
+    private final Sink sink;
+    private final int maxEvents;
+    private final long windowMs;
+    private final ByteBuffer buffer;
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> pendingFlush = null;
+    private int count = 0;
+    private boolean closed = false;
+
+    public BTPEventBatcher(Sink sink, int maxEvents, long windowMs) {
+        this(sink, maxEvents, windowMs, DEFAULT_MAX_BYTES);
+    }
+
+    public BTPEventBatcher(Sink sink, int maxEvents, long windowMs, int maxBytes) {
+        this.sink = sink;
+        this.maxEvents = maxEvents;
+        this.windowMs = windowMs;
+        this.buffer = ByteBuffer.allocate(maxBytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "BTP-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void add(byte service, byte opcode, byte index, byte[] data) {
+        if (closed) {
+            return;
+        }
+
+        int len = data == null ? 0 : data.length;
+
+        if (HDR_LEN + len > buffer.remaining()) {
+            flush();
+        }
+
+        if (HDR_LEN + len > buffer.capacity()) {
+            /* Doesn't fit in a batch at all, send it on its own */
+            ByteBuffer frame = ByteBuffer.allocate(HDR_LEN + len).order(ByteOrder.LITTLE_ENDIAN);
+            putFrame(frame, service, opcode, index, data);
+            frame.flip();
+            sink.send(frame, 1);
+            return;
+        }
+
+        putFrame(buffer, service, opcode, index, data);
+        queued();
+    }
+
+    /**
+     * Adds an already encoded frame, the frame buffer is not kept.
+     */
+    public synchronized void addFrame(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+
+        if (frame.remaining() > buffer.remaining()) {
+            flush();
+        }
+
+        if (frame.remaining() > buffer.capacity()) {
+            sink.send(frame.duplicate(), 1);
+            return;
+        }
+
+        buffer.put(frame.duplicate());
+        queued();
+    }
+
+    private void queued() {
+        if (++count >= maxEvents) {
+            flush();
+        } else if (pendingFlush == null) {
+            pendingFlush = timer.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void putFrame(ByteBuffer buffer, byte service, byte opcode, byte index,
+                                 byte[] data) {
+        buffer.put(service);
+        buffer.put(opcode);
+        buffer.put(index);
+        buffer.putShort((short) (data == null ? 0 : data.length));
+        if (data != null) {
+            buffer.put(data);
+        }
+    }
+
+    public synchronized void flush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+
+        if (count == 0) {
+            return;
+        }
+
+        buffer.flip();
+        try {
+            sink.send(buffer, count);
+        } finally {
+            buffer.clear();
+            count = 0;
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            flush();
+            closed = true;
+        }
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+import static com.juul.btptesterandroid.BTP.HDR_LEN;
+
+/**
+ * Pool of direct buffers used to encode outgoing BTP frames.
+ * <p>
+ * Frames are written header first straight into a recycled buffer, which is then handed to
+ * {@link org.java_websocket.WebSocket#send(ByteBuffer)}. The WebSocket copies the payload into
+ * its own frame before returning, so the buffer can be released right after the send.
+ */
+public class BTPFramePool {
+    public static final int DEFAULT_BUFFER_SIZE = 512;
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private final ArrayDeque<ByteBuffer> free;
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private long allocations = 0;
+    private long acquisitions = 0;
+    private long discarded = 0;
+
+    public BTPFramePool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE);
+    }
+
+    public BTPFramePool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ArrayDeque<>(maxPooled);
+    }
+
+    public ByteBuffer encode(byte service, byte opcode, byte index, byte[] data) {
+        int len = data == null ? 0 : data.length;
+        ByteBuffer buffer = acquire(HDR_LEN + len);
+
+        buffer.put(service);
+        buffer.put(opcode);
+        buffer.put(index);
+        buffer.putShort((short) len);
+        if (len > 0) {
+            buffer.put(data);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public synchronized ByteBuffer acquire(int size) {
+        ++acquisitions;
+
+        ByteBuffer buffer = free.pollFirst();
+        if (buffer != null && buffer.capacity() < size) {
+            /* Grow instead of keeping a buffer that is too small for this frame */
+            ++discarded;
+            buffer = null;
+        }
+
+        if (buffer == null) {
+            ++allocations;
+            buffer = ByteBuffer.allocateDirect(Math.max(size, bufferSize));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        if (free.size() >= maxPooled) {
+            ++discarded;
+            return;
+        }
+
+        buffer.clear();
+        free.addFirst(buffer);
+    }
+
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized long getAcquisitions() {
+        return acquisitions;
+    }
+
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    public synchronized int getPooled() {
+        return free.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BTPFramePool acquisitions=%d allocations=%d discarded=%d pooled=%d",
+                acquisitions, allocations, discarded, free.size());
+    }
+}
@@ -24,14 +24,15 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
-import android.util.Log;
-import android.util.Pair;
 
+import com.juul.btptesterandroid.gatt.GattAttributeIdMap;
+import com.juul.btptesterandroid.gatt.GattDBServerTable;
+
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import no.nordicsemi.android.ble.BleManagerCallbacks;
 
@@ -53,14 +54,26 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
     private boolean peripheral = false;
     private BluetoothGattServer gattServer;
     private IGattServerCallbacks valueChangedCb;
-    private PrepWriteContext<BluetoothGattCharacteristic> prepWriteCharContext;
-    private PrepWriteContext<BluetoothGattDescriptor> prepWriteDescContext;
+    private GattDBServerTable serverTable;
+    private final GattAttributeIdMap attributesById = new GattAttributeIdMap();
+    private final Map<String, GattServerSession> sessions = new ConcurrentHashMap<>();
+    /* Guards characteristic values, see sendNotification */
+    private final Object valueLock = new Object();
+    /* Per device state, package-private for tests */
+    final NotificationScheduler<BluetoothDevice, BluetoothGattCharacteristic>
+            notifications = new NotificationScheduler<>(this::sendNotification);
+    final ReadSnapshotCache<BluetoothDevice, Object> reads = new ReadSnapshotCache<>();
+    final PreparedWriteQueue<BluetoothDevice, Object> prepWrites = new PreparedWriteQueue<>();
 
     public BTPGattServerCallback(BleManagerCallbacks managerCallbacks) {
         super();
         this.managerCallbacks = managerCallbacks;
     }
 
+    public void setServerTable(GattDBServerTable serverTable) {
+        this.serverTable = serverTable;
+    }
+
     public void isPeripheral() {
         peripheral = true;
     }
@@ -69,9 +82,50 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
         peripheral = false;
     }
 
+    /**
+     * @return ATT MTU of the connection with the device, as a GATT server
+     */
+    public int getMtu(BluetoothDevice device) {
+        GattServerSession session = sessions.get(device.getAddress());
+        return session == null ? Att.ATT_DEFAULT_MTU : session.getMtu();
+    }
+
+    /**
+     * @return session of the connected central, null if it isn't connected
+     */
+    public GattServerSession getSession(BluetoothDevice device) {
+        return sessions.get(device.getAddress());
+    }
+
+    public List<GattServerSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    private void closeSession(BluetoothDevice device) {
+        GattServerSession session = sessions.remove(device.getAddress());
+        if (session != null) {
+            session.close(System.nanoTime(), prepWrites.queuedBytes(device),
+                    notifications.pending(device));
+        }
+
+        reads.removeDevice(device);
+        prepWrites.removeDevice(device);
+        NotificationScheduler.DeviceStats stats = notifications.removeDevice(device);
+
+        Trace.d(TAG, "session closed %s notifications %s", session, stats);
+    }
+
     @Override
     public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
         super.onConnectionStateChange(device, status, newState);
+        if (newState == BluetoothGatt.STATE_CONNECTED) {
+            sessions.putIfAbsent(device.getAddress(),
+                    new GattServerSession(device.getAddress(), System.nanoTime()));
+            Trace.d(TAG, "session opened %s", device);
+        } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+            closeSession(device);
+        }
+
         if (!peripheral) {
             return;
         }
@@ -167,30 +221,14 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
     @Override
     public void onServiceAdded(int status, BluetoothGattService service) {
         super.onServiceAdded(status, service);
-        Log.d(TAG, "onServiceAdded");
-
-        if (service.getUuid().equals(stringToUUID(PTS_INC_SVC))) {
-            addTestService(service);
-        }
-    }
-
-    class PrepWriteContext<Attribute> {
-        BluetoothDevice device;
-        Attribute attr;
-        byte[] value = {};
+        Trace.d(TAG, "onServiceAdded");
 
-        PrepWriteContext(BluetoothDevice device,
-                         Attribute attr) {
-            this.device = device;
-            this.attr = attr;
+        if (status == BluetoothGatt.GATT_SUCCESS && serverTable != null) {
+            serverTable.addService(service);
         }
 
-        public void update(int offset, byte[] newVal) {
-            int newLen = newVal.length + offset;
-            byte[] tempVal = new byte[newLen];
-            System.arraycopy(value, 0, tempVal, 0, offset);
-            System.arraycopy(newVal, 0, tempVal, offset, newVal.length);
-            value = tempVal;
+        if (service.getUuid().equals(stringToUUID(PTS_INC_SVC))) {
+            addTestService(service);
         }
     }
 
@@ -198,16 +236,25 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
     public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
                                             BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-        Log.d(TAG, String.format("onCharacteristicReadRequest %d %d", requestId, offset));
-        byte[] value = characteristic.getValue();
-        if ((value.length - offset) <= 0) {
-            gattServer.sendResponse(device, requestId, 0, offset, null);
-            return;
-        }
+        Trace.d(TAG, "onCharacteristicReadRequest %d %d", requestId, offset);
+        serveRead(device, requestId, offset, characteristic, getValue(characteristic));
+    }
 
-        /* TODO: Fix copying of almost whole array */
-        byte[] newval = Arrays.copyOfRange(value, offset, value.length);
-        gattServer.sendResponse(device, requestId, 0, offset, newval);
+    private void serveRead(BluetoothDevice device, int requestId, int offset, Object attr,
+                           byte[] value) {
+        /* Callbacks that arrive after the disconnection don't reopen the session */
+        GattServerSession session = getSession(device);
+        int mtu = session == null ? Att.ATT_DEFAULT_MTU : session.getMtu();
+        if (!reads.serve(device, attr, value, offset, mtu, slice -> {
+            if (session != null) {
+                session.read(slice.length);
+            }
+            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                    slice);
+        })) {
+            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
+                    null);
+        }
     }
 
     @SuppressLint("Assert")
@@ -218,24 +265,27 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
                                              int offset, byte[] value) {
         super.onCharacteristicWriteRequest(device, requestId, characteristic,
                 preparedWrite, responseNeeded, offset, value);
-        Log.d(TAG, String.format("onCharacteristicWriteRequest reqId %d offset %d " +
-                        "prepWrite %b rsp %b", requestId, offset,
-                preparedWrite, responseNeeded));
+        Trace.d(TAG, "onCharacteristicWriteRequest reqId %d offset %d prepWrite %b rsp %b",
+                requestId, offset, preparedWrite, responseNeeded);
 
         // Verify that offset is 0 when using normal write
         assert(offset == 0 || preparedWrite);
 
         if (preparedWrite) {
-            if (this.prepWriteCharContext == null) {
-                prepWriteCharContext = new PrepWriteContext<>(device, characteristic);
+            int status = prepWrites.prepare(device, characteristic, offset, value);
+            GattServerSession session = getSession(device);
+            if (session != null) {
+                session.prepare(value.length, status);
             }
-
-            prepWriteCharContext.update(offset, value);
-            gattServer.sendResponse(device, requestId, 0, offset, value);
+            gattServer.sendResponse(device, requestId, status, offset, value);
             return;
         }
 
-        characteristic.setValue(value);
+        setValue(characteristic, value);
+        GattServerSession session = getSession(device);
+        if (session != null) {
+            session.write(value.length);
+        }
 
         if (responseNeeded) {
             gattServer.sendResponse(device, requestId, 0, offset, value);
@@ -248,16 +298,8 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
     public void onDescriptorReadRequest(BluetoothDevice device, int requestId,
                                         int offset, BluetoothGattDescriptor descriptor) {
         super.onDescriptorReadRequest(device, requestId, offset, descriptor);
-        Log.d(TAG, "onDescriptorReadRequest");
-        byte[] value = descriptor.getValue();
-        if ((value.length - offset) <= 0) {
-            gattServer.sendResponse(device, requestId, 0, offset, null);
-            return;
-        }
-
-        /* TODO: Fix to not copy the whole array */
-        byte[] newval = Arrays.copyOfRange(value, offset, value.length);
-        gattServer.sendResponse(device, requestId, 0, offset, newval);
+        Trace.d(TAG, "onDescriptorReadRequest");
+        serveRead(device, requestId, offset, descriptor, descriptor.getValue());
     }
 
     @SuppressLint("Assert")
@@ -268,20 +310,19 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
                                          int offset, byte[] value) {
         super.onDescriptorWriteRequest(device, requestId, descriptor,
                 preparedWrite, responseNeeded, offset, value);
-        Log.d(TAG, String.format("onDescriptorWriteRequest reqId %d offset %d " +
-                        "prepWrite %b rsp %b UUID %s", requestId, offset,
-                preparedWrite, responseNeeded, descriptor.getUuid()));
+        Trace.d(TAG, "onDescriptorWriteRequest reqId %d offset %d prepWrite %b rsp %b UUID %s",
+                requestId, offset, preparedWrite, responseNeeded, descriptor.getUuid());
 
         // Verify that offset is 0 when using normal write
         assert(offset == 0 || preparedWrite);
 
         if (preparedWrite) {
-            if (this.prepWriteDescContext == null) {
-                prepWriteDescContext = new PrepWriteContext<>(device, descriptor);
+            int status = prepWrites.prepare(device, descriptor, offset, value);
+            GattServerSession session = getSession(device);
+            if (session != null) {
+                session.prepare(value.length, status);
             }
-
-            prepWriteDescContext.update(offset, value);
-            gattServer.sendResponse(device, requestId, 0, offset, value);
+            gattServer.sendResponse(device, requestId, status, offset, value);
             return;
         }
 
@@ -294,38 +335,38 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
             boolean supportsIndications = (characteristic.getProperties() &
                     BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
 
-            Log.d(TAG, String.format("cccd notifications %b indications %b",
-                    supportsNotifications, supportsIndications));
+            Trace.d(TAG, "cccd notifications %b indications %b", supportsNotifications,
+                    supportsIndications);
 
             if (!(supportsNotifications || supportsIndications)) {
                 status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
-                Log.d(TAG, "Not supported");
+                Trace.d(TAG, "Not supported");
             } else if (value.length != 2) {
                 status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
-                Log.d(TAG, "invalid length");
+                Trace.d(TAG, "invalid length");
             } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
                 status = notificationsDisabled(device, characteristic);
                 descriptor.setValue(value);
-                Log.d(TAG, "notifications disable");
+                Trace.d(TAG, "notifications disable");
             } else if (supportsNotifications &&
                     Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
                 status = notificationsEnabled(device, characteristic, false /* indicate */);
                 descriptor.setValue(value);
-                Log.d(TAG, "notifications enable");
+                Trace.d(TAG, "notifications enable");
             } else if (supportsIndications &&
                     Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
                 status = notificationsEnabled(device, characteristic, true /* indicate */);
                 descriptor.setValue(value);
-                Log.d(TAG, "indications enable");
+                Trace.d(TAG, "indications enable");
             } else {
                 status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
-                Log.d(TAG, "not supported 2");
+                Trace.d(TAG, "not supported 2");
             }
         } else {
             status = BluetoothGatt.GATT_SUCCESS;
             descriptor.setValue(value);
 
-            Log.d(TAG, "not cccd");
+            Trace.d(TAG, "not cccd");
         }
         if (responseNeeded) {
             gattServer.sendResponse(device, requestId, status,
@@ -336,156 +377,218 @@ public class BTPGattServerCallback extends BluetoothGattServerCallback {
         valueChangedCb.descriptorValueChanged(device, descriptor, value);
     }
 
-    private Map<BluetoothGattCharacteristic, Set<Pair<BluetoothDevice, Boolean>>> subscribed = new HashMap<>();
-
     private int notificationsEnabled(BluetoothDevice device,
                                      BluetoothGattCharacteristic characteristic,
                                      boolean indication) {
-        Log.d(TAG, "notificationsEnabled");
-        Set<Pair<BluetoothDevice, Boolean>> subs = subscribed.get(characteristic);
-        if (subs==null) {
-            subs = new HashSet<>();
-            subscribed.put(characteristic, subs);
-        }
-        for (Pair<BluetoothDevice, Boolean> f : subs) {
-            if (f.first.equals(device)) {
-                return GATT_FAILURE;
-            }
+        Trace.d(TAG, "notificationsEnabled");
+        if (!notifications.subscribe(device, characteristic, indication)) {
+            return GATT_FAILURE;
         }
 
-        subs.add(new Pair<>(device, indication));
+        GattServerSession session = getSession(device);
+        if (session != null) {
+            session.subscribed();
+        }
 
-        notifyCharacteristicChanged(characteristic);
+        notifications.enqueue(device, characteristic, getValue(characteristic));
 
         return 0;
     }
 
     private int notificationsDisabled(BluetoothDevice device,
                                       BluetoothGattCharacteristic characteristic) {
-        Log.d(TAG, "notificationsDisabled");
-        Set<Pair<BluetoothDevice, Boolean>> subs = subscribed.get(characteristic);
-        if (subs==null) {
-            subs = new HashSet<>();
-            subscribed.put(characteristic, subs);
+        Trace.d(TAG, "notificationsDisabled");
+        if (!notifications.unsubscribe(device, characteristic)) {
+            return GATT_FAILURE;
         }
 
-        for (Pair<BluetoothDevice, Boolean> f : subs) {
-            if (f.first.equals(device)) {
-                subs.remove(f);
-                return 0;
-            }
+        GattServerSession session = getSession(device);
+        if (session != null) {
+            session.unsubscribed();
         }
 
-        return GATT_FAILURE;
+        return 0;
     }
 
     private void notifyCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
-        Log.d(TAG, "notifyCharacteristicChanged");
+        int subscribers = notifications.notifyChanged(characteristic, getValue(characteristic));
+        Trace.d(TAG, "notifyCharacteristicChanged subscribers %d", subscribers);
+    }
 
-        Set<Pair<BluetoothDevice, Boolean>> subs = subscribed.get(characteristic);
-        if (subs==null) {
-            subs = new HashSet<>();
-            subscribed.put(characteristic, subs);
+    private byte[] getValue(BluetoothGattCharacteristic characteristic) {
+        synchronized (valueLock) {
+            return characteristic.getValue();
         }
+    }
+
+    private void setValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        synchronized (valueLock) {
+            characteristic.setValue(value);
+        }
+    }
+
+    /**
+     * Hands a queued value to the stack, which sends the value the characteristic holds.
+     * Notifications are coalesced to the latest value, i.e. the current one, but queued
+     * indications can be older, so the characteristic holds them just for the call. Every
+     * access to characteristic values goes through valueLock, so neither GATT_SET_VALUE, a
+     * remote write nor a remote read can land in between, and the restored value is still the
+     * current one.
+     */
+    private boolean sendNotification(BluetoothDevice device,
+                                     BluetoothGattCharacteristic characteristic, byte[] value,
+                                     boolean indicate) {
+        synchronized (valueLock) {
+            byte[] current = characteristic.getValue();
+            if (value == current) {
+                return gattServer.notifyCharacteristicChanged(device, characteristic, indicate);
+            }
 
-        for (Pair<BluetoothDevice, Boolean> f : subs) {
-            gattServer.notifyCharacteristicChanged(f.first, characteristic, f.second);
+            characteristic.setValue(value);
+            boolean sent = gattServer.notifyCharacteristicChanged(device, characteristic,
+                    indicate);
+            characteristic.setValue(current);
+            return sent;
         }
     }
 
+    public ReadSnapshotCache<BluetoothDevice, Object> getReads() {
+        return reads;
+    }
+
+    public PreparedWriteQueue<BluetoothDevice, Object> getPrepWrites() {
+        return prepWrites;
+    }
+
+    public NotificationScheduler<BluetoothDevice, BluetoothGattCharacteristic> getNotifications() {
+        return notifications;
+    }
+
     @SuppressLint("Assert")
     @Override
     public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
         super.onExecuteWrite(device, requestId, execute);
-        Log.d(TAG, "onExecuteWrite");
-
-        if (prepWriteCharContext != null) {
-            if (execute) {
-                gattServer.sendResponse(device, requestId, 0, 0, null);
-                valueChangedCb.characteristicValueChanged(device, prepWriteCharContext.attr,
-                        prepWriteCharContext.value);
+        Trace.d(TAG, "onExecuteWrite %s execute %b", device, execute);
+
+        int status = prepWrites.execute(device, execute, this::attributeValue,
+                this::applyPreparedWrite);
+        if (execute && status == 0) {
+            GattServerSession session = getSession(device);
+            if (session != null) {
+                session.execute();
             }
+        }
+        gattServer.sendResponse(device, requestId, status, 0, null);
+    }
 
-            prepWriteCharContext = null;
-
-            return;
+    private byte[] attributeValue(Object attr) {
+        if (attr instanceof BluetoothGattCharacteristic) {
+            return getValue((BluetoothGattCharacteristic) attr);
         }
 
-        if (prepWriteDescContext != null) {
-            if (execute) {
-                gattServer.sendResponse(device, requestId, 0, 0, null);
-                valueChangedCb.descriptorValueChanged(device, prepWriteDescContext.attr,
-                        prepWriteDescContext.value);
-            }
+        return ((BluetoothGattDescriptor) attr).getValue();
+    }
 
-            prepWriteCharContext = null;
+    private void applyPreparedWrite(BluetoothDevice device, Object attr, byte[] value) {
+        if (attr instanceof BluetoothGattCharacteristic) {
+            BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) attr;
+            setValue(characteristic, value);
+            valueChangedCb.characteristicValueChanged(device, characteristic, value);
+            return;
         }
+
+        BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) attr;
+        descriptor.setValue(value);
+        valueChangedCb.descriptorValueChanged(device, descriptor, value);
     }
 
     @Override
     public void onNotificationSent(BluetoothDevice device, int status) {
         super.onNotificationSent(device, status);
-        Log.d(TAG, "onNotificationSent");
+        Trace.d(TAG, "onNotificationSent %s %d", device, status);
+        GattServerSession session = getSession(device);
+        if (session != null) {
+            session.notificationSent(status == BluetoothGatt.GATT_SUCCESS);
+        }
+        notifications.onSent(device, status == BluetoothGatt.GATT_SUCCESS);
     }
 
     @Override
     public void onMtuChanged(BluetoothDevice device, int mtu) {
         super.onMtuChanged(device, mtu);
-        Log.d(TAG, "onMtuChanged");
+        Trace.d(TAG, "onMtuChanged %s %d", device, mtu);
+        GattServerSession session = getSession(device);
+        if (session != null) {
+            session.setMtu(mtu);
+        }
+
+        if (valueChangedCb != null) {
+            valueChangedCb.mtuChanged(device, mtu);
+        }
     }
 
     @Override
     public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
         super.onPhyUpdate(device, txPhy, rxPhy, status);
-        Log.d(TAG, "onPhyUpdate");
+        Trace.d(TAG, "onPhyUpdate %s tx %d rx %d status %d", device, txPhy, rxPhy, status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            GattServerSession session = getSession(device);
+            if (session != null) {
+                session.setPhy(txPhy, rxPhy);
+            }
+        }
     }
 
     @Override
     public void onPhyRead(BluetoothDevice device, int txPhy, int rxPhy, int status) {
         super.onPhyRead(device, txPhy, rxPhy, status);
-        Log.d(TAG, "onPhyRead");
+        Trace.d(TAG, "onPhyRead %s tx %d rx %d status %d", device, txPhy, rxPhy, status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            GattServerSession session = getSession(device);
+            if (session != null) {
+                session.setPhy(txPhy, rxPhy);
+            }
+        }
     }
 
-    public boolean setValue(int attrId, byte[] value) {
-        int i = 0;
-
-        for (BluetoothGattService svc : gattServer.getServices()) {
-            Log.d(TAG, String.format("service UUID=%s TYPE=%d",
-                    svc.getUuid(), svc.getType()));
-            ++i;
-            if (i == attrId) {
-                return false;
+    /**
+     * Hidden callback of {@link BluetoothGattServerCallback}, the framework invokes it on API 26
+     * and up when the connection parameters change. It can't carry an override annotation.
+     */
+    public void onConnectionUpdated(BluetoothDevice device, int interval, int latency,
+                                    int timeout, int status) {
+        Trace.d(TAG, "onConnectionUpdated %s interval %d latency %d timeout %d status %d",
+                device, interval, latency, timeout, status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            GattServerSession session = getSession(device);
+            if (session != null) {
+                session.setConnectionParameters(interval, latency, timeout);
             }
+        }
+    }
 
-            for (BluetoothGattService inc : svc.getIncludedServices()) {
-                Log.d(TAG, String.format("include UUID=%s TYPE=%d",
-                        inc.getUuid(), inc.getType()));
-                ++i;
-                if (i == attrId) {
-                    return false;
-                }
-            }
+    /**
+     * Records the attribute handed out by GAP under the given attribute ID. Services and
+     * included services are registered as {@link BluetoothGattService}, which can't be
+     * written to.
+     */
+    public void registerAttribute(int attrId, Object attr) {
+        attributesById.register(attrId, attr);
+    }
 
-            for (BluetoothGattCharacteristic chr : svc.getCharacteristics()) {
-                Log.d(TAG, String.format("characteristic UUID=%s PROPS=%d PERMS=%d",
-                        chr.getUuid(), chr.getProperties(), chr.getPermissions()));
-                ++i;
-                if (i == attrId) {
-                    chr.setValue(value);
-                    notifyCharacteristicChanged(chr);
-                    return true;
-                }
-
-                for (BluetoothGattDescriptor dsc : chr.getDescriptors()) {
-                    Log.d(TAG, String.format("descriptor UUID=%s PERMS=%d",
-                            dsc.getUuid(), dsc.getPermissions()));
-                    ++i;
-                    if (i == attrId) {
-                        dsc.setValue(value);
-                        return true;
-                    }
-                }
-            }
+    public boolean setValue(int attrId, byte[] value) {
+        Object attr = attributesById.get(attrId);
+
+        if (attr instanceof BluetoothGattCharacteristic) {
+            BluetoothGattCharacteristic chr = (BluetoothGattCharacteristic) attr;
+            setValue(chr, value);
+            notifyCharacteristicChanged(chr);
+            return true;
+        }
+
+        if (attr instanceof BluetoothGattDescriptor) {
+            ((BluetoothGattDescriptor) attr).setValue(value);
+            return true;
         }
 
         return false;
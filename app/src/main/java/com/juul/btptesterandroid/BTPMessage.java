@@ -51,6 +51,19 @@ public class BTPMessage {
         }
     }
 
+    private BTPMessage(ByteBuffer bb) {
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        service = bb.get();
+        opcode = bb.get();
+        index = bb.get();
+        len = bb.getShort();
+        if (len != 0) {
+            /* Command parsers read from the payload in place, no copy is made */
+            data = bb.slice();
+            data.limit(Short.toUnsignedInt(len));
+        }
+    }
+
     public static BTPMessage parse(byte[] bytes) {
         if (bytes.length < HDR_LEN) {
             return null;
@@ -59,6 +72,27 @@ public class BTPMessage {
         return new BTPMessage(bytes);
     }
 
+    public static BTPMessage parse(ByteBuffer buffer) {
+        if (buffer.remaining() < HDR_LEN) {
+            return null;
+        }
+
+        int pos = buffer.position();
+        int len = (buffer.get(pos + 3) & 0xff) | ((buffer.get(pos + 4) & 0xff) << 8);
+        if (buffer.remaining() < HDR_LEN + len) {
+            return null;
+        }
+
+        if (!buffer.hasArray()) {
+            /* Command parsers need a backing array */
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new BTPMessage(bytes);
+        }
+
+        return new BTPMessage(buffer.duplicate());
+    }
+
     byte[] toByteArray() {
         ByteBuffer buffer = ByteBuffer.allocate(HDR_LEN + this.len);
         buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the inbound frames of a {@link BTPCapture} file back into a frame handler, e.g.
+ * {@code tester::messageHandler}.
+ * <p>
+ * Frames are handed out as read-only slices of the memory mapped capture, so the handler must
+ * not keep them past the call. Outbound frames are only counted; comparing them is up to the
+ * caller.
+ */
+public class BTPReplay {
+
+    public interface FrameHandler {
+        void handleFrame(ByteBuffer frame);
+    }
+
+    public static class Result {
+        public long inbound;
+        public long outbound;
+        public long elapsedNanos;
+        /* Worst lag behind the recorded timestamps, only tracked when paced */
+        public long maxLagNanos;
+
+        @Override
+        public String toString() {
+            return String.format("inbound=%d outbound=%d elapsedUs=%d maxLagUs=%d", inbound,
+                    outbound, TimeUnit.NANOSECONDS.toMicros(elapsedNanos),
+                    TimeUnit.NANOSECONDS.toMicros(maxLagNanos));
+        }
+    }
+
+    private final ByteBuffer capture;
+
+    public BTPReplay(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            capture = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if (capture.remaining() < BTPCapture.FILE_HDR_LEN ||
+                capture.getInt(0) != BTPCapture.MAGIC ||
+                capture.get(4) != BTPCapture.VERSION) {
+            throw new IOException("Not a BTP capture: " + file);
+        }
+    }
+
+    /**
+     * Replays the capture into the handler.
+     *
+     * @param paced wait for the recorded time of each frame instead of running at full speed.
+     */
+    public Result replay(FrameHandler handler, boolean paced) throws InterruptedException {
+        Result result = new Result();
+        ByteBuffer buf = capture.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(BTPCapture.FILE_HDR_LEN);
+        long start = System.nanoTime();
+
+        while (buf.remaining() >= BTPCapture.RECORD_HDR_LEN) {
+            long timestamp = buf.getLong();
+            byte direction = buf.get();
+            int len = buf.getInt();
+
+            if (len < 0 || len > buf.remaining()) {
+                /* Truncated tail, e.g. the recorder wasn't closed */
+                break;
+            }
+
+            if (direction != Trace.DIR_IN) {
+                buf.position(buf.position() + len);
+                ++result.outbound;
+                continue;
+            }
+
+            if (paced) {
+                long wait = timestamp - (System.nanoTime() - start);
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                result.maxLagNanos = Math.max(result.maxLagNanos,
+                        System.nanoTime() - start - timestamp);
+            }
+
+            ByteBuffer frame = buf.slice();
+            frame.limit(len);
+            buf.position(buf.position() + len);
+
+            handler.handleFrame(frame.asReadOnlyBuffer());
+            ++result.inbound;
+        }
+
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+}
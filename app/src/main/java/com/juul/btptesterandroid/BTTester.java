@@ -16,17 +16,16 @@
 
 package com.juul.btptesterandroid;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothManager;
-import android.content.Context;
 import android.util.Log;
 
 import org.java_websocket.WebSocket;
-import org.java_websocket.handshake.ClientHandshake;
-import org.java_websocket.server.WebSocketServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import static com.juul.btptesterandroid.BTP.BTP_INDEX_NONE;
 import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_CORE;
@@ -41,81 +40,118 @@ import static com.juul.btptesterandroid.BTP.CORE_READ_SUPPORTED_COMMANDS;
 import static com.juul.btptesterandroid.BTP.CORE_READ_SUPPORTED_SERVICES;
 import static com.juul.btptesterandroid.BTP.CORE_REGISTER_SERVICE;
 import static com.juul.btptesterandroid.BTP.CORE_UNREGISTER_SERVICE;
+import static com.juul.btptesterandroid.BTP.HDR_LEN;
 
+/**
+ * BTP session of a single WebSocket client, see {@link BTTesterServer}.
+ */
 public class BTTester {
     private static final String TAG = "BTTester";
-    private static final int PORT = 8765;
-    private WebSocketServer wsServer = null;
-    private WebSocket socket = null;
-
-    private Context context;
-    private BluetoothAdapter bleAdapter;
-    private BluetoothManager bleManager;
-    private BleConnectionManager bleConnectionManager;
-
-    private GAP gap = null;
-
-    /*****************************************************************************************/
-
-    public BTTester(Context context, BluetoothAdapter bleAdapter, BluetoothManager bleManager) {
-        this.context = context;
-        this.bleAdapter = bleAdapter;
-        this.bleManager = bleManager;
-    }
+    private final WebSocket socket;
+    private final int id;
+
+    private final Supplier<GapService> gapFactory;
+    private volatile GapService gap = null;
+    private final BTPFramePool framePool;
+    private final ConnectionArbiter arbiter;
+    private final BTPDispatcher dispatcher = new BTPDispatcher(this::handleMessage,
+            this::response);
+    private final SessionStats stats = new SessionStats();
+    private volatile BTPCapture capture = null;
+    private volatile BTPEventBatcher batcher = null;
+    private volatile int targetMtu = Att.ATT_DEFAULT_MTU;
+    private volatile long scanIntervalMs = ScanCoalescer.DEFAULT_MIN_INTERVAL_MS;
+
+    public static class SessionStats {
+        final long openedAt = System.currentTimeMillis();
+        final AtomicLong framesIn = new AtomicLong();
+        final AtomicLong framesOut = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLong messagesOut = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+
+        public long getOpenedAt() {
+            return openedAt;
+        }
 
-    public void init() {
-        wsServer = new BTPWebSockerServer(PORT, adapter);
-        wsServer.setReuseAddr(true);
-        wsServer.start();
-    }
+        public long getFramesIn() {
+            return framesIn.get();
+        }
 
-    private WebSocketServerAdapter adapter = new WebSocketServerAdapter() {
-        @Override
-        public void onOpen(WebSocket conn, ClientHandshake handshake) {
-            Log.d(TAG, "onOpen");
-            if (socket == null) {
-                socket = conn;
-                sendMessage(BTP_SERVICE_ID_CORE, CORE_EV_IUT_READY, BTP_INDEX_NONE, null);
-            }
+        public long getFramesOut() {
+            return framesOut.get();
         }
 
-        @Override
-        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-            Log.d(TAG, "onClose");
-            if (socket == conn) {
-                cleanup();
-            }
+        public long getBytesIn() {
+            return bytesIn.get();
         }
 
-        @Override
-        public void onMessage(WebSocket conn, String message) {
-            Log.d(TAG, "onStringMessage");
+        public long getBytesOut() {
+            return bytesOut.get();
         }
 
-        @Override
-        public void onMessage(WebSocket conn, ByteBuffer message) {
-            Log.d(TAG, "onByteBufferMessage");
-            if (socket == conn) {
-                messageHandler(message.array());
-            }
+        public long getMessagesOut() {
+            return messagesOut.get();
         }
 
-        @Override
-        public void onError(WebSocket conn, Exception ex) {
-            Log.e(TAG, ex.toString());
-            // some errors like port binding failed may not be assignable to a specific websocket
-            if (conn == null) {
-                socket = null;
-            } else {
-                conn.close();
-            }
+        public long getRejected() {
+            return rejected.get();
         }
 
         @Override
-        public void onStart() {
-            Log.d(TAG, "onStart");
+        public String toString() {
+            return String.format("uptimeMs=%d framesIn=%d bytesIn=%d framesOut=%d bytesOut=%d " +
+                            "messagesOut=%d rejected=%d", System.currentTimeMillis() - openedAt,
+                    getFramesIn(), getBytesIn(), getFramesOut(), getBytesOut(),
+                    getMessagesOut(), getRejected());
         }
-    };
+    }
+
+    /*****************************************************************************************/
+
+    /**
+     * @param gapFactory creates the GAP service each time the client registers it
+     */
+    public BTTester(WebSocket socket, BTPFramePool framePool, ConnectionArbiter arbiter, int id,
+                    Supplier<GapService> gapFactory) {
+        this.gapFactory = gapFactory;
+        this.socket = socket;
+        this.framePool = framePool;
+        this.arbiter = arbiter;
+        this.id = id;
+    }
+
+    /**
+     * Sends events passed to {@link #sendEvent(byte, byte, byte, byte[])} in batches of up to
+     * maxEvents frames per WebSocket message, see {@link BTPEventBatcher}.
+     */
+    public void enableEventBatching(int maxEvents, long windowMs) {
+        batcher = new BTPEventBatcher(this::sendBatch, maxEvents, windowMs);
+    }
+
+    public boolean isEventBatchingEnabled() {
+        return batcher != null;
+    }
+
+    /**
+     * Sets the ATT MTU requested on connect, for GAP registered from now on.
+     */
+    public void setTargetMtu(int mtu) {
+        targetMtu = mtu;
+    }
+
+    /**
+     * Sets the minimum interval between device found events for one device, for GAP
+     * registered from now on, see {@link ScanCoalescer}.
+     */
+    public void setScanInterval(long intervalMs) {
+        scanIntervalMs = intervalMs;
+    }
+
+    public void open() {
+        sendMessage(BTP_SERVICE_ID_CORE, CORE_EV_IUT_READY, BTP_INDEX_NONE, null);
+    }
 
     public void supportedCommands(ByteBuffer data) {
         byte supported = 0;
@@ -145,12 +181,13 @@ public class BTTester {
 
         switch (id) {
             case BTP_SERVICE_ID_GAP:
-                if (gap != null) {
-                    status = BTP_STATUS_FAILED;
-                } else {
-                    gap = new GAP();
-                    status = gap.init(context, this, bleAdapter, bleManager);
+                /* After an unregistration still queued there, see unregisterService */
+                if (dispatcher.executeExclusive(BTP_SERVICE_ID_GAP, BTP_SERVICE_ID_GATT,
+                        this::registerGap)) {
+                    return;
                 }
+
+                status = BTP_STATUS_FAILED;
                 break;
             case BTP_SERVICE_ID_GATT:
                 status = BTP_STATUS_SUCCESS;
@@ -163,18 +200,44 @@ public class BTTester {
         response(BTP_SERVICE_ID_CORE, CORE_REGISTER_SERVICE, BTP_INDEX_NONE, status);
     }
 
+    private void registerGap() {
+        byte status;
+
+        if (gap != null) {
+            status = BTP_STATUS_FAILED;
+        } else {
+            GapService newGap = gapFactory.get();
+            newGap.setTargetMtu(targetMtu);
+            newGap.setScanInterval(scanIntervalMs);
+            status = newGap.init(this);
+            gap = newGap;
+        }
+
+        response(BTP_SERVICE_ID_CORE, CORE_REGISTER_SERVICE, BTP_INDEX_NONE, status);
+    }
+
     public void unregisterService(ByteBuffer data) {
         byte id = data.get();
         byte status;
 
         switch (id) {
             case BTP_SERVICE_ID_GAP:
-                if (gap == null) {
+                GapService oldGap = gap;
+                if (oldGap == null) {
                     status = BTP_STATUS_FAILED;
-                } else {
-                    status = gap.unregister();
-                    gap = null;
+                    break;
+                }
+
+                /* Commands not started yet fail, the ones running finish first */
+                gap = null;
+                if (dispatcher.executeExclusive(BTP_SERVICE_ID_GAP, BTP_SERVICE_ID_GATT, () ->
+                        response(BTP_SERVICE_ID_CORE, CORE_UNREGISTER_SERVICE, BTP_INDEX_NONE,
+                                oldGap.unregister()))) {
+                    return;
                 }
+
+                gap = oldGap;
+                status = BTP_STATUS_FAILED;
                 break;
             case BTP_SERVICE_ID_GATT:
                 status = BTP_STATUS_SUCCESS;
@@ -213,7 +276,14 @@ public class BTTester {
     }
 
     public void messageHandler(byte[] bytes) {
-        Log.d(TAG, String.format("messageHandler %s", Utils.bytesToHex(bytes)));
+        messageHandler(ByteBuffer.wrap(bytes));
+    }
+
+    public void messageHandler(ByteBuffer bytes) {
+        Trace.d(TAG, "messageHandler %s", bytes);
+        stats.framesIn.incrementAndGet();
+        stats.bytesIn.addAndGet(bytes.remaining());
+        record(Trace.DIR_IN, bytes);
         BTPMessage msg = BTPMessage.parse(bytes);
 
         if (msg == null) {
@@ -221,14 +291,33 @@ public class BTTester {
             return;
         }
 
+        Trace.frame(Trace.DIR_IN, msg.service, msg.opcode, msg.index,
+                Short.toUnsignedInt(msg.len));
+
+        if (!dispatcher.dispatch(msg)) {
+            stats.rejected.incrementAndGet();
+        }
+    }
+
+    private void handleMessage(BTPMessage msg) {
+        GapService gap = this.gap;
+
         switch (msg.service) {
             case BTP_SERVICE_ID_CORE:
                 handleCore(msg.opcode, msg.index, msg.data);
                 break;
             case BTP_SERVICE_ID_GAP:
+                if (gap == null) {
+                    response(msg.service, msg.opcode, msg.index, BTP_STATUS_FAILED);
+                    break;
+                }
                 gap.handleGAP(msg.opcode, msg.index, msg.data);
                 break;
             case BTP_SERVICE_ID_GATT:
+                if (gap == null) {
+                    response(msg.service, msg.opcode, msg.index, BTP_STATUS_FAILED);
+                    break;
+                }
                 gap.handleGATT(msg.opcode, msg.index, msg.data);
                 break;
             default:
@@ -237,19 +326,177 @@ public class BTTester {
     }
 
     public void sendMessage(byte service, byte opcode, byte index, byte[] data) {
-        Log.d(TAG, String.format("sendMessage service: 0x%02x opcode: 0x%02x index: 0x%02x " +
-                        "len: %d data: %s",
-                service, opcode, index, data == null ? 0 : data.length, Utils.bytesToHex(data)));
-        BTPMessage message = new BTPMessage(service, opcode, index, data);
-        byte[] bytes = message.toByteArray();
-
-        if (socket != null && socket.isOpen()) {
-            socket.send(bytes);
-        } else {
+        int len = data == null ? 0 : data.length;
+        if (Trace.isDebugEnabled()) {
+            Trace.d(TAG, "sendMessage service: 0x%02x opcode: 0x%02x index: 0x%02x len: %d " +
+                    "data: %s", service, opcode, index, len, data);
+        }
+        Trace.frame(Trace.DIR_OUT, service, opcode, index, len);
+        if (!socket.isOpen()) {
             Log.e(TAG, "WebSocket is closed");
+            return;
+        }
+
+        sendFrame(framePool.encode(service, opcode, index, data));
+    }
+
+    /**
+     * Sends a frame encoded into a buffer of the frame pool, and releases the buffer.
+     *
+     * @return false if the WebSocket is closed.
+     */
+    public boolean sendFrame(ByteBuffer frame) {
+        try {
+            if (!socket.isOpen()) {
+                return false;
+            }
+
+            BTPEventBatcher batcher = this.batcher;
+            if (batcher != null) {
+                /* Keep the events queued so far ahead of this frame */
+                batcher.flush();
+            }
+
+            stats.framesOut.incrementAndGet();
+            stats.bytesOut.addAndGet(frame.remaining());
+            stats.messagesOut.incrementAndGet();
+            record(Trace.DIR_OUT, frame);
+            socket.send(frame);
+            return true;
+        } finally {
+            framePool.release(frame);
+        }
+    }
+
+    /**
+     * Sends an event which may be batched with other events, if batching is enabled.
+     * Otherwise it's the same as {@link #sendMessage(byte, byte, byte, byte[])}.
+     */
+    public void sendEvent(byte service, byte opcode, byte index, byte[] data) {
+        BTPEventBatcher batcher = this.batcher;
+        if (batcher == null) {
+            sendMessage(service, opcode, index, data);
+            return;
+        }
+
+        Trace.frame(Trace.DIR_OUT, service, opcode, index, data == null ? 0 : data.length);
+        if (!socket.isOpen()) {
+            Log.e(TAG, "WebSocket is closed");
+            return;
+        }
+
+        batcher.add(service, opcode, index, data);
+    }
+
+    /**
+     * Same as {@link #sendFrame(ByteBuffer)} for an event frame, which may be batched with
+     * other events.
+     */
+    public boolean sendEvent(ByteBuffer frame) {
+        Trace.frame(Trace.DIR_OUT, frame.get(0), frame.get(1), frame.get(2),
+                Short.toUnsignedInt(frame.getShort(3)));
+
+        BTPEventBatcher batcher = this.batcher;
+        if (batcher == null) {
+            return sendFrame(frame);
+        }
+
+        if (!socket.isOpen()) {
+            framePool.release(frame);
+            return false;
+        }
+
+        try {
+            batcher.addFrame(frame);
+        } finally {
+            framePool.release(frame);
+        }
+        return true;
+    }
+
+    private void sendBatch(ByteBuffer message, int frames) {
+        if (!socket.isOpen()) {
+            Log.e(TAG, "WebSocket is closed");
+            return;
+        }
+
+        stats.framesOut.addAndGet(frames);
+        stats.bytesOut.addAndGet(message.remaining());
+        stats.messagesOut.incrementAndGet();
+
+        if (capture != null) {
+            /* Keep one record per frame, so captures replay the same either way */
+            ByteBuffer frame = message.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            while (frame.remaining() >= HDR_LEN) {
+                int end = frame.position() + HDR_LEN +
+                        Short.toUnsignedInt(frame.getShort(frame.position() + 3));
+                frame.limit(end);
+                record(Trace.DIR_OUT, frame);
+                frame.position(end);
+                frame.limit(message.limit());
+            }
+        }
+
+        socket.send(message);
+    }
+
+    /**
+     * Starts recording all inbound and outbound frames into the file, see {@link BTPCapture}.
+     */
+    public void startCapture(File file) throws IOException {
+        stopCapture();
+        capture = new BTPCapture(file);
+    }
+
+    public void stopCapture() {
+        BTPCapture oldCapture = capture;
+        capture = null;
+
+        if (oldCapture == null) {
+            return;
+        }
+
+        try {
+            oldCapture.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close capture", e);
+        }
+    }
+
+    private void record(byte direction, ByteBuffer frame) {
+        BTPCapture capture = this.capture;
+        if (capture == null) {
+            return;
+        }
+
+        try {
+            capture.record(direction, frame);
+        } catch (IOException e) {
+            Log.e(TAG, "Capture failed, stopping it", e);
+            stopCapture();
         }
     }
 
+    public BTPFramePool getFramePool() {
+        return framePool;
+    }
+
+    public BTPDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public ConnectionArbiter getArbiter() {
+        return arbiter;
+    }
+
+    public SessionStats getStats() {
+        return stats;
+    }
+
+    public int getId() {
+        return id;
+    }
+
     public void response(byte service, byte opcode, byte index, byte status) {
         if (status == BTP_STATUS_SUCCESS) {
             sendMessage(service, opcode, index, null);
@@ -260,29 +507,38 @@ public class BTTester {
     }
 
     public void cleanup() {
-        if (gap != null) {
-            gap.cleanup();
-            gap = null;
+        Trace.d(TAG, "cleanup %s", dispatcher);
+        if (Trace.isRingEnabled()) {
+            Log.i(TAG, "frame trace:\n" + Trace.dumpRing());
+        }
+        GapService oldGap = gap;
+        gap = null;
+
+        if (oldGap != null) {
+            /* Disconnecting may block, keep it behind GAP and GATT commands already queued */
+            if (!dispatcher.executeExclusive(BTP_SERVICE_ID_GAP, BTP_SERVICE_ID_GATT,
+                    oldGap::cleanup)) {
+                oldGap.cleanup();
+            }
         }
 
-        if (socket != null) {
+        if (socket.isOpen()) {
             socket.close();
-            socket = null;
         }
     }
 
     public void close() {
-        if (wsServer != null) {
-            try {
-                cleanup();
-                wsServer.stop();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            wsServer = null;
+        BTPEventBatcher batcher = this.batcher;
+        if (batcher != null) {
+            batcher.close();
+        }
+        cleanup();
+        /* Queued behind the GAP cleanup, so no other session claims a peer still disconnecting */
+        if (!dispatcher.execute(BTP_SERVICE_ID_GAP, () -> arbiter.releaseAll(this))) {
+            arbiter.releaseAll(this);
         }
+        dispatcher.shutdown();
+        stopCapture();
     }
 
 }
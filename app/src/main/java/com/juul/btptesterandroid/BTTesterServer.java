@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket server accepting BTP clients.
+ * <p>
+ * Every WebSocket connection gets its own {@link BTTester} session with its own registered
+ * services and dispatcher. Sessions share the Bluetooth adapter, remote devices and the GATT
+ * server are handed out by a {@link ConnectionArbiter}.
+ */
+public class BTTesterServer {
+    private static final String TAG = "BTTesterServer";
+    private static final int PORT = 8765;
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+    public static final int DEFAULT_BATCH_WINDOW_MS = 20;
+    public static final int MAX_TRACE_RECORDS = 1 << 16;
+
+    /* Resource query parameters of the handshake, e.g. ws://host:8765/?batch=32&window=10 */
+    private static final String QUERY_BATCH = "batch";
+    private static final String QUERY_WINDOW = "window";
+    private static final String QUERY_MTU = "mtu";
+    private static final String QUERY_CAPTURE = "capture";
+    private static final String QUERY_TRACE = "trace";
+    private static final String QUERY_SCAN_INTERVAL = "scan";
+
+    private WebSocketServer wsServer = null;
+
+    private final Context context;
+    private final BluetoothAdapter bleAdapter;
+    private final BluetoothManager bleManager;
+    private final int maxSessions;
+
+    private final Map<WebSocket, BTTester> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionId = new AtomicInteger();
+    private final BTPFramePool framePool = new BTPFramePool();
+    private final ConnectionArbiter arbiter = new ConnectionArbiter();
+
+    public BTTesterServer(Context context, BluetoothAdapter bleAdapter,
+                          BluetoothManager bleManager) {
+        this(context, bleAdapter, bleManager, DEFAULT_MAX_SESSIONS);
+    }
+
+    public BTTesterServer(Context context, BluetoothAdapter bleAdapter,
+                          BluetoothManager bleManager, int maxSessions) {
+        this.context = context;
+        this.bleAdapter = bleAdapter;
+        this.bleManager = bleManager;
+        this.maxSessions = maxSessions;
+
+        /* Debug traces cost a format per frame and attribute, keep them to debug builds */
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            Trace.setLevel(Log.INFO);
+        }
+    }
+
+    public void init() {
+        wsServer = new BTPWebSockerServer(PORT, adapter);
+        wsServer.setReuseAddr(true);
+        wsServer.start();
+    }
+
+    private WebSocketServerAdapter adapter = new WebSocketServerAdapter() {
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            Trace.d(TAG, "onOpen %s", conn.getRemoteSocketAddress());
+            BTTester session;
+
+            synchronized (sessions) {
+                if (sessions.size() >= maxSessions) {
+                    Log.w(TAG, String.format("Rejecting %s, %d sessions open",
+                            conn.getRemoteSocketAddress(), sessions.size()));
+                    conn.close(CloseFrame.TRY_AGAIN_LATER, "Too many sessions");
+                    return;
+                }
+
+                session = new BTTester(conn, framePool, arbiter,
+                        nextSessionId.incrementAndGet(),
+                        () -> new GAP(context, bleAdapter, bleManager));
+                sessions.put(conn, session);
+            }
+
+            Log.i(TAG, String.format("Session %d opened for %s", session.getId(),
+                    conn.getRemoteSocketAddress()));
+            configureSession(session, handshake.getResourceDescriptor());
+            session.open();
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            Trace.d(TAG, "onClose");
+            closeSession(conn);
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            Trace.d(TAG, "onStringMessage");
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            Trace.d(TAG, "onByteBufferMessage");
+            BTTester session = sessions.get(conn);
+            if (session != null) {
+                session.messageHandler(message);
+            }
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            Log.e(TAG, ex.toString());
+            // some errors like port binding failed may not be assignable to a specific websocket
+            if (conn != null) {
+                conn.close();
+            }
+        }
+
+        @Override
+        public void onStart() {
+            Trace.d(TAG, "onStart");
+        }
+    };
+
+    /**
+     * Applies the options requested in the handshake resource query. Clients which don't ask
+     * for anything get standard BTP framing, one frame per WebSocket message.
+     */
+    private void configureSession(BTTester session, String resource) {
+        Map<String, String> query = parseQuery(resource);
+        int batch = parseInt(query.get(QUERY_BATCH), 1);
+        int window = parseInt(query.get(QUERY_WINDOW), DEFAULT_BATCH_WINDOW_MS);
+
+        if (batch > 1 && window > 0) {
+            Log.i(TAG, String.format("Session %d batches %d events per %d ms",
+                    session.getId(), batch, window));
+            session.enableEventBatching(batch, window);
+        }
+
+        int mtu = parseInt(query.get(QUERY_MTU), Att.ATT_DEFAULT_MTU);
+        if (mtu > Att.ATT_DEFAULT_MTU) {
+            Log.i(TAG, String.format("Session %d requests MTU %d", session.getId(), mtu));
+            session.setTargetMtu(mtu);
+        }
+
+        int scanInterval = parseInt(query.get(QUERY_SCAN_INTERVAL), -1);
+        if (scanInterval >= 0) {
+            Log.i(TAG, String.format("Session %d reports a device at most every %d ms",
+                    session.getId(), scanInterval));
+            session.setScanInterval(scanInterval);
+        }
+
+        int trace = Math.min(parseInt(query.get(QUERY_TRACE), 0), MAX_TRACE_RECORDS);
+        if (trace > 0) {
+            Log.i(TAG, String.format("Session %d traces the last %d frames", session.getId(),
+                    trace));
+            /* The ring is shared by all sessions, the last one asking for it wins */
+            Trace.enableRing(trace);
+        }
+
+        if (parseInt(query.get(QUERY_CAPTURE), 0) > 0) {
+            File file = new File(context.getFilesDir(),
+                    String.format("session-%d.btpcap", session.getId()));
+            try {
+                session.startCapture(file);
+                Log.i(TAG, String.format("Session %d captures to %s", session.getId(), file));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start capture", e);
+            }
+        }
+    }
+
+    static Map<String, String> parseQuery(String resource) {
+        Map<String, String> query = new HashMap<>();
+        int start = resource == null ? -1 : resource.indexOf('?');
+        if (start < 0) {
+            return query;
+        }
+
+        for (String param : resource.substring(start + 1).split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                query.put(param.substring(0, eq), param.substring(eq + 1));
+            }
+        }
+
+        return query;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private void closeSession(WebSocket conn) {
+        BTTester session = sessions.remove(conn);
+        if (session == null) {
+            return;
+        }
+
+        session.close();
+        Log.i(TAG, String.format("Session %d closed: %s; %s", session.getId(),
+                session.getStats(), session.getDispatcher()));
+    }
+
+    public List<BTTester> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    public BTPFramePool getFramePool() {
+        return framePool;
+    }
+
+    public ConnectionArbiter getArbiter() {
+        return arbiter;
+    }
+
+    public void close() {
+        if (wsServer != null) {
+            try {
+                for (WebSocket conn : new ArrayList<>(sessions.keySet())) {
+                    closeSession(conn);
+                }
+                wsServer.stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            wsServer = null;
+        }
+    }
+}
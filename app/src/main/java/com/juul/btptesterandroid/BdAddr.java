@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.Arrays;
+
+/**
+ * Conversions between the Bluetooth device address forms used by the tester: the colon
+ * separated string of the Android APIs, the 48-bit address packed into a long, and the
+ * 6 bytes of BTP frames, which are little endian.
+ * <p>
+ * Every conversion is a single pass over lookup tables.
+ */
+public final class BdAddr {
+    public static final int LENGTH = 6;
+    private static final int STRING_LENGTH = 17;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] DIGIT_VALUES = new byte['f' + 1];
+
+    static {
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            DIGIT_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DIGIT_VALUES['A' + i] = (byte) (10 + i);
+            DIGIT_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private BdAddr() {
+    }
+
+    private static int digit(char c) {
+        int value = c < DIGIT_VALUES.length ? DIGIT_VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid address character " + c);
+        }
+        return value;
+    }
+
+    /**
+     * Parses a "C0:11:22:33:44:55" address.
+     */
+    public static long parse(String bdAddr) {
+        if (bdAddr.length() != STRING_LENGTH) {
+            throw new IllegalArgumentException("Invalid address " + bdAddr);
+        }
+
+        long address = 0;
+        for (int i = 0; i < STRING_LENGTH; i += 3) {
+            address = address << 8 | digit(bdAddr.charAt(i)) << 4 | digit(bdAddr.charAt(i + 1));
+        }
+        return address;
+    }
+
+    public static String toString(long address) {
+        char[] chars = new char[STRING_LENGTH];
+        for (int i = 0, shift = 40; i < STRING_LENGTH; i += 3, shift -= 8) {
+            int b = (int) (address >>> shift) & 0xff;
+            chars[i] = HEX_DIGITS[b >>> 4];
+            chars[i + 1] = HEX_DIGITS[b & 0x0f];
+            if (i + 2 < STRING_LENGTH) {
+                chars[i + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads a little endian BTP address.
+     */
+    public static long fromBtp(byte[] bytes, int offset) {
+        long address = 0;
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            address = address << 8 | (bytes[offset + i] & 0xff);
+        }
+        return address;
+    }
+
+    /**
+     * Reads an address stored most significant byte first, as the BTP command parsers leave it.
+     */
+    public static long fromBytes(byte[] bytes) {
+        long address = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            address = address << 8 | (bytes[i] & 0xff);
+        }
+        return address;
+    }
+
+    /**
+     * Writes the address in little endian BTP order.
+     */
+    public static void toBtp(long address, byte[] dst, int offset) {
+        for (int i = 0; i < LENGTH; i++) {
+            dst[offset + i] = (byte) (address >>> (8 * i));
+        }
+    }
+
+    public static byte[] toBtp(long address) {
+        byte[] bytes = new byte[LENGTH];
+        toBtp(address, bytes, 0);
+        return bytes;
+    }
+
+    public static byte[] toBtp(String bdAddr) {
+        return toBtp(parse(bdAddr));
+    }
+}
@@ -21,11 +21,11 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
-import android.util.Log;
 
 import com.juul.btptesterandroid.gatt.GattDBCharacteristic;
 import com.juul.btptesterandroid.gatt.GattDBDescriptor;
 import com.juul.btptesterandroid.gatt.GattDBIncludeService;
+import com.juul.btptesterandroid.gatt.GattDBIndex;
 import com.juul.btptesterandroid.gatt.GattDBService;
 
 import java.util.ArrayList;
@@ -36,18 +36,104 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import no.nordicsemi.android.ble.BleManager;
 import no.nordicsemi.android.ble.BleManagerCallbacks;
+import no.nordicsemi.android.ble.ConnectionPriorityRequest;
+import no.nordicsemi.android.ble.MtuRequest;
+import no.nordicsemi.android.ble.PhyRequest;
 import no.nordicsemi.android.ble.ReadRequest;
+import no.nordicsemi.android.ble.ReliableWriteRequest;
 import no.nordicsemi.android.ble.Request;
+import no.nordicsemi.android.ble.RequestQueue;
 import no.nordicsemi.android.ble.ValueChangedCallback;
 import no.nordicsemi.android.ble.WriteRequest;
 import no.nordicsemi.android.ble.callback.DataReceivedCallback;
 import no.nordicsemi.android.ble.callback.DataSentCallback;
+import no.nordicsemi.android.ble.callback.FailCallback;
+import no.nordicsemi.android.ble.callback.MtuCallback;
+import no.nordicsemi.android.ble.callback.PhyCallback;
+
+import static com.juul.btptesterandroid.Att.ATT_DEFAULT_MTU;
+import static com.juul.btptesterandroid.Att.ATT_MAX_MTU;
 
 public class BleConnectionManager extends BleManager  {
 
     public static final String GATT_TAG = "GATT";
     public static final String GAP_TAG = "GAP";
     public List<GattDBService> mServices;
+    private volatile GattDBIndex mIndex = GattDBIndex.EMPTY;
+    private final LongAttributeEngine mLongAttributes = new LongAttributeEngine(
+            new LongAttributeLink());
+    private volatile int mTargetMtu = ATT_DEFAULT_MTU;
+    private MtuCallback mMtuCallback = null;
+    private volatile LinkProfile mLinkProfile = null;
+    private final LinkParameters mLinkParameters = new LinkParameters();
+
+    /**
+     * Link parameters of the connection as reported back by the stack.
+     */
+    public static class LinkParameters {
+        volatile LinkProfile profile = null;
+        volatile int txPhy = PhyCallback.PHY_LE_1M;
+        volatile int rxPhy = PhyCallback.PHY_LE_1M;
+        volatile int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        /* Connection parameters in controller units, 0 until the stack reports an update */
+        volatile int interval = 0;
+        volatile int latency = 0;
+        volatile int timeout = 0;
+        volatile int mtu = ATT_DEFAULT_MTU;
+        volatile long appliedAtNanos = 0;
+
+        public LinkProfile getProfile() {
+            return profile;
+        }
+
+        public int getTxPhy() {
+            return txPhy;
+        }
+
+        public int getRxPhy() {
+            return rxPhy;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return connection interval in 1.25 ms units.
+         */
+        public int getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return peripheral latency in connection events.
+         */
+        public int getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return supervision timeout in 10 ms units.
+         */
+        public int getTimeout() {
+            return timeout;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        public long getAppliedAtNanos() {
+            return appliedAtNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("profile=%s txPhy=%d rxPhy=%d priority=%d interval=%d " +
+                    "latency=%d timeout=%d mtu=%d", profile, txPhy, rxPhy, priority, interval,
+                    latency, timeout, mtu);
+        }
+    }
 
     /**
      * The manager constructor.
@@ -66,220 +152,296 @@ public class BleConnectionManager extends BleManager  {
     }
 
     public List<GattDBService> getAllPrimaryServices() {
-        List<GattDBService> allPrimSvcs = new ArrayList<>();
-
-
-        for (GattDBService btGattSvc : mServices) {
-            if (!btGattSvc.isPrimary()) {
-                continue;
-            }
-
-            allPrimSvcs.add(btGattSvc);
-        }
-
-
-        return allPrimSvcs;
+        return mIndex.getPrimaryServices();
     }
 
     public List<GattDBService> getPrimaryServiceByUUID(UUID uuid) {
-        List<GattDBService> primSvcsUuid = new ArrayList<>();
-
-
-        for (GattDBService btGattSvc : mServices) {
-            if (!btGattSvc.isPrimary()) {
-                continue;
-            }
-
-            if (!btGattSvc.getService().getUuid().equals(uuid)) {
-                continue;
-            }
-
-            primSvcsUuid.add(btGattSvc);
-        }
-
-        return primSvcsUuid;
+        return mIndex.getPrimaryServices(uuid);
     }
 
     public List<GattDBIncludeService> getIncludedServices(int startHandle,
                                                           int endHandle) {
-        List<GattDBIncludeService> inclSvcsUuid = new ArrayList<>();
-
-
-        for (GattDBService btGattSvc : mServices) {
-            List<GattDBIncludeService> includes = btGattSvc.getIncludedServices();
-
-            for (GattDBIncludeService inc : includes) {
-                if (inc.getHandle() >= startHandle && inc.getHandle() <= endHandle) {
-                    inclSvcsUuid.add(inc);
-                }
-            }
-        }
-
-        return inclSvcsUuid;
+        return mIndex.getIncludedServices(startHandle, endHandle);
     }
 
     public List<GattDBCharacteristic> getAllCharacteristics(int startHandle,
                                                             int endHandle) {
-        List<GattDBCharacteristic> allChrcs = new ArrayList<>();
-
-        for (GattDBService svc : mServices) {
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                if (chr.getDefHandle() >= startHandle && chr.getDefHandle() <= endHandle) {
-                    allChrcs.add(chr);
-                }
-            }
-        }
-
-        return allChrcs;
+        return mIndex.getCharacteristics(startHandle, endHandle);
     }
 
     public List<GattDBCharacteristic> getCharacteristicByUUID(int startHandle, int endHandle,
                                                               UUID uuid) {
-        List<GattDBCharacteristic> allChrcs = new ArrayList<>();
-
-        for (GattDBService svc : mServices) {
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                if (chr.getDefHandle() >= startHandle && chr.getDefHandle() <= endHandle &&
-                        chr.getCharacteristic().getUuid().equals(uuid)) {
-                    allChrcs.add(chr);
-                }
-            }
-        }
-
-        return allChrcs;
+        return mIndex.getCharacteristics(startHandle, endHandle, uuid);
     }
 
     public List<GattDBDescriptor> getAllDescriptors(int startHandle, int endHandle) {
-        List<GattDBDescriptor> allDescs = new ArrayList<>();
-
-        for (GattDBService svc : mServices) {
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                for (GattDBDescriptor dsc : chr.getDescriptors()) {
-                    if (dsc.getHandle() >= startHandle && dsc.getHandle() <= endHandle) {
-                        allDescs.add(dsc);
-                    }
-                }
-            }
-        }
-
-        return allDescs;
+        return mIndex.getDescriptors(startHandle, endHandle);
     }
 
     public GattDBCharacteristic findCharacteristic(int handle) {
-        for (GattDBService svc : mServices) {
-            Log.d(GATT_TAG, String.format("service UUID=%s TYPE=%d START_HDL=%d END_HDL=%d",
-                    svc.getService().getUuid(), svc.getService().getType(),
-                    svc.getStartHandle(), svc.getEndHandle()));
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                Log.d(GATT_TAG, String.format("characteristic UUID=%s PROPS=%d PERMS=%d" +
-                                "DEF_HDL=%d VAL_HDL=%d",
-                        chr.getCharacteristic().getUuid(), chr.getCharacteristic().getProperties(),
-                        chr.getCharacteristic().getPermissions(),
-                        chr.getDefHandle(), chr.getValHandle()));
-
-                if (chr.getValHandle() == handle) {
-                    return chr;
-                }
-            }
-        }
-
-        return null;
+        return mIndex.getCharacteristicByValueHandle(handle);
     }
 
     public GattDBDescriptor findDescriptor(int handle) {
-        for (GattDBService svc : mServices) {
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                for (GattDBDescriptor dsc : chr.getDescriptors()) {
-                    Log.d(GATT_TAG, String.format("descriptor UUID=%s PERMS=%d HDL=%d",
-                            dsc.getDescriptor().getUuid(),
-                            dsc.getDescriptor().getPermissions(),
-                            dsc.getHandle()));
-                    if (dsc.getHandle() == handle) {
-                        return dsc;
-                    }
-                }
-            }
-        }
-
-        return null;
+        return mIndex.getDescriptor(handle);
     }
 
     public GattDBCharacteristic findCCCDCharacteristic(int cccdHandle) {
-        for (GattDBService svc : mServices) {
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                for (GattDBDescriptor dsc : chr.getDescriptors()) {
-                    Log.d(GATT_TAG, String.format("descriptor UUID=%s PERMS=%d HDL=%d",
-                            dsc.getDescriptor().getUuid(),
-                            dsc.getDescriptor().getPermissions(),
-                            dsc.getHandle()));
-                    if (dsc.getHandle() == cccdHandle) {
-                        return chr;
-                    }
-                }
-            }
-        }
-
-        return null;
+        return mIndex.getDescriptorCharacteristic(cccdHandle);
     }
 
-    public boolean gattRead(int handle, DataReceivedCallback cb) {
+    ReadRequest readRequest(int handle) {
         GattDBCharacteristic chr = findCharacteristic(handle);
         if (chr != null) {
-            ReadRequest req = readCharacteristic(chr.getCharacteristic());
-            req.with(cb).enqueue();
-            return true;
+            return readCharacteristic(chr.getCharacteristic());
         }
 
         GattDBDescriptor dsc = findDescriptor(handle);
         if (dsc != null) {
-            ReadRequest req = readDescriptor(dsc.getDescriptor());
-            req.with(cb).enqueue();
-            return true;
+            return readDescriptor(dsc.getDescriptor());
         }
 
-        return false;
+        return null;
     }
 
-    public boolean gattWrite(int handle, byte[] data, DataSentCallback cb) {
+    WriteRequest writeRequest(int handle, byte[] data) {
         GattDBCharacteristic chr = findCharacteristic(handle);
         if (chr != null) {
-            WriteRequest req = writeCharacteristic(chr.getCharacteristic(), data);
-            req.with(cb).enqueue();
-            return true;
+            return writeCharacteristic(chr.getCharacteristic(), data);
         }
 
         GattDBDescriptor dsc = findDescriptor(handle);
         if (dsc != null) {
-            WriteRequest req = writeDescriptor(dsc.getDescriptor(), data);
-            req.with(cb).enqueue();
-            return true;
+            return writeDescriptor(dsc.getDescriptor(), data);
         }
 
-        return false;
+        return null;
     }
 
-    public boolean gattWriteLong(int handle, int offset, byte[] data, DataSentCallback cb) {
-        GattDBCharacteristic chr = findCharacteristic(handle);
-        if (chr != null) {
-            WriteRequest req = writeCharacteristic(chr.getCharacteristic(), data,
-                    offset, data.length);
-            req.with(cb).enqueue();
+    /**
+     * Client operations the long attribute engine runs on this connection.
+     */
+    private class LongAttributeLink implements LongAttributeEngine.Link {
+        @Override
+        public int getMtu() {
+            return BleConnectionManager.this.getMtu();
+        }
+
+        @Override
+        public boolean isReadable(int handle) {
+            GattDBCharacteristic chr = findCharacteristic(handle);
+            if (chr != null) {
+                return (chr.getCharacteristic().getProperties() &
+                        BluetoothGattCharacteristic.PROPERTY_READ) != 0;
+            }
+
+            return findDescriptor(handle) != null;
+        }
+
+        @Override
+        public boolean read(int handle, Completion cb) {
+            ReadRequest req = readRequest(handle);
+            if (req == null) {
+                return false;
+            }
+
+            req.with((device, data) -> cb.onComplete(BluetoothGatt.GATT_SUCCESS,
+                    data.getValue()))
+                    .fail((device, status) -> cb.onComplete(status, null))
+                    .enqueue();
             return true;
         }
 
-        GattDBDescriptor dsc = findDescriptor(handle);
-        if (dsc != null) {
-            WriteRequest req = writeDescriptor(dsc.getDescriptor(), data, offset, data.length);
-            req.with(cb).enqueue();
+        @Override
+        public boolean write(int handle, byte[] value, Completion cb) {
+            WriteRequest req = writeRequest(handle, value);
+            if (req == null) {
+                return false;
+            }
+
+            req.with((device, data) -> cb.onComplete(BluetoothGatt.GATT_SUCCESS, null))
+                    .fail((device, status) -> cb.onComplete(status, null))
+                    .enqueue();
             return true;
         }
 
-        return false;
+        @Override
+        public boolean reliableWrite(int handle, byte[] value, Completion cb) {
+            WriteRequest req = writeRequest(handle, value);
+            if (req == null) {
+                return false;
+            }
+
+            beginReliableWrite().add(req)
+                    .done(device -> cb.onComplete(BluetoothGatt.GATT_SUCCESS, null))
+                    .fail((device, status) -> cb.onComplete(status, null))
+                    .enqueue();
+            return true;
+        }
+    }
+
+    public boolean gattRead(int handle, DataReceivedCallback cb) {
+        ReadRequest req = readRequest(handle);
+        if (req == null) {
+            return false;
+        }
+
+        req.with(cb).enqueue();
+        return true;
+    }
+
+    public boolean gattWrite(int handle, byte[] data, DataSentCallback cb) {
+        WriteRequest req = writeRequest(handle, data);
+        if (req == null) {
+            return false;
+        }
+
+        req.with(cb).enqueue();
+        return true;
+    }
+
+    /**
+     * Sets the MTU requested once the connection is set up, the default MTU disables the
+     * exchange.
+     *
+     * @param cb called with the MTU agreed on, whenever an exchange completes
+     */
+    public void setTargetMtu(int mtu, MtuCallback cb) {
+        mTargetMtu = Math.min(Math.max(mtu, ATT_DEFAULT_MTU), ATT_MAX_MTU);
+        mMtuCallback = cb;
+    }
+
+    public int getTargetMtu() {
+        return mTargetMtu;
+    }
+
+    /**
+     * @return the target MTU, raised to the MTU of the link profile if there is one
+     */
+    private int requestedMtu() {
+        LinkProfile profile = mLinkProfile;
+        return profile == null ? mTargetMtu : profile.requestedMtu(mTargetMtu);
+    }
+
+    /**
+     * Requests the target MTU, or the largest MTU if no target is set.
+     */
+    public void exchangeMtu() {
+        int target = requestedMtu();
+        int mtu = target > ATT_DEFAULT_MTU ? target : ATT_MAX_MTU;
+        requestMtu(mtu)
+                .with(this::onMtuChanged)
+                .fail((device, status) -> Trace.d(GATT_TAG, "requestMtu %d failed %d", mtu,
+                        status))
+                .enqueue();
+    }
+
+    /**
+     * Picks the link profile of the connection. It is applied right away on a connected link,
+     * otherwise once the connection is set up. The target MTU is kept, the larger of it and the
+     * profile MTU is requested.
+     */
+    public void setLinkProfile(LinkProfile profile) {
+        mLinkProfile = profile;
+        if (isConnected()) {
+            applyLinkProfile(profile);
+        }
+    }
+
+    public LinkParameters getLinkParameters() {
+        return mLinkParameters;
+    }
+
+    private void applyLinkProfile(LinkProfile profile) {
+        Trace.d(GAP_TAG, "applyLinkProfile %s", profile);
+        mLinkParameters.profile = profile;
+        mLinkParameters.appliedAtNanos = System.nanoTime();
+
+        requestConnectionPriority(profile.getPriority())
+                .with((device, interval, latency, timeout) -> {
+                    /* The priority only counts once the controller has updated the link */
+                    mLinkParameters.priority = profile.getPriority();
+                    mLinkParameters.interval = interval;
+                    mLinkParameters.latency = latency;
+                    mLinkParameters.timeout = timeout;
+                })
+                .fail((device, status) -> Trace.d(GAP_TAG,
+                        "requestConnectionPriority %d failed %d", profile.getPriority(),
+                        status))
+                .enqueue();
+
+        setPreferredPhy(profile.getPhyMask(), profile.getPhyMask(),
+                PhyRequest.PHY_OPTION_NO_PREFERRED)
+                .with((device, txPhy, rxPhy) -> {
+                    mLinkParameters.txPhy = txPhy;
+                    mLinkParameters.rxPhy = rxPhy;
+                })
+                .fail((device, status) -> Trace.d(GAP_TAG, "setPreferredPhy %d failed %d",
+                        profile.getPhyMask(), status))
+                .enqueue();
+
+        if (profile.requestedMtu(mTargetMtu) > ATT_DEFAULT_MTU) {
+            exchangeMtu();
+        }
+    }
+
+    private void onMtuChanged(@NonNull BluetoothDevice device, int mtu) {
+        Trace.d(GATT_TAG, "onMtuChanged %s %d", device, mtu);
+        mLinkParameters.mtu = mtu;
+        MtuCallback cb = mMtuCallback;
+        if (cb != null) {
+            cb.onMtuChanged(device, mtu);
+        }
+    }
+
+    public LongAttributeEngine getLongAttributes() {
+        return mLongAttributes;
     }
 
+    /**
+     * Builds one atomic request queue holding every operation of the pipeline, so the
+     * requests run back to back without other requests in between.
+     *
+     * @return the queue, to be enqueued by the caller, or null if any of the operations
+     *         can't be mapped to an attribute of the connection
+     */
+    public RequestQueue gattPipeline(GattPipeline pipeline) {
+        RequestQueue queue = beginAtomicRequestQueue();
+
+        for (int i = 0; i < pipeline.size(); i++) {
+            final int seq = i;
+            int handle = pipeline.getHandle(seq);
+
+            switch (pipeline.getType(seq)) {
+                case BTP.GATT_PIPELINE_OP_READ:
+                    ReadRequest read = readRequest(handle);
+                    if (read == null) {
+                        return null;
+                    }
+                    queue.add(read.with((device, data) -> pipeline.completed(seq, data.getValue()))
+                            .fail((device, status) -> pipeline.failed(seq, status)));
+                    break;
+                case BTP.GATT_PIPELINE_OP_WRITE:
+                    WriteRequest write = writeRequest(handle, pipeline.getData(seq));
+                    if (write == null) {
+                        return null;
+                    }
+                    queue.add(write.with((device, data) -> pipeline.completed(seq, null))
+                            .fail((device, status) -> pipeline.failed(seq, status)));
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        /* Operations left over by a cancelled queue still get a result */
+        queue.done(device -> pipeline.finish(FailCallback.REASON_REQUEST_FAILED))
+                .fail((device, status) -> pipeline.finish(status));
+        return queue;
+    }
 
     public boolean configSubscription(int cccdHandle, byte opcode, int enable,
-                                      GAP.NotificationReceivedCallback cb) {
+                                      NotificationForwarder cb) {
         GattDBCharacteristic chr = findCCCDCharacteristic(cccdHandle);
         WriteRequest req;
         if (chr == null) {
@@ -298,8 +460,7 @@ public class BleConnectionManager extends BleManager  {
 
 
         if (opcode == BTP.GATT_CFG_NOTIFY) {
-            cb.type = 0x01;
-            cb.handle = chr.getValHandle();
+            cb.setSubscription(NotificationForwarder.TYPE_NOTIFICATION, chr.getValHandle());
 
             req = enableNotifications(chr.getCharacteristic());
 
@@ -307,8 +468,7 @@ public class BleConnectionManager extends BleManager  {
                     setNotificationCallback(chr.getCharacteristic());
             valueChangedCallback.with(cb);
         } else {
-            cb.type = 0x02;
-            cb.handle = chr.getValHandle();
+            cb.setSubscription(NotificationForwarder.TYPE_INDICATION, chr.getValHandle());
 
             req = enableIndications(chr.getCharacteristic());
 
@@ -405,6 +565,35 @@ public class BleConnectionManager extends BleManager  {
         return super.writeDescriptor(descriptor, data);
     }
 
+    @NonNull
+    @Override
+    protected ReliableWriteRequest beginReliableWrite() {
+        return super.beginReliableWrite();
+    }
+
+    @NonNull
+    @Override
+    protected MtuRequest requestMtu(int mtu) {
+        return super.requestMtu(mtu);
+    }
+
+    @NonNull
+    @Override
+    protected ConnectionPriorityRequest requestConnectionPriority(int priority) {
+        return super.requestConnectionPriority(priority);
+    }
+
+    @NonNull
+    @Override
+    protected PhyRequest setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        return super.setPreferredPhy(txPhy, rxPhy, phyOptions);
+    }
+
+    @Override
+    protected int getMtu() {
+        return super.getMtu();
+    }
+
     @Override
     protected Request refreshDeviceCache() {
         return super.refreshDeviceCache();
@@ -423,8 +612,7 @@ public class BleConnectionManager extends BleManager  {
     @Override
     protected void onPairingRequestReceived(@NonNull BluetoothDevice device, int variant) {
         super.onPairingRequestReceived(device, variant);
-        Log.d(GAP_TAG, String.format("onPairingRequestReceived %s %s", device,
-                pairingVariantToString(variant)));
+        Trace.d(GAP_TAG, "onPairingRequestReceived %s %s", device, pairingVariantToString(variant));
     }
 
     /**
@@ -433,18 +621,26 @@ public class BleConnectionManager extends BleManager  {
     private final BleManagerGattCallback mGattCallback = new BleManagerGattCallback() {
         @Override
         protected void initialize() {
+            LinkProfile profile = mLinkProfile;
+            if (profile != null) {
+                applyLinkProfile(profile);
+            } else if (mTargetMtu > ATT_DEFAULT_MTU) {
+                exchangeMtu();
+            }
         }
 
         @Override
         public boolean isRequiredServiceSupported(@NonNull final BluetoothGatt gatt) {
-            Log.d(GATT_TAG, String.format("isRequiredServiceSupported %s", gatt));
-            mServices = Utils.initializeGattDB(gatt.getServices());
+            Trace.d(GATT_TAG, "isRequiredServiceSupported %s", gatt);
+            List<GattDBService> services = Utils.initializeGattDB(gatt.getServices());
+            mIndex = GattDBIndex.build(services);
+            mServices = services;
             return true;
         }
 
         @Override
         protected void onDeviceDisconnected() {
-            Log.d(GAP_TAG, "onDeviceDisconnected");
+            Trace.d(GAP_TAG, "onDeviceDisconnected");
         }
     };
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides which session owns a remote device.
+ * <p>
+ * All sessions share the same Bluetooth adapter, so connection and pairing callbacks for a
+ * device reach every session. The first session to connect to a device, or to see it connect,
+ * owns it until the link goes down, other sessions ignore its events and can't connect to it.
+ * <p>
+ * The adapter has a single GATT database and advertising set as well, so only one session at a
+ * time may open the GATT server, register services and advertise. Scanning isn't arbitrated,
+ * every session runs its own scan and the stack delivers results to each of them.
+ */
+public class ConnectionArbiter {
+    private final Map<String, Object> owners = new ConcurrentHashMap<>();
+    private final AtomicReference<Object> serverOwner = new AtomicReference<>();
+
+    /**
+     * Claims the device for the owner.
+     *
+     * @return false if another owner holds the device already.
+     */
+    public boolean acquire(String addr, Object owner) {
+        Object current = owners.putIfAbsent(addr, owner);
+        return current == null || current == owner;
+    }
+
+    public void release(String addr, Object owner) {
+        owners.remove(addr, owner);
+    }
+
+    public void releaseAll(Object owner) {
+        owners.values().removeIf(current -> current == owner);
+        releaseServer(owner);
+    }
+
+    /**
+     * Claims the GATT server and advertiser for the owner.
+     *
+     * @return false if another owner holds them already.
+     */
+    public boolean acquireServer(Object owner) {
+        return serverOwner.compareAndSet(null, owner) || serverOwner.get() == owner;
+    }
+
+    public void releaseServer(Object owner) {
+        serverOwner.compareAndSet(owner, null);
+    }
+
+    public boolean isServerOwner(Object owner) {
+        return serverOwner.get() == owner;
+    }
+
+    /**
+     * @return true if the device is held by an owner other than the given one.
+     */
+    public boolean isOwnedByOther(String addr, Object owner) {
+        Object current = owners.get(addr);
+        return current != null && current != owner;
+    }
+
+    public int size() {
+        return owners.size();
+    }
+}
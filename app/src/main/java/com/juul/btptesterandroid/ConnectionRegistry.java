@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Central role connections of a session, keyed by the 48-bit device address packed into a
+ * long.
+ * <p>
+ * The table uses open addressing with linear probing over primitive keys, so looking a
+ * connection up straight from the address bytes of a BTP command doesn't allocate. Every link
+ * also tracks its state and a few counters.
+ */
+public class ConnectionRegistry {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private static final int INITIAL_CAPACITY = 16;
+    /* Set on every stored key, so an empty slot (0) never matches an address */
+    private static final long USED = 1L << 48;
+
+    public static final class Link {
+        final long address;
+        final BleConnectionManager manager;
+        volatile int state = STATE_CONNECTING;
+        volatile long connectedAtNanos;
+        volatile int mtu = Att.ATT_DEFAULT_MTU;
+        long lookups;
+        long connects;
+        long disconnects;
+
+        Link(long address, BleConnectionManager manager) {
+            this.address = address;
+            this.manager = manager;
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public BleConnectionManager getManager() {
+            return manager;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        public long getConnectedAtNanos() {
+            return connectedAtNanos;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        public synchronized long getLookups() {
+            return lookups;
+        }
+
+        public synchronized long getConnects() {
+            return connects;
+        }
+
+        public synchronized long getDisconnects() {
+            return disconnects;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%012x state=%d mtu=%d lookups=%d connects=%d disconnects=%d",
+                    address, state, mtu, lookups, connects, disconnects);
+        }
+    }
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Link[] links = new Link[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Registers a new connection attempt, replacing the link previously known for the address.
+     */
+    public synchronized Link put(long address, BleConnectionManager manager) {
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+
+        Link link = new Link(address, manager);
+        long key = address | USED;
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+
+        if (keys[i] == 0) {
+            size++;
+        }
+        keys[i] = key;
+        links[i] = link;
+        return link;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Link[] oldLinks = links;
+        keys = new long[capacity];
+        links = new Link[capacity];
+        int mask = capacity - 1;
+
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) {
+                continue;
+            }
+
+            int i = hash(oldKeys[j], mask);
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            links[i] = oldLinks[j];
+        }
+    }
+
+    public synchronized Link get(long address) {
+        int i = indexOf(address | USED);
+        return i < 0 ? null : links[i];
+    }
+
+    public Link get(byte[] address) {
+        return get(BdAddr.fromBytes(address));
+    }
+
+    /**
+     * Looks up the connection manager for the address and counts the lookup on its link.
+     */
+    public BleConnectionManager find(byte[] address) {
+        return find(BdAddr.fromBytes(address));
+    }
+
+    /**
+     * Looks up the connection manager for the address and counts the lookup on its link.
+     */
+    public synchronized BleConnectionManager find(long address) {
+        int i = indexOf(address | USED);
+        if (i < 0) {
+            return null;
+        }
+
+        Link link = links[i];
+        synchronized (link) {
+            link.lookups++;
+        }
+        return link.manager;
+    }
+
+    public synchronized Link remove(long address) {
+        int i = indexOf(address | USED);
+        if (i < 0) {
+            return null;
+        }
+
+        Link link = links[i];
+        int mask = keys.length - 1;
+
+        /* Shift the following entries of the probe sequence back into the hole */
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (keys[j] != 0) {
+            int home = hash(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                links[hole] = links[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[hole] = 0;
+        links[hole] = null;
+        size--;
+
+        return link;
+    }
+
+    public void setState(long address, int state) {
+        Link link = get(address);
+        if (link == null) {
+            return;
+        }
+
+        synchronized (link) {
+            if (state == STATE_CONNECTED && link.state != STATE_CONNECTED) {
+                link.connects++;
+                link.connectedAtNanos = System.nanoTime();
+            } else if (state == STATE_DISCONNECTED && link.state == STATE_CONNECTED) {
+                link.disconnects++;
+            }
+            link.state = state;
+            if (state == STATE_DISCONNECTED) {
+                link.mtu = Att.ATT_DEFAULT_MTU;
+            }
+        }
+    }
+
+    public void setMtu(long address, int mtu) {
+        Link link = get(address);
+        if (link != null) {
+            link.mtu = mtu;
+        }
+    }
+
+    public synchronized List<Link> getLinks() {
+        List<Link> result = new ArrayList<>(size);
+        for (Link link : links) {
+            if (link != null) {
+                result.add(link);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Devices seen during discovery, bounded in size and age.
+ * <p>
+ * Only a compact record is kept per device instead of the whole scan result. When the cache
+ * is full the least recently seen or looked up device is evicted. While discovery runs,
+ * devices not seen for longer than the maximum age are dropped when touched and on every
+ * insertion. Once discovery is stopped devices no longer age, they are kept until the next
+ * discovery clears the cache, so they can still be connected to.
+ * Timestamps are {@link android.os.SystemClock#elapsedRealtimeNanos()} based, like the ones
+ * of scan results.
+ */
+public class DiscoveredDeviceCache {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_MAX_AGE_MS = 60000;
+
+    public static final class DiscoveredDevice {
+        final String bdAddr;
+        /* BTP byte order */
+        final byte[] address;
+        final long firstSeenNanos;
+        long lastSeenNanos;
+        int rssi;
+
+        /* AD payload last reported to the tester, see ScanCoalescer */
+        byte[] payload;
+        int payloadLength;
+        int payloadHash;
+        long lastReportNanos;
+
+        DiscoveredDevice(String bdAddr, long nowNanos) {
+            this.bdAddr = bdAddr;
+            this.address = Utils.btAddrToBytes(bdAddr);
+            this.firstSeenNanos = nowNanos;
+            this.lastSeenNanos = nowNanos;
+        }
+
+        public String getBdAddr() {
+            return bdAddr;
+        }
+
+        public byte[] getAddress() {
+            return address;
+        }
+
+        public long getFirstSeenNanos() {
+            return firstSeenNanos;
+        }
+
+        public long getLastSeenNanos() {
+            return lastSeenNanos;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payloadLength;
+        }
+    }
+
+    private final int capacity;
+    private final long maxAgeNanos;
+    private final LinkedHashMap<String, DiscoveredDevice> devices;
+
+    private boolean aging = true;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public DiscoveredDeviceCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MS);
+    }
+
+    public DiscoveredDeviceCache(int capacity, long maxAgeMs) {
+        this.capacity = capacity;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        this.devices = new LinkedHashMap<String, DiscoveredDevice>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DiscoveredDevice> eldest) {
+                if (size() > DiscoveredDeviceCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private boolean isExpired(DiscoveredDevice device, long nowNanos) {
+        return aging && nowNanos - device.lastSeenNanos > maxAgeNanos;
+    }
+
+    /**
+     * Turns aging on while discovery runs, and off once it stops.
+     */
+    public synchronized void setAging(boolean aging) {
+        this.aging = aging;
+    }
+
+    private void expire(long nowNanos) {
+        Iterator<DiscoveredDevice> it = devices.values().iterator();
+        while (it.hasNext()) {
+            /* Recently seen devices are at the tail, stop at the first live one */
+            if (!isExpired(it.next(), nowNanos)) {
+                break;
+            }
+            it.remove();
+            expirations++;
+        }
+    }
+
+    /**
+     * Records a sighting of the device.
+     *
+     * @return the record of the device, created if it wasn't known or had expired.
+     */
+    public synchronized DiscoveredDevice seen(String bdAddr, int rssi, long nowNanos) {
+        DiscoveredDevice device = devices.get(bdAddr);
+        if (device == null || isExpired(device, nowNanos)) {
+            expire(nowNanos);
+            device = new DiscoveredDevice(bdAddr, nowNanos);
+            devices.put(bdAddr, device);
+        }
+
+        device.lastSeenNanos = nowNanos;
+        device.rssi = rssi;
+        return device;
+    }
+
+    public synchronized DiscoveredDevice find(String bdAddr, long nowNanos) {
+        DiscoveredDevice device = devices.get(bdAddr);
+        if (device != null && isExpired(device, nowNanos)) {
+            devices.remove(bdAddr);
+            expirations++;
+            device = null;
+        }
+
+        if (device == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return device;
+    }
+
+    public synchronized void clear() {
+        devices.clear();
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d hits=%d misses=%d evictions=%d expirations=%d",
+                devices.size(), hits, misses, evictions, expirations);
+    }
+}
@@ -36,26 +36,26 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.juul.btptesterandroid.DiscoveredDeviceCache.DiscoveredDevice;
 import com.juul.btptesterandroid.gatt.GattDBCharacteristic;
 import com.juul.btptesterandroid.gatt.GattDBDescriptor;
 import com.juul.btptesterandroid.gatt.GattDBIncludeService;
+import com.juul.btptesterandroid.gatt.GattDBServerTable;
 import com.juul.btptesterandroid.gatt.GattDBService;
 
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import no.nordicsemi.android.ble.BleManagerCallbacks;
 import no.nordicsemi.android.ble.ConnectRequest;
-import no.nordicsemi.android.ble.callback.DataReceivedCallback;
+import no.nordicsemi.android.ble.RequestQueue;
 import no.nordicsemi.android.ble.data.Data;
 import no.nordicsemi.android.ble.exception.BluetoothDisabledException;
 import no.nordicsemi.android.ble.exception.DeviceDisconnectedException;
@@ -102,6 +102,7 @@ import static com.juul.btptesterandroid.BTP.GAP_SETTINGS_STATIC_ADDRESS;
 import static com.juul.btptesterandroid.BTP.GAP_SET_CONNECTABLE;
 import static com.juul.btptesterandroid.BTP.GAP_SET_DISCOVERABLE;
 import static com.juul.btptesterandroid.BTP.GAP_SET_IO_CAP;
+import static com.juul.btptesterandroid.BTP.GAP_SET_LINK_PROFILE;
 import static com.juul.btptesterandroid.BTP.GAP_START_ADVERTISING;
 import static com.juul.btptesterandroid.BTP.GAP_START_DISCOVERY;
 import static com.juul.btptesterandroid.BTP.GAP_STOP_ADVERTISING;
@@ -120,9 +121,12 @@ import static com.juul.btptesterandroid.BTP.GATT_DISC_CHRC_UUID;
 import static com.juul.btptesterandroid.BTP.GATT_DISC_FIND_INCLUDED;
 import static com.juul.btptesterandroid.BTP.GATT_DISC_PRIM_UUID;
 import static com.juul.btptesterandroid.BTP.GATT_EV_ATTR_VALUE_CHANGED;
-import static com.juul.btptesterandroid.BTP.GATT_EV_NOTIFICATION;
+import static com.juul.btptesterandroid.BTP.GATT_EV_MTU_CHANGED;
+import static com.juul.btptesterandroid.BTP.GATT_EV_PIPELINE_RESULT;
+import static com.juul.btptesterandroid.BTP.GATT_EXCHANGE_MTU;
 import static com.juul.btptesterandroid.BTP.GATT_GET_ATTRIBUTES;
 import static com.juul.btptesterandroid.BTP.GATT_GET_ATTRIBUTE_VALUE;
+import static com.juul.btptesterandroid.BTP.GATT_PIPELINE;
 import static com.juul.btptesterandroid.BTP.GATT_READ;
 import static com.juul.btptesterandroid.BTP.GATT_READ_LONG;
 import static com.juul.btptesterandroid.BTP.GATT_READ_SUPPORTED_COMMANDS;
@@ -131,25 +135,43 @@ import static com.juul.btptesterandroid.BTP.GATT_START_SERVER;
 import static com.juul.btptesterandroid.BTP.GATT_WRITE;
 import static com.juul.btptesterandroid.BTP.GATT_WRITE_LONG;
 import static com.juul.btptesterandroid.Utils.btAddrToBytes;
-import static com.juul.btptesterandroid.Utils.bytesToHex;
 import static com.juul.btptesterandroid.Utils.clearBit;
 import static com.juul.btptesterandroid.Utils.setBit;
 import static com.juul.btptesterandroid.Utils.testBit;
 
-public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
+public class GAP implements GapService, BleManagerCallbacks, IGattServerCallbacks {
 
     public static final String GATT_TAG = "GATT";
     public static final String GAP_TAG = "GAP";
-    private Context context;
+    private final Context context;
     private BTTester tester = null;
-    private BluetoothAdapter bleAdapter = null;
-    private BluetoothManager bleManager = null;
-
-    private Map<String, BleConnectionManager> connectionsMap;
+    private ConnectionArbiter arbiter = null;
+    private final BluetoothAdapter bleAdapter;
+    private final BluetoothManager bleManager;
+
+    /*
+     * GAP and GATT commands are handled on separate threads. State both of them use is
+     * thread-safe, the rest belongs to one of them. init, unregister and cleanup run while both
+     * are held back, see BTPDispatcher#executeExclusive.
+     */
+    private ConnectionRegistry connections;
+    /* BTP address bytes of connected peers, events are sent for them all the time */
+    private final Map<String, byte[]> peerAddresses = new ConcurrentHashMap<>();
+    /* Last ATT MTU reported for each peer */
+    private final Map<String, Integer> peerMtus = new ConcurrentHashMap<>();
+    private volatile int targetMtu = Att.ATT_DEFAULT_MTU;
+    private long scanIntervalMs = ScanCoalescer.DEFAULT_MIN_INTERVAL_MS;
+    /* The vendor MTU event is only sent to clients that asked for MTU exchanges */
+    private volatile boolean mtuEvents = false;
+    /* Link profiles picked for peers, keyed by packed address */
+    private final Map<Long, LinkProfile> linkProfiles = new ConcurrentHashMap<>();
+    /* Keyed by peer address and CCC descriptor handle */
+    private final Map<Long, NotificationForwarder> subscriptions = new ConcurrentHashMap<>();
     private Set<BluetoothDevice> processedDevices;
 
     private BluetoothGattServer gattServer;
     private BTPGattServerCallback gattServerCallback;
+    private GattDBServerTable serverTable;
     private BluetoothLeScannerCompat scanner;
     private ScanConnectCallback scanCallback;
     private BluetoothLeAdvertiser advertiser;
@@ -167,32 +189,50 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     private byte[] currentSettings = new byte[4];
     private int pairingVariant;
 
-    public byte init(Context context, BTTester tester, BluetoothAdapter bleAdapter,
-                     BluetoothManager bleManager) {
+    public GAP(Context context, BluetoothAdapter bleAdapter, BluetoothManager bleManager) {
         this.context = context;
-        this.tester = tester;
         this.bleAdapter = bleAdapter;
         this.bleManager = bleManager;
+    }
+
+    @Override
+    public byte init(BTTester tester) {
+        this.tester = tester;
+        this.arbiter = tester.getArbiter();
 
+        /* Services get appended from onServiceAdded, so the table must exist before the
+         * test services are registered below.
+         */
+        this.serverTable = new GattDBServerTable(Utils.getCoreGattServices());
         this.gattServerCallback = new BTPGattServerCallback(this);
-        this.gattServer = this.bleManager.openGattServer(context, gattServerCallback);
-        this.gattServerCallback.setGattServer(this.gattServer);
+        this.gattServerCallback.setServerTable(this.serverTable);
         this.gattServerCallback.setGattAttributeValueChangedCallback(this);
 
-        if (this.gattServer == null) {
-            return BTP_STATUS_FAILED;
+        /* The adapter has one GATT database, sessions other than its owner work as central
+         * only and can't register services or advertise.
+         */
+        if (arbiter.acquireServer(tester)) {
+            this.gattServer = this.bleManager.openGattServer(context, gattServerCallback);
+            if (this.gattServer == null) {
+                arbiter.releaseServer(tester);
+                return BTP_STATUS_FAILED;
+            }
+            this.gattServerCallback.setGattServer(this.gattServer);
+        } else {
+            Trace.d(GAP_TAG, "GATT server is owned by another session");
         }
 
         attributeCount = 0;
         addedServices = new ArrayList<>();
-        processedDevices = new HashSet<>();
+        processedDevices = ConcurrentHashMap.newKeySet();
 
         this.scanner = BluetoothLeScannerCompat.getScanner();
-        this.scanCallback = new ScanConnectCallback();
+        this.scanCallback = new ScanConnectCallback(bleAdapter, new DiscoveredDeviceCache(),
+                new ScanCoalescer(scanIntervalMs));
 
         this.advertiser = BluetoothAdapter.getDefaultAdapter().getBluetoothLeAdvertiser();
 
-        connectionsMap = new HashMap<>();
+        connections = new ConnectionRegistry();
 
         pairingVariant = PAIRING_VARIANT_CONSENT;
 
@@ -205,8 +245,15 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         return BTP_STATUS_SUCCESS;
     }
 
-    public BleConnectionManager findConnection(String addr) {
-        return connectionsMap.getOrDefault(addr, null);
+    /**
+     * @param address device address as left by the BTP command parsers
+     */
+    public BleConnectionManager findConnection(byte[] address) {
+        return connections.find(address);
+    }
+
+    public BleConnectionManager findConnection(long address) {
+        return connections.find(address);
     }
 
     private void unpairDevice(BluetoothDevice dev) {
@@ -219,14 +266,19 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         }
     }
 
+    @Override
     public void cleanup() {
         try {
-            for (Map.Entry<String, BleConnectionManager> entry : connectionsMap.entrySet()) {
-                BleConnectionManager mng = entry.getValue();
+            for (ConnectionRegistry.Link link : connections.getLinks()) {
+                BleConnectionManager mng = link.getManager();
+                Trace.d(GAP_TAG, "cleanup %s", link);
                 if (mng == null) {
                     continue;
                 }
 
+                Trace.d(GATT_TAG, "cleanup %s", mng.getLongAttributes());
+                Trace.d(GAP_TAG, "cleanup %s", mng.getLinkParameters());
+
                 if (mng.isConnected()) {
                     mng.disconnect().await();
                 }
@@ -250,6 +302,16 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             e.printStackTrace();
         }
 
+        if (gattServerCallback != null) {
+            Trace.d(GATT_TAG, "cleanup %s", gattServerCallback.getNotifications());
+            Trace.d(GATT_TAG, "cleanup %s", gattServerCallback.getReads());
+            Trace.d(GATT_TAG, "cleanup %s", gattServerCallback.getPrepWrites());
+            for (GattServerSession session : gattServerCallback.getSessions()) {
+                Trace.d(GATT_TAG, "cleanup session %s", session);
+            }
+            gattServerCallback.getNotifications().close();
+        }
+
         if (gattServer != null) {
             gattServer.clearServices();
             gattServer.close();
@@ -261,14 +323,67 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
         this.context.unregisterReceiver(incomingPairRequestReceiver);
         this.context.unregisterReceiver(bondStateChangedReceiver);
+
+        peerAddresses.clear();
+        peerMtus.clear();
+        linkProfiles.clear();
+        for (NotificationForwarder forwarder : subscriptions.values()) {
+            Trace.d(GATT_TAG, "subscription %s", forwarder);
+        }
+        subscriptions.clear();
+        arbiter.releaseAll(tester);
     }
 
+    /**
+     * Sets the MTU requested on connections made from now on, the default ATT MTU disables
+     * the exchange on connect. A larger MTU also turns on the vendor MTU event.
+     */
+    @Override
+    public void setTargetMtu(int mtu) {
+        targetMtu = mtu;
+        if (mtu > Att.ATT_DEFAULT_MTU) {
+            mtuEvents = true;
+        }
+    }
+
+    /**
+     * Sets how often a device found event may be reported per device, takes effect on
+     * {@link #init}. 0 reports every changed advertising payload.
+     */
+    @Override
+    public void setScanInterval(long intervalMs) {
+        scanIntervalMs = intervalMs;
+    }
+
+    public List<NotificationForwarder> getSubscriptions() {
+        return new ArrayList<>(subscriptions.values());
+    }
+
+    /**
+     * @return little endian BTP address of the device, shared and not to be modified.
+     */
+    private byte[] btpAddress(BluetoothDevice device) {
+        byte[] addr = peerAddresses.get(device.getAddress());
+        if (addr == null) {
+            addr = BdAddr.toBtp(device.getAddress());
+        }
+        return addr;
+    }
+
+    /**
+     * @return true if the device belongs to another session sharing the adapter.
+     */
+    private boolean isForeignDevice(BluetoothDevice device) {
+        return arbiter.isOwnedByOther(device.getAddress(), tester);
+    }
+
+    @Override
     public byte unregister() {
         return BTP_STATUS_SUCCESS;
     }
 
     public void supportedCommandsGAP(ByteBuffer data) {
-        byte[] cmds = new byte[3];
+        byte[] cmds = new byte[GAP_SET_LINK_PROFILE / 8 + 1];
 
         setBit(cmds, GAP_READ_SUPPORTED_COMMANDS);
         setBit(cmds, GAP_READ_CONTROLLER_INDEX_LIST);
@@ -284,6 +399,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         setBit(cmds, GAP_SET_IO_CAP);
         setBit(cmds, GAP_PAIR);
         setBit(cmds, GAP_UNPAIR);
+        setBit(cmds, GAP_SET_LINK_PROFILE);
 
         tester.sendMessage(BTP_SERVICE_ID_GAP, GAP_READ_SUPPORTED_COMMANDS, CONTROLLER_INDEX,
                 cmds);
@@ -304,7 +420,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     public void controllerInfo(ByteBuffer data) {
         BTP.GapReadControllerInfoRp rp = new BTP.GapReadControllerInfoRp();
 
-        Log.d(GAP_TAG, String.format("device address '%s'", bleAdapter.getAddress()));
+        Trace.d(GAP_TAG, "device address '%s'", bleAdapter.getAddress());
         byte[] addr = btAddrToBytes(bleAdapter.getAddress());
         System.arraycopy(addr, 0, rp.address, 0, rp.address.length);
 
@@ -347,7 +463,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
             super.onStartSuccess(settingsInEffect);
 
-            Log.d(GAP_TAG, "Advertise onStartSuccess");
+            Trace.d(GAP_TAG, "Advertise onStartSuccess");
 
             if (opcode == GAP_START_ADVERTISING) {
                 setBit(currentSettings, GAP_SETTINGS_ADVERTISING);
@@ -365,7 +481,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         public void onStartFailure(int errorCode) {
             super.onStartFailure(errorCode);
 
-            Log.d(GAP_TAG, "Advertise onStartSuccess");
+            Trace.d(GAP_TAG, "Advertise onStartSuccess");
 
             tester.response(BTP_SERVICE_ID_GAP, GAP_START_ADVERTISING, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
@@ -380,7 +496,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        Log.d(GAP_TAG, String.format("setConnectable 0x%02x", cmd.connectable));
+        Trace.d(GAP_TAG, "setConnectable 0x%02x", cmd.connectable);
 
         if (cmd.connectable > 0) {
             setBit(currentSettings, GAP_SETTINGS_CONNECTABLE);
@@ -402,7 +518,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        Log.d(GAP_TAG, String.format("setDiscoverable 0x%02x", cmd.discoverable));
+        Trace.d(GAP_TAG, "setDiscoverable 0x%02x", cmd.discoverable);
 
         if (cmd.discoverable != GAP_GENERAL_DISCOVERABLE) {
             tester.response(BTP_SERVICE_ID_GAP, GAP_SET_DISCOVERABLE, CONTROLLER_INDEX,
@@ -424,8 +540,14 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        Log.d(GAP_TAG, String.format("startAdvertising 0x%02x 0x%02x", cmd.advDataLen,
-                cmd.scanRspDataLen));
+        Trace.d(GAP_TAG, "startAdvertising 0x%02x 0x%02x", cmd.advDataLen, cmd.scanRspDataLen);
+
+        if (gattServer == null) {
+            Log.e(GAP_TAG, "startAdvertising: GATT server is owned by another session");
+            tester.response(BTP_SERVICE_ID_GAP, GAP_START_ADVERTISING, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
 
         gattServerCallback.isPeripheral();
 
@@ -447,7 +569,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     public void stopAdvertising(ByteBuffer data) {
-        Log.d(GAP_TAG, "stopAdvertising 0x%02x 0x%02x");
+        Trace.d(GAP_TAG, "stopAdvertising 0x%02x 0x%02x");
+        if (advertiseCallback == null) {
+            tester.response(BTP_SERVICE_ID_GAP, GAP_STOP_ADVERTISING, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
         advertiser.stopAdvertising(advertiseCallback);
     }
 
@@ -458,7 +585,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        Log.d(GAP_TAG, String.format("startDiscovery 0x%02x", cmd.flags));
+        Trace.d(GAP_TAG, "startDiscovery 0x%02x", cmd.flags);
 
         ScanSettings settings = new ScanSettings.Builder()
                 .setLegacy(false)
@@ -481,8 +608,11 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     public void stopDiscovery(ByteBuffer data) {
-        Log.d(GAP_TAG, "stopDiscovery");
+        Trace.d(GAP_TAG, "stopDiscovery");
         scanner.stopScan(scanCallback);
+        scanCallback.discoveryStopped();
+        Trace.d(GAP_TAG, "scan results %s; devices %s", scanCallback.getCoalescer(),
+                scanCallback.getDevices());
         if (scanCallback.getErrorCode() != 0) {
             tester.response(BTP_SERVICE_ID_GAP, GAP_STOP_DISCOVERY, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
@@ -500,13 +630,21 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        String bdAddr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GAP_TAG, String.format("connect %d %s", cmd.addressType,
-                Utils.bytesToHex(cmd.address)));
+        long address = BdAddr.fromBytes(cmd.address);
+        /* The scan cache, the arbiter and the Android API take the address as a string */
+        String bdAddr = BdAddr.toString(address);
+        Trace.d(GAP_TAG, "connect %d %s", cmd.addressType, bdAddr);
 
         BluetoothDevice device = scanCallback.findDiscoveredDevice(bdAddr);
         if (device == null) {
-            Log.d(GAP_TAG, "Connect: device not found");
+            Trace.d(GAP_TAG, "Connect: device not found");
+            tester.response(BTP_SERVICE_ID_GAP, GAP_CONNECT, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
+
+        if (!arbiter.acquire(bdAddr, tester)) {
+            Log.e(GAP_TAG, String.format("Connect: %s is used by another session", bdAddr));
             tester.response(BTP_SERVICE_ID_GAP, GAP_CONNECT, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
@@ -514,12 +652,26 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
         BleConnectionManager mng = new BleConnectionManager(this.context);
         mng.setGattCallbacks(this);
+        mng.setTargetMtu(targetMtu, this::mtuChanged);
+        LinkProfile profile = linkProfiles.get(address);
+        if (profile != null) {
+            mng.setLinkProfile(profile);
+        }
         gattServerCallback.isCentral();
+        connections.put(address, mng);
+
         ConnectRequest req = mng.connect(device);
+        req.fail((d, status) -> {
+            Log.e(GAP_TAG, String.format("Connect to %s failed %d", bdAddr, status));
+            arbiter.release(bdAddr, tester);
+            ConnectionRegistry.Link link = connections.get(address);
+            if (link != null && link.getManager() == mng) {
+                connections.remove(address);
+            }
+            mng.close();
+        });
         req.enqueue();
 
-        connectionsMap.put(bdAddr, mng);
-
         tester.response(BTP_SERVICE_ID_GAP, GAP_CONNECT,
                 CONTROLLER_INDEX, BTP_STATUS_SUCCESS);
     }
@@ -531,10 +683,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GAP_TAG, String.format("disconnect %d %s", cmd.addressType, addr));
+        Trace.d(GAP_TAG, "disconnect %d %s", cmd.addressType, cmd.address);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GAP, GAP_DISCONNECT,
@@ -555,7 +706,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        Log.d(GAP_TAG, String.format("set io cap %d", cmd.ioCap));
+        Trace.d(GAP_TAG, "set io cap %d", cmd.ioCap);
 
         tester.response(BTP_SERVICE_ID_GAP, GAP_SET_IO_CAP,
                 CONTROLLER_INDEX, BTP_STATUS_SUCCESS);
@@ -568,14 +719,14 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GAP_TAG, String.format("pair %d %s", cmd.addressType,
-                addr));
+        long address = BdAddr.fromBytes(cmd.address);
+        Trace.d(GAP_TAG, "pair %d %012x", cmd.addressType, address);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(address);
         if (mng == null) {
-            Log.d(GATT_TAG, "No BleConnectionManager found for " + addr
-                    + " looking in Bluetooth connected devices");
+            String addr = BdAddr.toString(address);
+            Trace.d(GATT_TAG, "No BleConnectionManager found for %s looking in Bluetooth " +
+                    "connected devices", addr);
             // When the connection isn't initiated from the device, BleConnectionManager will not be
             // created for the device, we need to look in BluetoothManager's connected devices.
             BluetoothDevice device = bleAdapter.getRemoteDevice(addr);
@@ -585,7 +736,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             if (connectedDevices.contains(device)) {
                 device.createBond();
             } else {
-                Log.d(GATT_TAG, "Connection not found");
+                Trace.d(GATT_TAG, "Connection not found");
                 tester.response(BTP_SERVICE_ID_GAP, GAP_PAIR,
                         CONTROLLER_INDEX, BTP_STATUS_FAILED);
                 return;
@@ -605,11 +756,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GAP_TAG, String.format("unpair %d %s", cmd.addressType,
-                addr));
+        Trace.d(GAP_TAG, "unpair %d %s", cmd.addressType, cmd.address);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GAP, GAP_UNPAIR,
@@ -631,12 +780,11 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
         String passkey = String.format("%06d", cmd.passkey);
 
-        Log.d(GAP_TAG, String.format("passkeyEntry %d %s %s", cmd.addressType, addr, passkey));
+        Trace.d(GAP_TAG, "passkeyEntry %d %s %s", cmd.addressType, cmd.address, passkey);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GAP, GAP_PASSKEY_ENTRY,
@@ -657,10 +805,8 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
 
-        Log.d(GAP_TAG, String.format("passkeyConfirm %d %s %d",
-                cmd.addressType, addr, cmd.match));
+        Trace.d(GAP_TAG, "passkeyConfirm %d %s %d", cmd.addressType, cmd.address, cmd.match);
 
         /* Requires BLUETOOTH_PRIVILEGED, so this doesn't work */
         /* mng.getBluetoothDevice().setPairingConfirmation(true); */
@@ -669,84 +815,123 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                 CONTROLLER_INDEX, BTP_STATUS_SUCCESS);
     }
 
-    public void deviceFound(@NonNull ScanResult result) {
-        Log.d(GAP_TAG, String.format("deviceFound %s", result));
+    private void setLinkProfile(ByteBuffer data) {
+        BTP.GapSetLinkProfileCmd cmd = BTP.GapSetLinkProfileCmd.parse(data);
+        if (cmd == null) {
+            tester.response(BTP_SERVICE_ID_GAP, GAP_SET_LINK_PROFILE, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
+
+        Trace.d(GAP_TAG, "setLinkProfile %d %s %d", cmd.addressType, cmd.address, cmd.profile);
+
+        LinkProfile profile = LinkProfile.fromId(cmd.profile);
+        if (profile == null) {
+            tester.response(BTP_SERVICE_ID_GAP, GAP_SET_LINK_PROFILE, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
+
+        /* Applied now if connected, otherwise by the next connect to the device */
+        mtuEvents = true;
+        linkProfiles.put(BdAddr.fromBytes(cmd.address), profile);
+        BleConnectionManager mng = findConnection(cmd.address);
+        if (mng != null) {
+            mng.setLinkProfile(profile);
+        }
+
+        tester.response(BTP_SERVICE_ID_GAP, GAP_SET_LINK_PROFILE,
+                CONTROLLER_INDEX, BTP_STATUS_SUCCESS);
+    }
+
+    public void deviceFound(@NonNull ScanResult result, @NonNull DiscoveredDevice device) {
+        Trace.d(GAP_TAG, "deviceFound %s", result);
 
         BTP.GapDeviceFoundEv ev = new BTP.GapDeviceFoundEv();
-        BluetoothDevice device = result.getDevice();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
-        System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
+        System.arraycopy(device.getAddress(), 0, ev.address, 0, ev.address.length);
 
-        ev.rssi = (byte) result.getRssi();
+        ev.rssi = (byte) device.getRssi();
         if (result.getScanRecord() != null) {
             ev.flags = (byte) result.getScanRecord().getAdvertiseFlags();
         }
 
-        if (result.getScanRecord() != null &&
-                result.getScanRecord().getBytes() != null) {
-            byte[] data = result.getScanRecord().getBytes();
-            ev.eirDataLen = (short) data.length;
-            ev.eirData = Arrays.copyOf(data, data.length);
-        }
+        /* The scan record isn't modified afterwards, no need to copy it */
+        ev.eirDataLen = (short) device.getPayloadLength();
+        ev.eirData = device.getPayload();
 
-        tester.sendMessage(BTP_SERVICE_ID_GAP, GAP_EV_DEVICE_FOUND,
+        tester.sendEvent(BTP_SERVICE_ID_GAP, GAP_EV_DEVICE_FOUND,
                 CONTROLLER_INDEX, ev.toBytes());
     }
 
     @Override
     public void onDeviceConnecting(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onDeviceConnecting %s", device));
+        Trace.d(GAP_TAG, "onDeviceConnecting %s", device);
     }
 
     @Override
     public void onDeviceConnected(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onDeviceConnected %s", device));
+        Trace.d(GAP_TAG, "onDeviceConnected %s", device);
     }
 
     @Override
     public void onDeviceDisconnecting(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onDeviceDisconnecting %s", device));
+        Trace.d(GAP_TAG, "onDeviceDisconnecting %s", device);
     }
 
     @Override
     public void onDeviceDisconnected(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onDeviceDisconnected %s", device));
+        Trace.d(GAP_TAG, "onDeviceDisconnected %s", device);
+        if (isForeignDevice(device)) {
+            return;
+        }
+        arbiter.release(device.getAddress(), tester);
+        connections.setState(BdAddr.parse(device.getAddress()),
+                ConnectionRegistry.STATE_DISCONNECTED);
+
         BTP.GapDeviceDisconnectedEv ev = new BTP.GapDeviceDisconnectedEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         tester.sendMessage(BTP_SERVICE_ID_GAP, GAP_EV_DEVICE_DISCONNECTED,
                 CONTROLLER_INDEX, ev.toBytes());
+        peerAddresses.remove(device.getAddress());
+        peerMtus.remove(device.getAddress());
     }
 
     @Override
     public void onLinkLossOccurred(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onLinkLossOccured %s", device));
+        Trace.d(GAP_TAG, "onLinkLossOccured %s", device);
     }
 
     @Override
     public void onServicesDiscovered(@NonNull BluetoothDevice device,
                                      boolean optionalServicesFound) {
-        Log.d(GAP_TAG, String.format("onServicesDiscovered %s %b", device,
-                optionalServicesFound));
+        Trace.d(GAP_TAG, "onServicesDiscovered %s %b", device, optionalServicesFound);
     }
 
     @Override
     public void onDeviceReady(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onDeviceReady %s", device));
+        Trace.d(GAP_TAG, "onDeviceReady %s", device);
+        /* Peripheral connections are reported to the GATT servers of all sessions */
+        if (!arbiter.acquire(device.getAddress(), tester)) {
+            return;
+        }
         processedDevices.add(device);
+        long address = BdAddr.parse(device.getAddress());
+        peerAddresses.put(device.getAddress(), BdAddr.toBtp(address));
+        connections.setState(address, ConnectionRegistry.STATE_CONNECTED);
 
         BTP.GapDeviceConnectedEv ev = new BTP.GapDeviceConnectedEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         tester.sendMessage(BTP_SERVICE_ID_GAP, GAP_EV_DEVICE_CONNECTED,
@@ -762,12 +947,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     protected static final int PAIRING_VARIANT_OOB_CONSENT = 6;
 
     public void securityLevelChanged(BluetoothDevice device, int bondState) {
-        Log.d(GAP_TAG, String.format("securityLevelChanged %s %s", device, pairingVariant));
+        Trace.d(GAP_TAG, "securityLevelChanged %s %s", device, pairingVariant);
         BTP.GapSecLevelChangedEv ev = new BTP.GapSecLevelChangedEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
         ev.level = 1;
 
@@ -788,28 +973,28 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
     @Override
     public void onBondingRequired(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onBondingRequired %s", device));
+        Trace.d(GAP_TAG, "onBondingRequired %s", device);
     }
 
     @Override
     public void onBonded(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onBonded %s", device));
+        Trace.d(GAP_TAG, "onBonded %s", device);
         securityLevelChanged(device, device.getBondState());
     }
 
     @Override
     public void onBondingFailed(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onBondingFailed %s", device));
+        Trace.d(GAP_TAG, "onBondingFailed %s", device);
     }
 
     @Override
     public void onError(@NonNull BluetoothDevice device, @NonNull String message, int errorCode) {
-        Log.d(GAP_TAG, String.format("onError %s %s %d", device, message, errorCode));
+        Trace.d(GAP_TAG, "onError %s %s %d", device, message, errorCode);
     }
 
     @Override
     public void onDeviceNotSupported(@NonNull BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("onDeviceNotSupported %s", device));
+        Trace.d(GAP_TAG, "onDeviceNotSupported %s", device);
     }
 
     private final BroadcastReceiver bondStateChangedReceiver = new BroadcastReceiver() {
@@ -825,7 +1010,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                 int prevBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
                         BluetoothDevice.ERROR);
 
-                Log.d(GAP_TAG, String.format("bondStateChangedReceiver %s %d %d", dev, bondState, prevBondState));
+                Trace.d(GAP_TAG, "bondStateChangedReceiver %s %d %d", dev, bondState,
+                        prevBondState);
+
+                if (isForeignDevice(dev)) {
+                    return;
+                }
 
                 if (bondState == BOND_BONDED) {
                     securityLevelChanged(dev, bondState);
@@ -835,12 +1025,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     };
 
     public void passkeyEntryRequestEv(BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("passkeyEntryRequestEv %s", device));
+        Trace.d(GAP_TAG, "passkeyEntryRequestEv %s", device);
         BTP.GapPasskeyEntryEv ev = new BTP.GapPasskeyEntryEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         tester.sendMessage(BTP_SERVICE_ID_GAP, GAP_EV_PASSKEY_ENTRY_REQ,
@@ -848,12 +1038,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     public void passkeyDisplayEv(BluetoothDevice device, int passkey) {
-        Log.d(GAP_TAG, String.format("passkeyDisplayEv %s %d", device, passkey));
+        Trace.d(GAP_TAG, "passkeyDisplayEv %s %d", device, passkey);
         BTP.GapPasskeyDisplayEv ev = new BTP.GapPasskeyDisplayEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         ev.passkey = passkey;
@@ -863,12 +1053,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     public void passkeyConfirmEv(BluetoothDevice device, int passkey) {
-        Log.d(GAP_TAG, String.format("passkeyConfirmEv %s %d", device, passkey));
+        Trace.d(GAP_TAG, "passkeyConfirmEv %s %d", device, passkey);
         BTP.GapPasskeyConfirmEv ev = new BTP.GapPasskeyConfirmEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         ev.passkey = passkey;
@@ -878,12 +1068,12 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     public void pairingConsentEv(BluetoothDevice device) {
-        Log.d(GAP_TAG, String.format("pairingConsentEv %s", device));
+        Trace.d(GAP_TAG, "pairingConsentEv %s", device);
         BTP.GapPairingConsentEv ev = new BTP.GapPairingConsentEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         tester.sendMessage(BTP_SERVICE_ID_GAP, GAP_EV_PAIRING_CONSENT,
@@ -897,13 +1087,16 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             if (BluetoothDevice.ACTION_PAIRING_REQUEST.equals(action)) {
 
                 BluetoothDevice dev = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if (isForeignDevice(dev)) {
+                    return;
+                }
+
                 pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT,
                         BluetoothDevice.ERROR);
                 int passkey = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_KEY,
                         BluetoothDevice.ERROR);
 
-                Log.d(GAP_TAG, String.format("ActionPairingRequest %s %d %d", dev,
-                        pairingVariant, passkey));
+                Trace.d(GAP_TAG, "ActionPairingRequest %s %d %d", dev, pairingVariant, passkey);
 
                 switch (pairingVariant) {
                     case PAIRING_VARIANT_PIN:
@@ -930,13 +1123,14 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
     private void sendConnParamUpdateEv(BluetoothDevice device, int interval,
                                        int latency, int timeout, int status) {
-        Log.d(GAP_TAG, String.format("sendConnParamUpdateEv addr=%s interval=%d latency=%d " +
-                "timeout=%d status=%d", device, interval, latency, timeout, status));
+        Trace.d(GAP_TAG,
+                "sendConnParamUpdateEv addr=%s interval=%d latency=%d timeout=%d status=%d", device,
+                interval, latency, timeout, status);
         BTP.GapConnParamUpdateEv ev = new BTP.GapConnParamUpdateEv();
 
         ev.addressType = 0x01; /* assume random */
 
-        byte[] addr = btAddrToBytes(device.getAddress());
+        byte[] addr = btpAddress(device);
         System.arraycopy(addr, 0, ev.address, 0, ev.address.length);
 
         ev.connItvl = (short) interval;
@@ -953,6 +1147,31 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         sendConnParamUpdateEv(device, interval, latency, timeout, status);
     }
 
+    @Override
+    public void mtuChanged(BluetoothDevice device, int mtu) {
+        Trace.d(GATT_TAG, "mtuChanged %s %d", device, mtu);
+        if (isForeignDevice(device)) {
+            return;
+        }
+
+        connections.setMtu(BdAddr.parse(device.getAddress()), mtu);
+
+        /* Client and server side of a link both report the same exchange */
+        Integer old = peerMtus.put(device.getAddress(), mtu);
+        if (!mtuEvents || (old != null && old == mtu)) {
+            return;
+        }
+
+        BTP.GattMtuChangedEv ev = new BTP.GattMtuChangedEv();
+        ev.addressType = 0x01; /* assume random */
+        ev.address = btpAddress(device);
+        ev.mtu = (short) mtu;
+
+        tester.sendMessage(BTP_SERVICE_ID_GATT, GATT_EV_MTU_CHANGED, CONTROLLER_INDEX,
+                ev.toBytes());
+    }
+
+    @Override
     public void handleGAP(byte opcode, byte index, ByteBuffer data) {
         switch (opcode) {
             case GAP_READ_SUPPORTED_COMMANDS:
@@ -1019,6 +1238,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             case GAP_PASSKEY_CONFIRM:
                 passkeyConfirm(data);
                 break;
+            case GAP_SET_LINK_PROFILE:
+                setLinkProfile(data);
+                break;
             default:
                 tester.response(BTP_SERVICE_ID_GAP, opcode, index, BTP_STATUS_UNKNOWN_CMD);
                 break;
@@ -1026,7 +1248,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     public void supportedCommandsGATT(ByteBuffer data) {
-        byte[] cmds = new byte[4];
+        byte[] cmds = new byte[GATT_PIPELINE / 8 + 1];
 
         setBit(cmds, GATT_READ_SUPPORTED_COMMANDS);
         setBit(cmds, GATT_ADD_SERVICE);
@@ -1035,6 +1257,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         setBit(cmds, GATT_ADD_INCLUDED_SERVICE);
         setBit(cmds, GATT_SET_VALUE);
         setBit(cmds, GATT_START_SERVER);
+        setBit(cmds, GATT_EXCHANGE_MTU);
         setBit(cmds, GATT_DISC_ALL_PRIM_SVCS);
         setBit(cmds, GATT_DISC_PRIM_UUID);
         setBit(cmds, GATT_DISC_FIND_INCLUDED);
@@ -1049,13 +1272,14 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         setBit(cmds, GATT_CFG_INDICATE);
         setBit(cmds, GATT_GET_ATTRIBUTES);
         setBit(cmds, GATT_GET_ATTRIBUTE_VALUE);
+        setBit(cmds, GATT_PIPELINE);
 
         tester.sendMessage(BTP_SERVICE_ID_GATT, GATT_READ_SUPPORTED_COMMANDS, CONTROLLER_INDEX,
                 cmds);
     }
 
     private void addService(ByteBuffer data) {
-        Log.d(GATT_TAG, "addService");
+        Trace.d(GATT_TAG, "addService");
         BTP.GattAddServiceCmd cmd = BTP.GattAddServiceCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GAP, GATT_ADD_SERVICE, CONTROLLER_INDEX,
@@ -1065,7 +1289,14 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
         UUID uuid = Utils.btpToUUID(cmd.uuid);
 
-        Log.d(GATT_TAG, String.format("type %d uuid %s", cmd.type, uuid));
+        Trace.d(GATT_TAG, "type %d uuid %s", cmd.type, uuid);
+
+        if (gattServer == null) {
+            Log.e(GATT_TAG, "addService: GATT server is owned by another session");
+            tester.response(BTP_SERVICE_ID_GATT, GATT_ADD_SERVICE, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
 
         if (lastAddedService != null) {
             if (!gattServer.addService(lastAddedService)) {
@@ -1079,6 +1310,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
         lastAddedService = new BluetoothGattService(uuid, cmd.type);
         ++attributeCount;
+        gattServerCallback.registerAttribute(attributeCount, lastAddedService);
 
         BTP.GattAddServiceRp rp = new BTP.GattAddServiceRp();
         rp.svcId = (short) attributeCount;
@@ -1087,7 +1319,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void addCharacteristic(ByteBuffer data) {
-        Log.d(GATT_TAG, "addCharacteristic");
+        Trace.d(GATT_TAG, "addCharacteristic");
         BTP.GattAddCharacteristicCmd cmd = BTP.GattAddCharacteristicCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GAP, GATT_ADD_CHARACTERISTIC, CONTROLLER_INDEX,
@@ -1097,8 +1329,8 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
         UUID uuid = Utils.btpToUUID(cmd.uuid);
 
-        Log.d(GATT_TAG, String.format("id %d perm %d prop %d uuid %s",
-                Short.toUnsignedInt(cmd.svcId), cmd.permissions, cmd.properties, uuid));
+        Trace.d(GATT_TAG, "id %d perm %d prop %d uuid %s", Short.toUnsignedInt(cmd.svcId),
+                cmd.permissions, cmd.properties, uuid);
 
         if (lastAddedService == null) {
             Log.e(GATT_TAG, "LastAddedService is null");
@@ -1113,6 +1345,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         lastAddedService.addCharacteristic(characteristic);
         lastAddedCharacteristic = characteristic;
         ++attributeCount;
+        gattServerCallback.registerAttribute(attributeCount, characteristic);
 
         BTP.GattAddCharacteristicRp rp = new BTP.GattAddCharacteristicRp();
         rp.chrId = (short) attributeCount;
@@ -1121,7 +1354,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void addDescriptor(ByteBuffer data) {
-        Log.d(GATT_TAG, "addDescriptor");
+        Trace.d(GATT_TAG, "addDescriptor");
         BTP.GattAddDescriptorCmd cmd = BTP.GattAddDescriptorCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GAP, GATT_ADD_DESCRIPTOR, CONTROLLER_INDEX,
@@ -1131,8 +1364,8 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
 
         UUID uuid = Utils.btpToUUID(cmd.uuid);
 
-        Log.d(GATT_TAG, String.format("id %d perm %d uuid %s",
-                Short.toUnsignedInt(cmd.chrId), cmd.permissions, uuid));
+        Trace.d(GATT_TAG, "id %d perm %d uuid %s", Short.toUnsignedInt(cmd.chrId), cmd.permissions,
+                uuid);
 
         if (lastAddedCharacteristic == null) {
             Log.e(GATT_TAG, "LastAddedCharacteristic is null");
@@ -1146,6 +1379,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         lastAddedCharacteristic.addDescriptor(descriptor);
         lastAddedDescriptor = descriptor;
         ++attributeCount;
+        gattServerCallback.registerAttribute(attributeCount, descriptor);
 
         BTP.GattAddDescriptorRp rp = new BTP.GattAddDescriptorRp();
         rp.dscId = (short) attributeCount;
@@ -1154,7 +1388,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void addIncludedService(ByteBuffer data) {
-        Log.d(GATT_TAG, "addIncludedService");
+        Trace.d(GATT_TAG, "addIncludedService");
         BTP.GattAddIncludedServiceCmd cmd = BTP.GattAddIncludedServiceCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_ADD_INCLUDED_SERVICE, CONTROLLER_INDEX,
@@ -1162,7 +1396,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        Log.d(GATT_TAG, String.format("id %d ", Short.toUnsignedInt(cmd.svcId)));
+        Trace.d(GATT_TAG, "id %d ", Short.toUnsignedInt(cmd.svcId));
 
         if (lastAddedService == null) {
             Log.e(GATT_TAG, "LastAddedService is null");
@@ -1171,8 +1405,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        BluetoothGattService inc = Utils.findServiceByHandle(gattServer.getServices(),
-                Short.toUnsignedInt(cmd.svcId));
+        BluetoothGattService inc = serverTable.findServerService(Short.toUnsignedInt(cmd.svcId));
 
         if (inc == null) {
             Log.e(GATT_TAG, String.format("Couldn't find service id %d ",
@@ -1189,6 +1422,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
         ++attributeCount;
+        gattServerCallback.registerAttribute(attributeCount, inc);
 
         BTP.GattAddIncludedServiceRp rp = new BTP.GattAddIncludedServiceRp();
         rp.includedServiceId = (short) attributeCount;
@@ -1197,7 +1431,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void setValue(ByteBuffer data) {
-        Log.d(GATT_TAG, "setValue");
+        Trace.d(GATT_TAG, "setValue");
 
         BTP.GattSetValueCmd cmd = BTP.GattSetValueCmd.parse(data);
         if (cmd == null) {
@@ -1206,7 +1440,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        Log.d(GATT_TAG, String.format("id %d value %s", cmd.attrId, bytesToHex(cmd.value)));
+        Trace.d(GATT_TAG, "id %d value %s", cmd.attrId, cmd.value);
 
         boolean success = gattServerCallback.setValue(cmd.attrId, cmd.value);
         byte status = success ? BTP_STATUS_SUCCESS : BTP_STATUS_FAILED;
@@ -1215,7 +1449,14 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void startServer(ByteBuffer data) {
-        Log.d(GATT_TAG, "startServer");
+        Trace.d(GATT_TAG, "startServer");
+
+        if (gattServer == null) {
+            Log.e(GATT_TAG, "startServer: GATT server is owned by another session");
+            tester.response(BTP_SERVICE_ID_GATT, GATT_START_SERVER, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
 
         if (lastAddedService != null && !gattServer.addService(lastAddedService)) {
             Log.e(GATT_TAG, "Couldn't add service");
@@ -1229,18 +1470,42 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
                 rp.toBytes());
     }
 
+    private void exchangeMtu(ByteBuffer data) {
+        Trace.d(GATT_TAG, "exchangeMtu");
+        BTP.GattExchangeMtuCmd cmd = BTP.GattExchangeMtuCmd.parse(data);
+        if (cmd == null) {
+            tester.response(BTP_SERVICE_ID_GATT, GATT_EXCHANGE_MTU, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
+        Trace.d(GATT_TAG, "%d %s", cmd.addressType, cmd.address);
+
+        BleConnectionManager mng = findConnection(cmd.address);
+        if (mng == null) {
+            Log.e(GATT_TAG, "Connection not found");
+            tester.response(BTP_SERVICE_ID_GATT, GATT_EXCHANGE_MTU, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
+
+        mtuEvents = true;
+        mng.exchangeMtu();
+
+        tester.response(BTP_SERVICE_ID_GATT, GATT_EXCHANGE_MTU, CONTROLLER_INDEX,
+                BTP_STATUS_SUCCESS);
+    }
+
     private void discAllPrimSvcs(ByteBuffer data) {
-        Log.d(GATT_TAG, "discAllPrimSvcs");
+        Trace.d(GATT_TAG, "discAllPrimSvcs");
         BTP.GattDiscAllPrimSvcsCmd cmd = BTP.GattDiscAllPrimSvcsCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GAP, GATT_DISC_ALL_PRIM_SVCS, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s", cmd.addressType, addr));
+        Trace.d(GATT_TAG, "%d %s", cmd.addressType, cmd.address);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_ALL_PRIM_SVCS,
@@ -1261,7 +1526,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void discPrimUuid(ByteBuffer data) {
-        Log.d(GATT_TAG, "discPrimUuid");
+        Trace.d(GATT_TAG, "discPrimUuid");
         BTP.GattDiscPrimUuidCmd cmd = BTP.GattDiscPrimUuidCmd.parse(data);
         if (cmd == null || (cmd.uuidLen != 2 && cmd.uuidLen != 16)) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_PRIM_UUID, CONTROLLER_INDEX,
@@ -1270,11 +1535,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         }
 
         UUID uuid = Utils.btpToUUID(cmd.uuid);
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s UUID=%s", cmd.addressType, addr,
-                String.valueOf(uuid)));
+        Trace.d(GATT_TAG, "%d %s UUID=%s", cmd.addressType, cmd.address, uuid);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_PRIM_UUID,
@@ -1295,7 +1558,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void findIncluded(ByteBuffer data) {
-        Log.d(GATT_TAG, "findIncluded");
+        Trace.d(GATT_TAG, "findIncluded");
         BTP.GattFindIncludedCmd cmd = BTP.GattFindIncludedCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_FIND_INCLUDED, CONTROLLER_INDEX,
@@ -1303,10 +1566,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s", cmd.addressType, addr));
+        Trace.d(GATT_TAG, "%d %s", cmd.addressType, cmd.address);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_FIND_INCLUDED,
@@ -1330,18 +1592,17 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void discAllChrc(ByteBuffer data) {
-        Log.d(GATT_TAG, "discAllChrc");
+        Trace.d(GATT_TAG, "discAllChrc");
         BTP.GattDiscAllChrcCmd cmd = BTP.GattDiscAllChrcCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_ALL_CHRC, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s startHandle=0x%04x endHandle=0x%04x",
-                cmd.addressType, addr, cmd.startHandle, cmd.endHandle));
+        Trace.d(GATT_TAG, "%d %s startHandle=0x%04x endHandle=0x%04x", cmd.addressType, cmd.address,
+                cmd.startHandle, cmd.endHandle);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_ALL_CHRC,
@@ -1364,19 +1625,18 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void discChrcUuid(ByteBuffer data) {
-        Log.d(GATT_TAG, "discChrcUuid");
+        Trace.d(GATT_TAG, "discChrcUuid");
         BTP.GattDiscChrcUuidCmd cmd = BTP.GattDiscChrcUuidCmd.parse(data);
         if (cmd == null || (cmd.uuidLen != 2 && cmd.uuidLen != 16)) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_CHRC_UUID, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
         UUID uuid = Utils.btpToUUID(cmd.uuid);
-        Log.d(GATT_TAG, String.format("%d %s startHandle=0x%04x endHandle=0x%04x UUID=%s",
-                cmd.addressType, addr, cmd.startHandle, cmd.endHandle, String.valueOf(uuid)));
+        Trace.d(GATT_TAG, "%d %s startHandle=0x%04x endHandle=0x%04x UUID=%s", cmd.addressType,
+                cmd.address, cmd.startHandle, cmd.endHandle, uuid);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_CHRC_UUID,
@@ -1399,18 +1659,17 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void discAllDesc(ByteBuffer data) {
-        Log.d(GATT_TAG, "discAllDesc");
+        Trace.d(GATT_TAG, "discAllDesc");
         BTP.GattDiscAllDescCmd cmd = BTP.GattDiscAllDescCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_ALL_DESC, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s startHandle=0x%04x endHandle=0x%04x",
-                cmd.addressType, addr, cmd.startHandle, cmd.endHandle));
+        Trace.d(GATT_TAG, "%d %s startHandle=0x%04x endHandle=0x%04x", cmd.addressType, cmd.address,
+                cmd.startHandle, cmd.endHandle);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_DISC_ALL_DESC,
@@ -1448,17 +1707,16 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void read(ByteBuffer data) {
-        Log.d(GATT_TAG, "read");
+        Trace.d(GATT_TAG, "read");
         BTP.GattReadCmd cmd = BTP.GattReadCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_READ, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s handle=0x%04x", cmd.addressType, addr, cmd.handle));
+        Trace.d(GATT_TAG, "%d %s handle=0x%04x", cmd.addressType, cmd.address, cmd.handle);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_READ, CONTROLLER_INDEX, BTP_STATUS_FAILED);
@@ -1471,35 +1729,30 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         }
     }
 
-    private void onReadLongResponse(@NonNull final BluetoothDevice device,
-                                    @NonNull final Data data) {
+    private void onReadLongResponse(byte attResponse, byte[] value) {
         BTP.GattReadRp rp = new BTP.GattReadRp();
-        byte[] readData = data.getValue();
-        if (readData == null) {
-            tester.response(BTP_SERVICE_ID_GATT, GATT_READ_LONG, CONTROLLER_INDEX,
-                    BTP_STATUS_FAILED);
-            return;
+        rp.attResponse = attResponse;
+        if (value != null) {
+            rp.dataLen = (short) value.length;
+            rp.data = value;
         }
-        rp.dataLen = (short) readData.length;
-        rp.data = readData;
 
         tester.sendMessage(BTP_SERVICE_ID_GATT, GATT_READ_LONG, CONTROLLER_INDEX,
                 rp.toBytes());
     }
 
     private void readLong(ByteBuffer data) {
-        Log.d(GATT_TAG, "readLong");
+        Trace.d(GATT_TAG, "readLong");
         BTP.GattReadLongCmd cmd = BTP.GattReadLongCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_READ_LONG, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s handle=0x%04x offset=0x%04x", cmd.addressType,
-                addr, cmd.handle, cmd.offset));
+        Trace.d(GATT_TAG, "%d %s handle=0x%04x offset=0x%04x", cmd.addressType, cmd.address,
+                cmd.handle, cmd.offset);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_READ_LONG,
@@ -1507,7 +1760,8 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        if (!mng.gattRead(Short.toUnsignedInt(cmd.handle), this::onReadLongResponse)) {
+        if (!mng.getLongAttributes().read(Short.toUnsignedInt(cmd.handle),
+                Short.toUnsignedInt(cmd.offset), this::onReadLongResponse)) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_READ_LONG, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
         }
@@ -1525,18 +1779,17 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void write(ByteBuffer data) {
-        Log.d(GATT_TAG, "write");
+        Trace.d(GATT_TAG, "write");
         BTP.GattWriteCmd cmd = BTP.GattWriteCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s handle=0x%04x len %d", cmd.addressType, addr,
-                Short.toUnsignedInt(cmd.handle), cmd.data.length));
+        Trace.d(GATT_TAG, "%d %s handle=0x%04x len %d", cmd.addressType, cmd.address,
+                Short.toUnsignedInt(cmd.handle), cmd.data.length);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE, CONTROLLER_INDEX, BTP_STATUS_FAILED);
@@ -1550,32 +1803,23 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         }
     }
 
-    private void onWriteLongResponse(@NonNull final BluetoothDevice device,
-                                     @NonNull final Data data) {
-        if (data.getValue() == null) {
-            tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE_LONG, CONTROLLER_INDEX,
-                    BTP_STATUS_FAILED);
-            return;
-        }
-
+    private void onWriteLongResponse(byte attResponse, byte[] value) {
         tester.sendMessage(BTP_SERVICE_ID_GATT, GATT_WRITE_LONG, CONTROLLER_INDEX,
-                new byte[] {BTP_STATUS_SUCCESS});
+                new byte[] {attResponse});
     }
 
     private void writeLong(ByteBuffer data) {
-        Log.d(GATT_TAG, "writeLong");
+        Trace.d(GATT_TAG, "writeLong");
         BTP.GattWriteLongCmd cmd = BTP.GattWriteLongCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE_LONG, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s handle=0x%04x handle=0x%04x len %d",
-                cmd.addressType, addr, Short.toUnsignedInt(cmd.handle),
-                Short.toUnsignedInt(cmd.offset), cmd.data.length));
+        Trace.d(GATT_TAG, "%d %s handle=0x%04x handle=0x%04x len %d", cmd.addressType, cmd.address,
+                Short.toUnsignedInt(cmd.handle), Short.toUnsignedInt(cmd.offset), cmd.data.length);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE_LONG,
@@ -1583,93 +1827,111 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             return;
         }
 
-        if (!mng.gattWriteLong(Short.toUnsignedInt(cmd.handle), Short.toUnsignedInt(cmd.offset),
-                cmd.data, this::onWriteLongResponse)) {
-            tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE, CONTROLLER_INDEX,
+        if (!mng.getLongAttributes().write(Short.toUnsignedInt(cmd.handle),
+                Short.toUnsignedInt(cmd.offset), cmd.data, this::onWriteLongResponse)) {
+            tester.response(BTP_SERVICE_ID_GATT, GATT_WRITE_LONG, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
         }
     }
 
-    class NotificationReceivedCallback implements DataReceivedCallback  {
-        int handle = 0;
-        byte type = 0;
+    private void pipeline(ByteBuffer data) {
+        Trace.d(GATT_TAG, "pipeline");
+        BTP.GattPipelineCmd cmd = BTP.GattPipelineCmd.parse(data);
+        if (cmd == null || cmd.ops.length == 0) {
+            tester.response(BTP_SERVICE_ID_GATT, GATT_PIPELINE, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
+        Trace.d(GATT_TAG, "%d %s ops %d", cmd.addressType, cmd.address, cmd.ops.length);
 
-        @Override
-        public void onDataReceived(@NonNull final BluetoothDevice device,
-                                   @NonNull final Data data) {
-            BTP.GattNotificationEv ev = new BTP.GattNotificationEv();
-
-            ev.addressType = 0x01; /* assume random */
-            ev.address = btAddrToBytes(device.getAddress());
-            ev.type = this.type;
-            ev.handle = (short) this.handle;
-            byte[] bytes = data.getValue();
-            if (bytes == null) {
-                ev.dataLen = 0;
-                ev.data = null;
-            } else {
-                ev.dataLen = (short) bytes.length;
-                ev.data = bytes;
-            }
+        BleConnectionManager mng = findConnection(cmd.address);
+        if (mng == null) {
+            Log.e(GATT_TAG, "Connection not found");
+            tester.response(BTP_SERVICE_ID_GATT, GATT_PIPELINE, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
+        }
 
-            tester.sendMessage(BTP_SERVICE_ID_GATT, GATT_EV_NOTIFICATION, CONTROLLER_INDEX,
-                    ev.toBytes());
+        GattPipeline pipeline = new GattPipeline(cmd.addressType,
+                BdAddr.toBtp(BdAddr.fromBytes(cmd.address)), cmd.ops,
+                ev -> tester.sendEvent(BTP_SERVICE_ID_GATT, GATT_EV_PIPELINE_RESULT,
+                        CONTROLLER_INDEX, ev));
+        RequestQueue queue = mng.gattPipeline(pipeline);
+        if (queue == null) {
+            tester.response(BTP_SERVICE_ID_GATT, GATT_PIPELINE, CONTROLLER_INDEX,
+                    BTP_STATUS_FAILED);
+            return;
         }
+
+        /* Respond before queueing, so the response precedes the first result */
+        BTP.GattPipelineRp rp = new BTP.GattPipelineRp();
+        rp.opCount = cmd.opCount;
+        tester.sendMessage(BTP_SERVICE_ID_GATT, GATT_PIPELINE, CONTROLLER_INDEX, rp.toBytes());
+
+        queue.enqueue();
     }
 
     private void configSubscription(ByteBuffer data, byte opcode) {
-        Log.d(GATT_TAG, "configSubscription");
+        Trace.d(GATT_TAG, "configSubscription");
         BTP.GattCfgNotifyCmd cmd = BTP.GattCfgNotifyCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, opcode, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        String addr = Utils.btpToBdAddr(cmd.address);
-        Log.d(GATT_TAG, String.format("%d %s cccdHandle=0x%04x opcode=0x%02x enable=%d",
-                cmd.addressType, addr, cmd.cccdHandle, opcode, cmd.enable));
+        Trace.d(GATT_TAG, "%d %s cccdHandle=0x%04x opcode=0x%02x enable=%d", cmd.addressType,
+                cmd.address, cmd.cccdHandle, opcode, cmd.enable);
 
-        BleConnectionManager mng = findConnection(addr);
+        BleConnectionManager mng = findConnection(cmd.address);
         if (mng == null) {
             Log.e(GATT_TAG, "Connection not found");
             tester.response(BTP_SERVICE_ID_GATT, opcode, CONTROLLER_INDEX, BTP_STATUS_FAILED);
             return;
         }
 
-        if (!mng.configSubscription(
-                Short.toUnsignedInt(cmd.cccdHandle),
-                opcode, cmd.enable, new NotificationReceivedCallback())) {
+        long address = BdAddr.fromBytes(cmd.address);
+        int cccdHandle = Short.toUnsignedInt(cmd.cccdHandle);
+        NotificationForwarder forwarder = new NotificationForwarder(tester.getFramePool(),
+                tester::sendEvent, CONTROLLER_INDEX, BdAddr.toBtp(address));
+
+        if (!mng.configSubscription(cccdHandle, opcode, cmd.enable, forwarder)) {
             tester.response(BTP_SERVICE_ID_GATT, opcode, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
 
+        Long key = address << 16 | cccdHandle;
+        NotificationForwarder old = cmd.enable == 0 ? subscriptions.remove(key) :
+                subscriptions.put(key, forwarder);
+        if (old != null) {
+            Trace.d(GATT_TAG, "subscription %s", old);
+        }
+
         tester.response(BTP_SERVICE_ID_GATT, opcode, CONTROLLER_INDEX,
                 BTP_STATUS_SUCCESS);
     }
 
     private void getAttributes(ByteBuffer data) {
-        Log.d(GATT_TAG, "getAttributes");
+        Trace.d(GATT_TAG, "getAttributes");
         BTP.GattGetAttributesCmd cmd = BTP.GattGetAttributesCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_GET_ATTRIBUTES, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        Log.d(GATT_TAG, String.format("startHandle=0x%04x endHandle=0x%04x typeLen=%d",
+        Trace.d(GATT_TAG, "startHandle=0x%04x endHandle=0x%04x typeLen=%d",
                 Short.toUnsignedInt(cmd.startHandle), Short.toUnsignedInt(cmd.endHandle),
-                cmd.typeLen));
+                cmd.typeLen);
 
         UUID typeUUID = null;
         if (cmd.typeLen > 0) {
             typeUUID = Utils.btpToUUID(cmd.type);
 
         }
-        List<BluetoothGattService> svcs = Utils.getCoreGattServices();
-        svcs.addAll(gattServer.getServices());
 
-        List<BTP.GattAttribute> attributes = Utils.getGATTAttributes(svcs,
-                cmd.startHandle, cmd.endHandle, typeUUID);
+        List<BTP.GattAttribute> attributes = serverTable.getAttributes(
+                Short.toUnsignedInt(cmd.startHandle), Short.toUnsignedInt(cmd.endHandle),
+                typeUUID);
 
         BTP.GattGetAttributtesRp rp = new BTP.GattGetAttributtesRp();
         rp.attributesCount = (byte) attributes.size();
@@ -1680,21 +1942,18 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void getAttributeValue(ByteBuffer data) {
-        Log.d(GATT_TAG, "getAttributeValue");
+        Trace.d(GATT_TAG, "getAttributeValue");
         BTP.GattGetAttributeValueCmd cmd = BTP.GattGetAttributeValueCmd.parse(data);
         if (cmd == null) {
             tester.response(BTP_SERVICE_ID_GATT, GATT_GET_ATTRIBUTE_VALUE, CONTROLLER_INDEX,
                     BTP_STATUS_FAILED);
             return;
         }
-        Log.d(GATT_TAG, String.format("handl=0x%04x", Short.toUnsignedInt(cmd.handle)));
-
-        List<BluetoothGattService> svcs = Utils.getCoreGattServices();
-        svcs.addAll(gattServer.getServices());
+        Trace.d(GATT_TAG, "handl=0x%04x", Short.toUnsignedInt(cmd.handle));
 
         BTP.GattGetAttributeValueRp rp = new BTP.GattGetAttributeValueRp();
 
-        byte[] val = Utils.gattAttrValToBTP(svcs, Short.toUnsignedInt(cmd.handle));
+        byte[] val = serverTable.getAttributeValue(Short.toUnsignedInt(cmd.handle));
 
         if (val != null) {
             rp.valueLength = (short) val.length;
@@ -1706,7 +1965,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
     }
 
     private void sendAttrValueChangedEv(byte[] value) {
-        Log.d(GATT_TAG, String.format("sendAttrValueChangedEv %s", bytesToHex(value)));
+        Trace.d(GATT_TAG, "sendAttrValueChangedEv %s", value);
         BTP.GattAttrValueChangedEv ev = new BTP.GattAttrValueChangedEv();
 
         if (value != null) {
@@ -1733,6 +1992,7 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
         sendAttrValueChangedEv(value);
     }
 
+    @Override
     public void handleGATT(byte opcode, byte index, ByteBuffer data) {
         switch (opcode) {
             case GATT_READ_SUPPORTED_COMMANDS:
@@ -1756,6 +2016,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             case GATT_START_SERVER:
                 startServer(data);
                 break;
+            case GATT_EXCHANGE_MTU:
+                exchangeMtu(data);
+                break;
             case GATT_DISC_ALL_PRIM_SVCS:
                 discAllPrimSvcs(data);
                 break;
@@ -1796,6 +2059,9 @@ public class GAP implements BleManagerCallbacks, IGattServerCallbacks {
             case GATT_GET_ATTRIBUTE_VALUE:
                 getAttributeValue(data);
                 break;
+            case GATT_PIPELINE:
+                pipeline(data);
+                break;
             default:
                 tester.response(BTP_SERVICE_ID_GATT, opcode, index, BTP_STATUS_UNKNOWN_CMD);
                 break;
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GAP and GATT services of a session, created by the session when the client registers GAP.
+ * {@link GAP} drives the Android stack, the benchmark plugs in one that answers from memory.
+ */
+public interface GapService {
+    /**
+     * Sets the ATT MTU requested on connect, called before {@link #init(BTTester)}.
+     */
+    void setTargetMtu(int mtu);
+
+    /**
+     * Sets the minimum interval between device found events for one device, called before
+     * {@link #init(BTTester)}.
+     */
+    void setScanInterval(long intervalMs);
+
+    /**
+     * @return BTP status of the registration
+     */
+    byte init(BTTester tester);
+
+    void handleGAP(byte opcode, byte index, ByteBuffer data);
+
+    void handleGATT(byte opcode, byte index, ByteBuffer data);
+
+    /**
+     * @return BTP status of the unregistration
+     */
+    byte unregister();
+
+    /**
+     * Releases everything the service holds when the session closes, may block.
+     */
+    void cleanup();
+}
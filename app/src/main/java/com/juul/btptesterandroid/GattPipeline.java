@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+/**
+ * State of one pipelined batch of GATT client operations on a connection.
+ * <p>
+ * All operations of the batch are queued on the connection at once, so the ATT requests go
+ * out back to back instead of each one waiting for the tester to send the next command.
+ * Every operation gets exactly one result event, and results are reported in the order the
+ * operations were given, even when the queue is cancelled half way through.
+ */
+public class GattPipeline {
+    /* ATT "Unlikely Error", reported when the request failed below the ATT layer */
+    static final byte ATT_ERR_UNLIKELY = 0x0e;
+
+    public interface Sink {
+        void send(byte[] event);
+    }
+
+    private final byte addressType;
+    private final byte[] address;
+    private final BTP.GattPipelineOp[] ops;
+    private final Sink sink;
+    private final long startedAt;
+    private long finishedAt = 0;
+    private int next = 0;
+    private int failed = 0;
+
+    /**
+     * @param address address in BTP byte order, as sent in events
+     */
+    public GattPipeline(byte addressType, byte[] address, BTP.GattPipelineOp[] ops, Sink sink) {
+        this.addressType = addressType;
+        this.address = address;
+        this.ops = ops;
+        this.sink = sink;
+        this.startedAt = System.nanoTime();
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public byte getType(int seq) {
+        return ops[seq].type;
+    }
+
+    public int getHandle(int seq) {
+        return Short.toUnsignedInt(ops[seq].handle);
+    }
+
+    public byte[] getData(int seq) {
+        return ops[seq].data;
+    }
+
+    public synchronized void completed(int seq, byte[] value) {
+        report(seq, (byte) 0, value);
+    }
+
+    /**
+     * @param status GATT status of the failed request, or one of the negative reasons of
+     *               the Nordic library
+     */
+    public synchronized void failed(int seq, int status) {
+        report(seq, toAttError(status), null);
+    }
+
+    /**
+     * Reports every operation that has no result yet as failed with the given status.
+     */
+    public synchronized void finish(int status) {
+        byte attResponse = toAttError(status);
+        while (next < ops.length) {
+            send(next, attResponse, null);
+        }
+    }
+
+    public synchronized boolean isDone() {
+        return next == ops.length;
+    }
+
+    static byte toAttError(int status) {
+        if (status > 0 && status <= 0xff) {
+            return (byte) status;
+        }
+
+        return ATT_ERR_UNLIKELY;
+    }
+
+    private void report(int seq, byte attResponse, byte[] value) {
+        if (seq < next || seq >= ops.length) {
+            return;
+        }
+
+        /* The queue runs in order, earlier operations without a result never ran */
+        while (next < seq) {
+            send(next, ATT_ERR_UNLIKELY, null);
+        }
+
+        send(seq, attResponse, value);
+    }
+
+    private void send(int seq, byte attResponse, byte[] value) {
+        BTP.GattPipelineResultEv ev = new BTP.GattPipelineResultEv();
+        ev.addressType = addressType;
+        ev.address = address;
+        ev.seq = (byte) seq;
+        ev.type = ops[seq].type;
+        ev.attResponse = attResponse;
+        ev.handle = ops[seq].handle;
+        if (value != null) {
+            ev.dataLen = (short) value.length;
+            ev.data = value;
+        }
+
+        next = seq + 1;
+        if (attResponse != 0) {
+            failed++;
+        }
+        if (next == ops.length) {
+            finishedAt = System.nanoTime();
+        }
+
+        sink.send(ev.toBytes());
+    }
+
+    @Override
+    public synchronized String toString() {
+        long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        return String.format("ops=%d reported=%d failed=%d elapsedUs=%d", ops.length, next,
+                failed, (end - startedAt) / 1000);
+    }
+}
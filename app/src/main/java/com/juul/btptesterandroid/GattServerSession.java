@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+/**
+ * State and counters of one central connected to the GATT server.
+ * <p>
+ * A session is opened when the central connects and closed when it disconnects. Notification
+ * queues and prepared writes stay in {@link NotificationScheduler} and
+ * {@link PreparedWriteQueue}, which are keyed by device as well; when the session is closed it
+ * records what they still held for the central.
+ */
+public class GattServerSession {
+    private final String address;
+    private final long connectedAtNanos;
+    private long closedAtNanos = 0;
+    private int mtu = Att.ATT_DEFAULT_MTU;
+    private int txPhy = 0;
+    private int rxPhy = 0;
+    private int interval = 0;
+    private int latency = 0;
+    private int timeout = 0;
+    private int subscriptions = 0;
+    private long reads = 0;
+    private long readBytes = 0;
+    private long writes = 0;
+    private long writeBytes = 0;
+    private long prepares = 0;
+    private long prepareErrors = 0;
+    private long executes = 0;
+    private long notificationsSent = 0;
+    private long notificationsFailed = 0;
+    private int pendingPreparedBytes = 0;
+    private int pendingNotifications = 0;
+
+    public GattServerSession(String address, long connectedAtNanos) {
+        this.address = address;
+        this.connectedAtNanos = connectedAtNanos;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    public synchronized void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public synchronized void setPhy(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    /**
+     * @param interval connection interval, in units of 1.25 ms
+     * @param latency  peripheral latency, in connection events
+     * @param timeout  supervision timeout, in units of 10 ms
+     */
+    public synchronized void setConnectionParameters(int interval, int latency, int timeout) {
+        this.interval = interval;
+        this.latency = latency;
+        this.timeout = timeout;
+    }
+
+    public synchronized int getInterval() {
+        return interval;
+    }
+
+    public synchronized void subscribed() {
+        subscriptions++;
+    }
+
+    public synchronized void unsubscribed() {
+        if (subscriptions > 0) {
+            subscriptions--;
+        }
+    }
+
+    public synchronized int getSubscriptions() {
+        return subscriptions;
+    }
+
+    public synchronized void read(int length) {
+        reads++;
+        readBytes += length;
+    }
+
+    public synchronized void write(int length) {
+        writes++;
+        writeBytes += length;
+    }
+
+    /**
+     * @param status ATT result of the Prepare Write
+     */
+    public synchronized void prepare(int length, int status) {
+        if (status != 0) {
+            prepareErrors++;
+            return;
+        }
+
+        prepares++;
+        writeBytes += length;
+    }
+
+    public synchronized void execute() {
+        executes++;
+    }
+
+    public synchronized void notificationSent(boolean success) {
+        if (success) {
+            notificationsSent++;
+        } else {
+            notificationsFailed++;
+        }
+    }
+
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getWriteBytes() {
+        return writeBytes;
+    }
+
+    public synchronized long getNotificationsSent() {
+        return notificationsSent;
+    }
+
+    /**
+     * Ends the session.
+     *
+     * @param pendingPreparedBytes bytes of prepared writes the central never executed
+     * @param pendingNotifications notifications and indications left undelivered
+     */
+    public synchronized void close(long nowNanos, int pendingPreparedBytes,
+                                   int pendingNotifications) {
+        if (closedAtNanos != 0) {
+            return;
+        }
+
+        closedAtNanos = nowNanos;
+        this.pendingPreparedBytes = pendingPreparedBytes;
+        this.pendingNotifications = pendingNotifications;
+    }
+
+    public synchronized boolean isClosed() {
+        return closedAtNanos != 0;
+    }
+
+    public synchronized int getPendingPreparedBytes() {
+        return pendingPreparedBytes;
+    }
+
+    public synchronized int getPendingNotifications() {
+        return pendingNotifications;
+    }
+
+    /**
+     * @return time the central has been, or was, connected
+     */
+    public synchronized long getDurationNanos(long nowNanos) {
+        return (closedAtNanos != 0 ? closedAtNanos : nowNanos) - connectedAtNanos;
+    }
+
+    /**
+     * @return bytes read and written per second over the session
+     */
+    public synchronized long getThroughput(long nowNanos) {
+        long duration = getDurationNanos(nowNanos);
+        return duration <= 0 ? 0 : (readBytes + writeBytes) * 1000000000L / duration;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s mtu=%d phy=%d/%d interval=%d latency=%d timeout=%d " +
+                        "subscriptions=%d reads=%d/%dB writes=%d/%dB prepares=%d/%d " +
+                        "executes=%d notifications=%d/%d pending=%dB/%d durationMs=%d " +
+                        "throughput=%dB/s", address, mtu, txPhy, rxPhy, interval, latency,
+                timeout, subscriptions, reads, readBytes, writes, writeBytes, prepares,
+                prepareErrors, executes, notificationsSent, notificationsFailed,
+                pendingPreparedBytes, pendingNotifications,
+                getDurationNanos(System.nanoTime()) / 1000000,
+                getThroughput(System.nanoTime()));
+    }
+}
@@ -35,4 +35,6 @@ public interface IGattServerCallbacks {
                                int latency,
                                int timeout,
                                int status);
+
+    void mtuChanged(BluetoothDevice device, int mtu);
 }
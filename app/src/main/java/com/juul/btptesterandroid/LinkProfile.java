@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Link parameters applied together to a connection made by the phone.
+ * <p>
+ * Each profile picks the preferred PHY, the connection priority and the ATT MTU. The
+ * controller and the peer have the last word on all of them, the values actually applied
+ * are recorded in {@link BleConnectionManager.LinkParameters}.
+ */
+public enum LinkProfile {
+    THROUGHPUT((byte) 0x00, BluetoothDevice.PHY_LE_2M_MASK,
+            BluetoothGatt.CONNECTION_PRIORITY_HIGH, Att.ATT_MAX_MTU),
+    BALANCED((byte) 0x01, BluetoothDevice.PHY_LE_1M_MASK,
+            BluetoothGatt.CONNECTION_PRIORITY_BALANCED, Att.ATT_DLE_MTU),
+    LOW_POWER((byte) 0x02, BluetoothDevice.PHY_LE_1M_MASK,
+            BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, Att.ATT_DEFAULT_MTU);
+
+    final byte id;
+    final int phyMask;
+    final int priority;
+    final int mtu;
+
+    LinkProfile(byte id, int phyMask, int priority, int mtu) {
+        this.id = id;
+        this.phyMask = phyMask;
+        this.priority = priority;
+        this.mtu = mtu;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public int getPhyMask() {
+        return phyMask;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return the MTU to request on a link with this profile, the larger of the profile MTU and
+     * the target MTU of the session, so a profile never lowers the MTU the session asked for
+     */
+    public int requestedMtu(int targetMtu) {
+        return Math.max(mtu, targetMtu);
+    }
+
+    /**
+     * @return the profile with the given BTP identifier, null if there is none
+     */
+    public static LinkProfile fromId(byte id) {
+        for (LinkProfile profile : values()) {
+            if (profile.id == id) {
+                return profile;
+            }
+        }
+
+        return null;
+    }
+}
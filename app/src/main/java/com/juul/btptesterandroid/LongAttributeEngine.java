@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+/**
+ * Long reads and writes of remote attributes.
+ * <p>
+ * The Android stack always reads a long value from offset 0, continuing with Read Blob
+ * requests until the whole value is in, so reads at an offset are served from the slice of
+ * the complete value.
+ * <p>
+ * The Android client API can't pick the offset of a Prepare Write request, and a reliable write
+ * sends a single Prepare Write per value, so values are never split here. A value that fits in
+ * one Prepare Write goes through a reliable write, which checks the echoed part before Execute
+ * Write. A longer value goes out as a plain write, which the stack turns into the ATT Long
+ * Write procedure: it sends Prepare Write requests sized to the connection MTU at increasing
+ * offsets, checks every echo, and cancels the queue on a mismatch.
+ * <p>
+ * A write at a non-zero offset first reads the current value and writes it back patched from
+ * offset 0, so it takes a different ATT sequence than a Prepare Write at that offset would,
+ * and it is only done for attributes that can be read. Others fail with Request Not Supported
+ * before anything is sent.
+ */
+public class LongAttributeEngine {
+    private static final String GATT_TAG = "GATT";
+    /* Opcode, handle and offset of a Prepare Write request */
+    static final int PREPARE_WRITE_HEADER = 5;
+    static final byte ATT_ERR_REQUEST_NOT_SUPPORTED = 0x06;
+    static final byte ATT_ERR_INVALID_OFFSET = 0x07;
+
+    public interface Callback {
+        /**
+         * @param attResponse 0 on success, ATT error code otherwise
+         * @param value       value read, null for writes and failed reads
+         */
+        void onComplete(byte attResponse, byte[] value);
+    }
+
+    /**
+     * GATT client operations of one connection, see {@link BleConnectionManager}.
+     */
+    public interface Link {
+        interface Completion {
+            /**
+             * @param status GATT status, 0 on success
+             * @param value  value read, null for writes and failed reads
+             */
+            void onComplete(int status, byte[] value);
+        }
+
+        int getMtu();
+
+        /**
+         * @return false if the attribute is unknown or can't be read
+         */
+        boolean isReadable(int handle);
+
+        /**
+         * @return false if the attribute is unknown
+         */
+        boolean read(int handle, Completion cb);
+
+        /**
+         * Write Request, or the Long Write procedure if the value doesn't fit in one.
+         *
+         * @return false if the attribute is unknown
+         */
+        boolean write(int handle, byte[] value, Completion cb);
+
+        /**
+         * One Prepare Write, checked against its echo, followed by Execute Write.
+         *
+         * @return false if the attribute is unknown
+         */
+        boolean reliableWrite(int handle, byte[] value, Completion cb);
+    }
+
+    public static class Stats {
+        private final String name;
+        private long count = 0;
+        private long failures = 0;
+        private long bytes = 0;
+        private long reliableWrites = 0;
+        private long longWrites = 0;
+        private long patched = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long nanos, int length, boolean success) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            if (!success) {
+                failures++;
+                return;
+            }
+
+            bytes += length;
+        }
+
+        synchronized void written(boolean reliable, boolean readFirst) {
+            if (reliable) {
+                reliableWrites++;
+            } else {
+                longWrites++;
+            }
+
+            if (readFirst) {
+                patched++;
+            }
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return values sent as a single verified Prepare Write
+         */
+        public synchronized long getReliableWrites() {
+            return reliableWrites;
+        }
+
+        /**
+         * @return values handed to the stack as a Long Write
+         */
+        public synchronized long getLongWrites() {
+            return longWrites;
+        }
+
+        /**
+         * @return writes at a non-zero offset, which read the value first
+         */
+        public synchronized long getPatched() {
+            return patched;
+        }
+
+        public synchronized long getAverageNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public synchronized long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s count=%d failures=%d bytes=%d reliable=%d long=%d " +
+                            "patched=%d avgUs=%d maxUs=%d", name, count, failures, bytes,
+                    reliableWrites, longWrites, patched, getAverageNanos() / 1000,
+                    maxNanos / 1000);
+        }
+    }
+
+    private final Link link;
+    private final Stats readStats = new Stats("readLong");
+    private final Stats writeStats = new Stats("writeLong");
+
+    LongAttributeEngine(Link link) {
+        this.link = link;
+    }
+
+    public Stats getReadStats() {
+        return readStats;
+    }
+
+    public Stats getWriteStats() {
+        return writeStats;
+    }
+
+    public boolean read(int handle, int offset, Callback cb) {
+        long started = System.nanoTime();
+        return link.read(handle, (status, data) -> {
+            if (status != 0) {
+                readStats.record(System.nanoTime() - started, 0, false);
+                cb.onComplete(GattPipeline.toAttError(status), null);
+                return;
+            }
+
+            byte[] value = slice(data, offset);
+            readStats.record(System.nanoTime() - started, value == null ? 0 : value.length,
+                    value != null);
+            cb.onComplete(value == null ? ATT_ERR_INVALID_OFFSET : 0, value);
+        });
+    }
+
+    public boolean write(int handle, int offset, byte[] data, Callback cb) {
+        long started = System.nanoTime();
+
+        if (offset == 0) {
+            return write(handle, data, false, started, cb);
+        }
+
+        if (!link.isReadable(handle)) {
+            writeStats.record(System.nanoTime() - started, 0, false);
+            cb.onComplete(ATT_ERR_REQUEST_NOT_SUPPORTED, null);
+            return true;
+        }
+
+        return link.read(handle, (status, current) -> {
+            if (status != 0) {
+                writeStats.record(System.nanoTime() - started, 0, false);
+                cb.onComplete(GattPipeline.toAttError(status), null);
+                return;
+            }
+
+            byte[] value = patch(current, offset, data);
+            if (value == null) {
+                writeStats.record(System.nanoTime() - started, 0, false);
+                cb.onComplete(ATT_ERR_INVALID_OFFSET, null);
+                return;
+            }
+
+            if (!write(handle, value, true, started, cb)) {
+                writeStats.record(System.nanoTime() - started, 0, false);
+                cb.onComplete(GattPipeline.ATT_ERR_UNLIKELY, null);
+            }
+        });
+    }
+
+    private boolean write(int handle, byte[] value, boolean readFirst, long started,
+                          Callback cb) {
+        boolean reliable = fitsPrepareWrite(value.length, link.getMtu());
+        Link.Completion done = (status, ignored) -> {
+            writeStats.record(System.nanoTime() - started, value.length, status == 0);
+            cb.onComplete(status == 0 ? 0 : GattPipeline.toAttError(status), null);
+        };
+
+        boolean queued = reliable ? link.reliableWrite(handle, value, done) :
+                link.write(handle, value, done);
+        if (!queued) {
+            return false;
+        }
+
+        Trace.d(GATT_TAG, "writeLong handle=0x%04x len %d reliable %b",
+                handle, value.length, reliable);
+        writeStats.written(reliable, readFirst);
+        return true;
+    }
+
+    /**
+     * @return true if a value of the given length fits in one Prepare Write request
+     */
+    static boolean fitsPrepareWrite(int length, int mtu) {
+        return length <= mtu - PREPARE_WRITE_HEADER;
+    }
+
+    /**
+     * @return part of the value starting at offset, null if the offset is past its end
+     */
+    static byte[] slice(byte[] value, int offset) {
+        if (value == null || offset > value.length) {
+            return null;
+        }
+
+        if (offset == 0) {
+            return value;
+        }
+
+        byte[] part = new byte[value.length - offset];
+        System.arraycopy(value, offset, part, 0, part.length);
+        return part;
+    }
+
+    /**
+     * @return the value with data written over it at offset, null if the offset is past its
+     *         end
+     */
+    static byte[] patch(byte[] value, int offset, byte[] data) {
+        if (value == null || offset > value.length) {
+            return null;
+        }
+
+        byte[] patched = new byte[Math.max(value.length, offset + data.length)];
+        System.arraycopy(value, 0, patched, 0, value.length);
+        System.arraycopy(data, 0, patched, offset, data.length);
+        return patched;
+    }
+
+    @Override
+    public String toString() {
+        return readStats + "; " + writeStats;
+    }
+}
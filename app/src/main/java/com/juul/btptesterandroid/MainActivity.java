@@ -41,7 +41,7 @@ public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_PERMISSIONS = 0xfe;
     TextView statusTextView = null;
     BluetoothAdapter bluetoothAdapter;
-    BTTester tester;
+    BTTesterServer server;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -71,13 +71,13 @@ public class MainActivity extends AppCompatActivity {
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
 
-        tester = new BTTester(this, bluetoothAdapter, bluetoothManager);
-        tester.init();
+        server = new BTTesterServer(this, bluetoothAdapter, bluetoothManager);
+        server.init();
     }
 
     @Override
     protected void onDestroy() {
-        tester.close();
+        server.close();
         super.onDestroy();
     }
 
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import android.bluetooth.BluetoothDevice;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import no.nordicsemi.android.ble.callback.DataReceivedCallback;
+import no.nordicsemi.android.ble.data.Data;
+
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GATT;
+import static com.juul.btptesterandroid.BTP.GATT_EV_NOTIFICATION;
+import static com.juul.btptesterandroid.BTP.HDR_LEN;
+
+/**
+ * Forwards the notifications or indications of one subscription as GATT_EV_NOTIFICATION
+ * events.
+ * <p>
+ * The event fields that don't change between notifications (address, type and handle) are
+ * encoded once when subscribing, every notification is then written straight into a pooled
+ * frame buffer. When the session batches events, bursts of notifications share WebSocket
+ * messages.
+ */
+public class NotificationForwarder implements DataReceivedCallback {
+    public interface Sink {
+        /**
+         * Takes over a frame acquired from the frame pool.
+         *
+         * @return false if the frame couldn't be sent.
+         */
+        boolean send(ByteBuffer frame);
+    }
+
+    public static final byte TYPE_NOTIFICATION = 0x01;
+    public static final byte TYPE_INDICATION = 0x02;
+
+    /* address type, address, type, handle */
+    private static final int FIXED_LEN = 1 + BdAddr.LENGTH + 1 + 2;
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final BTPFramePool framePool;
+    private final Sink sink;
+    private final byte index;
+    private final byte[] fixed = new byte[FIXED_LEN];
+
+    private long received;
+    private long dropped;
+    private long bytes;
+    private long windowStartNanos;
+    private long windowCount;
+    private long rate;
+
+    /**
+     * @param sink       sends event frames, e.g. {@code tester::sendEvent}
+     * @param btpAddress address of the peer in BTP order
+     */
+    public NotificationForwarder(BTPFramePool framePool, Sink sink, byte index,
+                                 byte[] btpAddress) {
+        this.framePool = framePool;
+        this.sink = sink;
+        this.index = index;
+
+        fixed[0] = 0x01; /* assume random */
+        System.arraycopy(btpAddress, 0, fixed, 1, BdAddr.LENGTH);
+    }
+
+    public void setSubscription(byte type, int handle) {
+        fixed[1 + BdAddr.LENGTH] = type;
+        fixed[2 + BdAddr.LENGTH] = (byte) handle;
+        fixed[3 + BdAddr.LENGTH] = (byte) (handle >> 8);
+    }
+
+    public byte getType() {
+        return fixed[1 + BdAddr.LENGTH];
+    }
+
+    public int getHandle() {
+        return (fixed[2 + BdAddr.LENGTH] & 0xff) | (fixed[3 + BdAddr.LENGTH] & 0xff) << 8;
+    }
+
+    @Override
+    public void onDataReceived(@NonNull final BluetoothDevice device, @NonNull final Data data) {
+        forward(data.getValue());
+    }
+
+    void forward(byte[] value) {
+        int len = value == null ? 0 : value.length;
+        int evLen = FIXED_LEN + 2 + len;
+
+        ByteBuffer frame = framePool.acquire(HDR_LEN + evLen);
+        frame.put(BTP_SERVICE_ID_GATT);
+        frame.put(GATT_EV_NOTIFICATION);
+        frame.put(index);
+        frame.putShort((short) evLen);
+        frame.put(fixed);
+        frame.putShort((short) len);
+        if (len > 0) {
+            frame.put(value);
+        }
+        frame.flip();
+
+        boolean sent = sink.send(frame);
+        count(sent, len, System.nanoTime());
+    }
+
+    synchronized void count(boolean sent, int len, long now) {
+        received++;
+        if (!sent) {
+            dropped++;
+            return;
+        }
+
+        bytes += len;
+
+        /* The first forwarded notification only starts the rate window */
+        if (received - dropped == 1) {
+            windowStartNanos = now;
+            return;
+        }
+
+        windowCount++;
+        long elapsed = now - windowStartNanos;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            rate = windowCount * RATE_WINDOW_NANOS / elapsed;
+            windowStartNanos = now;
+            windowCount = 0;
+        }
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return notifications forwarded per second, measured over the last full second. Once
+     * notifications stop, the rate is averaged over the time since then and decays to 0.
+     */
+    public long getRate() {
+        return getRate(System.nanoTime());
+    }
+
+    synchronized long getRate(long now) {
+        long elapsed = now - windowStartNanos;
+        if (received == dropped || elapsed < RATE_WINDOW_NANOS) {
+            return rate;
+        }
+
+        /* No notification closed the window, count it up to now */
+        return windowCount * RATE_WINDOW_NANOS / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("handle=0x%04x type=%d received=%d dropped=%d bytes=%d rate=%d/s",
+                getHandle(), getType(), received, dropped, bytes, getRate());
+    }
+}
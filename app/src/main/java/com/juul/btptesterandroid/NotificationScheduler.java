@@ -0,0 +1,601 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscriptions to local characteristics and the fan-out of their value changes.
+ * <p>
+ * Subscriptions are indexed both by characteristic and by device. Every device has at most one
+ * notification or indication in flight; the next one is sent when the stack reports the
+ * previous one as sent, which for an indication means confirmed. Notifications waiting for a
+ * device are coalesced per characteristic, so a slow central gets the latest value instead of
+ * a growing backlog. Indications are queued in order up to a maximum depth. A value the stack
+ * rejects while it is busy is sent again a few times before it's dropped, an indication that
+ * fails as well. An indication that isn't confirmed within the ATT transaction timeout is
+ * dropped right away, the bearer is unusable by then; a notification the stack never reports
+ * as sent stops holding up the queue after a short timeout. Every value is accounted for as
+ * delivered, coalesced or dropped.
+ * <p>
+ * The transport is called without holding the scheduler lock, so sending to one device
+ * doesn't hold up callbacks and value changes for the others.
+ *
+ * @param <D> device type, used as a hash key
+ * @param <C> characteristic type, used as a hash key
+ */
+public class NotificationScheduler<D, C> {
+    public static final int DEFAULT_MAX_INDICATIONS = 64;
+    /* ATT transaction timeout */
+    public static final long DEFAULT_CONFIRM_TIMEOUT_MS = 30000;
+    /* Notifications are reported as sent within a connection event or two */
+    static final long SENT_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    static final long RETRY_DELAY_MS = 10;
+
+    public interface Transport<D, C> {
+        /**
+         * @return true if the stack accepted the value, it then reports it as sent later on
+         */
+        boolean send(D device, C characteristic, byte[] value, boolean indicate);
+    }
+
+    public interface Timer {
+        /**
+         * Runs the task once after the delay.
+         *
+         * @return cancels the task if it hasn't run yet
+         */
+        Runnable schedule(Runnable task, long delayMs);
+    }
+
+    public static class DeviceStats {
+        long delivered = 0;
+        long coalesced = 0;
+        long dropped = 0;
+        long confirmed = 0;
+        long confirmNanos = 0;
+        long retries = 0;
+        long timeouts = 0;
+        int maxDepth = 0;
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getConfirmed() {
+            return confirmed;
+        }
+
+        public long getAverageConfirmNanos() {
+            return confirmed == 0 ? 0 : confirmNanos / confirmed;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("delivered=%d coalesced=%d dropped=%d confirmed=%d " +
+                            "confirmUs=%d retries=%d timeouts=%d maxDepth=%d", delivered,
+                    coalesced, dropped, confirmed, getAverageConfirmNanos() / 1000, retries,
+                    timeouts, maxDepth);
+        }
+    }
+
+    private static class Entry<C> {
+        final C characteristic;
+        final byte[] value;
+        final boolean indicate;
+        int attempts = 0;
+        long sentAtNanos;
+        Runnable cancelTimeout;
+
+        Entry(C characteristic, byte[] value, boolean indicate) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.indicate = indicate;
+        }
+    }
+
+    private static class DeviceQueue<C> {
+        final Map<C, Boolean> subscriptions = new HashMap<>();
+        final LinkedHashMap<C, Entry<C>> pending = new LinkedHashMap<>();
+        final ArrayDeque<Entry<C>> indications = new ArrayDeque<>();
+        final DeviceStats stats = new DeviceStats();
+        Entry<C> inFlight = null;
+        boolean retryScheduled = false;
+    }
+
+    private final Transport<D, C> transport;
+    private final int maxIndications;
+    private final long confirmTimeoutMs;
+    private final int maxRetries;
+    private final Timer timer;
+    /* Runs the timer unless one was given */
+    private final ScheduledExecutorService executor;
+    /* Subscribed devices of each characteristic, in subscription order */
+    private final Map<C, Map<D, Boolean>> byCharacteristic = new HashMap<>();
+    private final Map<D, DeviceQueue<C>> byDevice = new HashMap<>();
+    private final DeviceStats totals = new DeviceStats();
+    private boolean closed = false;
+
+    public NotificationScheduler(Transport<D, C> transport) {
+        this(transport, DEFAULT_MAX_INDICATIONS, DEFAULT_CONFIRM_TIMEOUT_MS,
+                DEFAULT_MAX_RETRIES);
+    }
+
+    public NotificationScheduler(Transport<D, C> transport, int maxIndications,
+                                 long confirmTimeoutMs, int maxRetries) {
+        this(transport, maxIndications, confirmTimeoutMs, maxRetries, null);
+    }
+
+    NotificationScheduler(Transport<D, C> transport, int maxIndications, long confirmTimeoutMs,
+                          int maxRetries, Timer timer) {
+        this.transport = transport;
+        this.maxIndications = maxIndications;
+        this.confirmTimeoutMs = confirmTimeoutMs;
+        this.maxRetries = maxRetries;
+
+        if (timer != null) {
+            this.executor = null;
+            this.timer = timer;
+            return;
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "GATT-indicate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = (task, delayMs) -> {
+            ScheduledFuture<?> future = executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            return () -> future.cancel(false);
+        };
+    }
+
+    /**
+     * @return false if the device is already subscribed to the characteristic
+     */
+    public synchronized boolean subscribe(D device, C characteristic, boolean indicate) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        if (queue == null) {
+            queue = new DeviceQueue<>();
+            byDevice.put(device, queue);
+        }
+
+        if (queue.subscriptions.containsKey(characteristic)) {
+            return false;
+        }
+
+        queue.subscriptions.put(characteristic, indicate);
+
+        Map<D, Boolean> devices = byCharacteristic.get(characteristic);
+        if (devices == null) {
+            devices = new LinkedHashMap<>();
+            byCharacteristic.put(characteristic, devices);
+        }
+        devices.put(device, indicate);
+
+        return true;
+    }
+
+    /**
+     * @return false if the device isn't subscribed to the characteristic
+     */
+    public synchronized boolean unsubscribe(D device, C characteristic) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        if (queue == null || queue.subscriptions.remove(characteristic) == null) {
+            return false;
+        }
+
+        int lost = queue.pending.remove(characteristic) != null ? 1 : 0;
+        for (Iterator<Entry<C>> it = queue.indications.iterator(); it.hasNext(); ) {
+            if (it.next().characteristic.equals(characteristic)) {
+                it.remove();
+                lost++;
+            }
+        }
+        dropped(queue, lost);
+
+        Map<D, Boolean> devices = byCharacteristic.get(characteristic);
+        devices.remove(device);
+        if (devices.isEmpty()) {
+            byCharacteristic.remove(characteristic);
+        }
+
+        return true;
+    }
+
+    public synchronized boolean isSubscribed(D device, C characteristic) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        return queue != null && queue.subscriptions.containsKey(characteristic);
+    }
+
+    /**
+     * Drops all subscriptions of a disconnected device, values still waiting for it are
+     * counted as dropped.
+     *
+     * @return stats of the device, null if it never subscribed
+     */
+    public synchronized DeviceStats removeDevice(D device) {
+        DeviceQueue<C> queue = byDevice.remove(device);
+        if (queue == null) {
+            return null;
+        }
+
+        for (C characteristic : queue.subscriptions.keySet()) {
+            Map<D, Boolean> devices = byCharacteristic.get(characteristic);
+            devices.remove(device);
+            if (devices.isEmpty()) {
+                byCharacteristic.remove(characteristic);
+            }
+        }
+
+        int lost = queue.pending.size() + queue.indications.size();
+        if (queue.inFlight != null) {
+            cancelTimeout(queue.inFlight);
+            lost++;
+        }
+        dropped(queue, lost);
+        queue.pending.clear();
+        queue.indications.clear();
+        queue.inFlight = null;
+
+        return queue.stats;
+    }
+
+    /**
+     * Queues the value for every device subscribed to the characteristic.
+     *
+     * @return number of subscribed devices
+     */
+    public int notifyChanged(C characteristic, byte[] value) {
+        List<D> devices;
+        synchronized (this) {
+            Map<D, Boolean> subscribers = byCharacteristic.get(characteristic);
+            if (subscribers == null) {
+                return 0;
+            }
+
+            devices = new ArrayList<>(subscribers.keySet());
+            for (D device : devices) {
+                queue(device, characteristic, value);
+            }
+        }
+
+        for (D device : devices) {
+            sendNext(device);
+        }
+
+        return devices.size();
+    }
+
+    /**
+     * Queues the value for one subscribed device.
+     */
+    public void enqueue(D device, C characteristic, byte[] value) {
+        synchronized (this) {
+            if (!queue(device, characteristic, value)) {
+                return;
+            }
+        }
+
+        sendNext(device);
+    }
+
+    private boolean queue(D device, C characteristic, byte[] value) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        Boolean indicate = queue == null ? null : queue.subscriptions.get(characteristic);
+        if (indicate == null) {
+            return false;
+        }
+
+        if (indicate) {
+            if (queue.indications.size() >= maxIndications) {
+                dropped(queue, 1);
+                return false;
+            }
+
+            queue.indications.add(new Entry<>(characteristic, value, true));
+            queue.stats.maxDepth = Math.max(queue.stats.maxDepth, queue.indications.size());
+            totals.maxDepth = Math.max(totals.maxDepth, queue.indications.size());
+        } else if (queue.pending.put(characteristic,
+                new Entry<>(characteristic, value, false)) != null) {
+            coalesced(queue);
+        }
+
+        return true;
+    }
+
+    /**
+     * Called when the stack reports the value in flight for the device as sent, or for an
+     * indication, as confirmed.
+     */
+    public void onSent(D device, boolean success) {
+        synchronized (this) {
+            DeviceQueue<C> queue = byDevice.get(device);
+            if (closed || queue == null || queue.inFlight == null) {
+                return;
+            }
+
+            Entry<C> entry = queue.inFlight;
+            queue.inFlight = null;
+            cancelTimeout(entry);
+
+            if (success) {
+                queue.stats.delivered++;
+                totals.delivered++;
+                if (entry.indicate) {
+                    long nanos = System.nanoTime() - entry.sentAtNanos;
+                    queue.stats.confirmed++;
+                    queue.stats.confirmNanos += nanos;
+                    totals.confirmed++;
+                    totals.confirmNanos += nanos;
+                }
+            } else if (entry.indicate && entry.attempts <= maxRetries) {
+                queue.indications.addFirst(entry);
+                retried(queue);
+            } else {
+                dropped(queue, 1);
+            }
+        }
+
+        sendNext(device);
+    }
+
+    private void onTimeout(D device, Entry<C> entry) {
+        synchronized (this) {
+            DeviceQueue<C> queue = byDevice.get(device);
+            if (closed || queue == null || queue.inFlight != entry) {
+                return;
+            }
+
+            /* The peer can't take another ATT transaction after a timeout, don't resend */
+            queue.inFlight = null;
+            entry.cancelTimeout = null;
+            queue.stats.timeouts++;
+            totals.timeouts++;
+            dropped(queue, 1);
+        }
+
+        sendNext(device);
+    }
+
+    private void onRetry(D device) {
+        synchronized (this) {
+            DeviceQueue<C> queue = byDevice.get(device);
+            if (closed || queue == null) {
+                return;
+            }
+
+            queue.retryScheduled = false;
+        }
+
+        sendNext(device);
+    }
+
+    private void retried(DeviceQueue<C> queue) {
+        queue.stats.retries++;
+        totals.retries++;
+    }
+
+    private void coalesced(DeviceQueue<C> queue) {
+        queue.stats.coalesced++;
+        totals.coalesced++;
+    }
+
+    private void dropped(DeviceQueue<C> queue, int count) {
+        queue.stats.dropped += count;
+        totals.dropped += count;
+    }
+
+    private void cancelTimeout(Entry<C> entry) {
+        if (entry.cancelTimeout != null) {
+            entry.cancelTimeout.run();
+            entry.cancelTimeout = null;
+        }
+    }
+
+    private Entry<C> nextEntry(DeviceQueue<C> queue) {
+        Entry<C> entry = queue.indications.poll();
+        if (entry != null) {
+            return entry;
+        }
+
+        Iterator<Entry<C>> it = queue.pending.values().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+
+        entry = it.next();
+        it.remove();
+        return entry;
+    }
+
+    /**
+     * Picks the next value for the device and marks it in flight, under the lock.
+     *
+     * @return null if a value is in flight already, a retry is due or nothing is queued
+     */
+    private Entry<C> takeNext(D device) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        if (closed || queue == null || queue.inFlight != null || queue.retryScheduled) {
+            return null;
+        }
+
+        Entry<C> entry = nextEntry(queue);
+        if (entry == null) {
+            return null;
+        }
+
+        entry.attempts++;
+        entry.sentAtNanos = System.nanoTime();
+        queue.inFlight = entry;
+        entry.cancelTimeout = timer.schedule(() -> onTimeout(device, entry),
+                entry.indicate ? confirmTimeoutMs : SENT_TIMEOUT_MS);
+        return entry;
+    }
+
+    /**
+     * Handles a value the stack didn't take, under the lock. The stack rejects values while
+     * it is busy, so the value is given another go after a moment.
+     *
+     * @return the next value to send right away, if the rejected one was dropped
+     */
+    private Entry<C> rejected(D device, Entry<C> entry) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        if (queue == null || queue.inFlight != entry) {
+            /* Removed or unsubscribed meanwhile */
+            return null;
+        }
+
+        queue.inFlight = null;
+        cancelTimeout(entry);
+
+        if (entry.attempts > maxRetries) {
+            dropped(queue, 1);
+            return takeNext(device);
+        }
+
+        if (entry.indicate) {
+            queue.indications.addFirst(entry);
+        } else if (queue.pending.containsKey(entry.characteristic)) {
+            /* A newer value is waiting already */
+            coalesced(queue);
+        } else {
+            queue.pending.put(entry.characteristic, entry);
+        }
+        retried(queue);
+
+        if (!closed) {
+            queue.retryScheduled = true;
+            timer.schedule(() -> onRetry(device), RETRY_DELAY_MS);
+        }
+        return null;
+    }
+
+    /**
+     * Hands queued values to the transport, without holding the lock while it runs.
+     */
+    private void sendNext(D device) {
+        Entry<C> entry;
+        synchronized (this) {
+            entry = takeNext(device);
+        }
+
+        while (entry != null) {
+            if (transport.send(device, entry.characteristic, entry.value, entry.indicate)) {
+                return;
+            }
+
+            synchronized (this) {
+                entry = rejected(device, entry);
+            }
+        }
+    }
+
+    public synchronized List<D> getSubscribers(C characteristic) {
+        Map<D, Boolean> devices = byCharacteristic.get(characteristic);
+        return devices == null ? new ArrayList<>() : new ArrayList<>(devices.keySet());
+    }
+
+    public synchronized int pending(D device) {
+        DeviceQueue<C> queue = byDevice.get(device);
+        return queue == null ? 0 : queue.pending.size() + queue.indications.size();
+    }
+
+    public synchronized long getDelivered() {
+        return totals.delivered;
+    }
+
+    public synchronized long getCoalesced() {
+        return totals.coalesced;
+    }
+
+    public synchronized long getDropped() {
+        return totals.dropped;
+    }
+
+    public synchronized long getConfirmed() {
+        return totals.confirmed;
+    }
+
+    public synchronized long getRetries() {
+        return totals.retries;
+    }
+
+    public synchronized long getTimeouts() {
+        return totals.timeouts;
+    }
+
+    public synchronized int getMaxDepth() {
+        return totals.maxDepth;
+    }
+
+    /**
+     * Stops sending. Callbacks that arrive later, e.g. a late sent report, are ignored.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (DeviceQueue<C> queue : byDevice.values()) {
+                if (queue.inFlight != null) {
+                    cancelTimeout(queue.inFlight);
+                }
+            }
+        }
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("devices=%d characteristics=%d %s", byDevice.size(),
+                byCharacteristic.size(), totals);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepare Write queues of the GATT server, one per device.
+ * <p>
+ * Parts of a value are accumulated per attribute in a buffer that grows by doubling, so a long
+ * write costs linear work, and they can arrive at any offset and in any order. Execute Write
+ * builds the values of all attributes the device queued writes for, and only applies them if
+ * every one of them is valid. Bytes of a value no part was written to are kept from the
+ * current value of the attribute.
+ * <p>
+ * As the Core specification requires, offsets and value lengths are only checked when Execute
+ * Write arrives, and reported in its response. Prepare Write only fails once the queue of the
+ * device is full. Parts that don't fit an attribute are not stored, the attribute just
+ * remembers the error.
+ *
+ * @param <D> device type, used as a hash key
+ * @param <A> attribute type, used as a hash key
+ */
+public class PreparedWriteQueue<D, A> {
+    /* Longest attribute value allowed by the Core specification */
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 8 * MAX_ATTRIBUTE_LENGTH;
+
+    static final int ATT_ERR_INVALID_OFFSET = 0x07;
+    static final int ATT_ERR_PREPARE_QUEUE_FULL = 0x09;
+    static final int ATT_ERR_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    public interface Values<A> {
+        /**
+         * @return current value of the attribute, may be null
+         */
+        byte[] get(A attribute);
+    }
+
+    public interface Applier<D, A> {
+        void apply(D device, A attribute, byte[] value);
+    }
+
+    private static class Buffer {
+        byte[] data = new byte[INITIAL_CAPACITY];
+        final BitSet written = new BitSet();
+        int length = 0;
+        int error = 0;
+
+        void fail(int attError) {
+            if (error == 0) {
+                error = attError;
+            }
+        }
+
+        void write(int offset, byte[] value) {
+            int end = offset + value.length;
+            if (end > data.length) {
+                int capacity = data.length;
+                while (capacity < end) {
+                    capacity *= 2;
+                }
+                data = Arrays.copyOf(data, capacity);
+            }
+
+            System.arraycopy(value, 0, data, offset, value.length);
+            written.set(offset, end);
+            length = Math.max(length, end);
+        }
+
+        /**
+         * @return the value, null if it has a gap the current value doesn't cover
+         */
+        byte[] build(byte[] current) {
+            byte[] value = Arrays.copyOf(data, length);
+            int gap = written.nextClearBit(0);
+
+            while (gap < length) {
+                int end = Math.min(written.nextSetBit(gap), length);
+                if (end < 0) {
+                    end = length;
+                }
+                if (current == null || current.length < end) {
+                    return null;
+                }
+
+                System.arraycopy(current, gap, value, gap, end - gap);
+                gap = written.nextClearBit(end);
+            }
+
+            return value;
+        }
+    }
+
+    private static class DeviceQueue<A> {
+        final LinkedHashMap<A, Buffer> buffers = new LinkedHashMap<>();
+        int queuedBytes = 0;
+    }
+
+    private final int maxQueuedBytes;
+    private final Map<D, DeviceQueue<A>> queues = new HashMap<>();
+    private long prepared = 0;
+    private long executed = 0;
+    private long cancelled = 0;
+    private long rejected = 0;
+    private long bytes = 0;
+
+    public PreparedWriteQueue() {
+        this(DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    public PreparedWriteQueue(int maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Queues a part of the value of the attribute.
+     *
+     * @return 0 if queued, {@link #ATT_ERR_PREPARE_QUEUE_FULL} otherwise
+     */
+    public synchronized int prepare(D device, A attribute, int offset, byte[] value) {
+        DeviceQueue<A> queue = queues.get(device);
+        if (queue == null) {
+            queue = new DeviceQueue<>();
+            queues.put(device, queue);
+        }
+
+        if (queue.queuedBytes + value.length > maxQueuedBytes) {
+            rejected++;
+            return ATT_ERR_PREPARE_QUEUE_FULL;
+        }
+
+        Buffer buffer = queue.buffers.get(attribute);
+        if (buffer == null) {
+            buffer = new Buffer();
+            queue.buffers.put(attribute, buffer);
+        }
+
+        if (offset < 0 || offset > MAX_ATTRIBUTE_LENGTH) {
+            buffer.fail(ATT_ERR_INVALID_OFFSET);
+        } else if (offset + value.length > MAX_ATTRIBUTE_LENGTH) {
+            buffer.fail(ATT_ERR_INVALID_ATTRIBUTE_LENGTH);
+        } else {
+            buffer.write(offset, value);
+        }
+
+        queue.queuedBytes += value.length;
+        prepared++;
+        return 0;
+    }
+
+    /**
+     * Applies or drops everything the device queued. Values are applied in the order their
+     * attributes were first written, and only if all of them are valid. A value is invalid
+     * if a part of it didn't fit the attribute, or if it leaves a gap past the end of the
+     * current value.
+     *
+     * @return 0 on success or cancel, ATT error code if nothing was applied
+     */
+    public synchronized int execute(D device, boolean commit, Values<A> values,
+                                    Applier<D, A> applier) {
+        DeviceQueue<A> queue = queues.remove(device);
+        if (queue == null) {
+            return 0;
+        }
+
+        if (!commit) {
+            cancelled++;
+            return 0;
+        }
+
+        List<A> attributes = new ArrayList<>(queue.buffers.size());
+        List<byte[]> built = new ArrayList<>(queue.buffers.size());
+        for (Map.Entry<A, Buffer> entry : queue.buffers.entrySet()) {
+            if (entry.getValue().error != 0) {
+                rejected++;
+                return entry.getValue().error;
+            }
+
+            byte[] value = entry.getValue().build(values.get(entry.getKey()));
+            if (value == null) {
+                rejected++;
+                return ATT_ERR_INVALID_OFFSET;
+            }
+
+            attributes.add(entry.getKey());
+            built.add(value);
+        }
+
+        for (int i = 0; i < attributes.size(); i++) {
+            applier.apply(device, attributes.get(i), built.get(i));
+            bytes += built.get(i).length;
+        }
+
+        executed++;
+        return 0;
+    }
+
+    /**
+     * Drops whatever a disconnected device left queued.
+     */
+    public synchronized void removeDevice(D device) {
+        if (queues.remove(device) != null) {
+            cancelled++;
+        }
+    }
+
+    public synchronized int queuedBytes(D device) {
+        DeviceQueue<A> queue = queues.get(device);
+        return queue == null ? 0 : queue.queuedBytes;
+    }
+
+    public synchronized long getPrepared() {
+        return prepared;
+    }
+
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    public synchronized long getCancelled() {
+        return cancelled;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("prepared=%d executed=%d cancelled=%d rejected=%d bytes=%d",
+                prepared, executed, cancelled, rejected, bytes);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves reads of local attribute values, one MTU-sized slice per request.
+ * <p>
+ * A read at offset 0 pins a snapshot of the value for the reading device, and the Read Blob
+ * requests that continue where the previous slice ended are served from it, so a long read
+ * never sees a value that changed half way through. The snapshot is unpinned once the last,
+ * short slice was sent. A Read Blob at any other offset is not part of that long read, it is
+ * served from the current value and starts a new one. Snapshots are shared as long as the
+ * attribute keeps the same value, and a full slice is copied into a buffer reused for every
+ * slice of that size, which makes a long read cost linear work in the value length. Attribute
+ * values are expected to be replaced with a new array on every change, not modified in place.
+ *
+ * @param <D> device type, used as a hash key
+ * @param <A> attribute type, used as a hash key
+ */
+public class ReadSnapshotCache<D, A> {
+    private static final byte[] EMPTY = new byte[0];
+
+    public interface Responder {
+        /**
+         * Sends the slice, which is only valid for the duration of the call.
+         */
+        void respond(byte[] slice);
+    }
+
+    private static class Snapshot {
+        /* Value array the attribute held when the snapshot was taken */
+        final byte[] source;
+        final byte[] value;
+
+        Snapshot(byte[] source) {
+            this.source = source;
+            this.value = source == null ? EMPTY : source.clone();
+        }
+    }
+
+    private static class Pin {
+        final Snapshot snapshot;
+        /* Offset the next Read Blob of the long read continues at */
+        int next;
+
+        Pin(Snapshot snapshot, int next) {
+            this.snapshot = snapshot;
+            this.next = next;
+        }
+    }
+
+    /* Last snapshot taken of each attribute, shared by the devices reading it */
+    private final Map<A, Snapshot> latest = new HashMap<>();
+    private final Map<D, Map<A, Pin>> reading = new HashMap<>();
+    private final Map<Integer, byte[]> buffers = new HashMap<>();
+    private long reads = 0;
+    private long bytes = 0;
+    private long snapshots = 0;
+    private long reused = 0;
+
+    /**
+     * @param current value the attribute holds now
+     * @param mtu     ATT MTU of the connection with the device
+     * @return false if the offset is past the end of the value, nothing is sent then
+     */
+    public synchronized boolean serve(D device, A attribute, byte[] current, int offset,
+                                      int mtu, Responder responder) {
+        Pin pin = offset == 0 ? null : pinned(device, attribute);
+        Snapshot snapshot = pin != null && pin.next == offset ? pin.snapshot :
+                snapshot(attribute, current);
+
+        byte[] value = snapshot.value;
+        if (offset > value.length) {
+            unpin(device, attribute);
+            return false;
+        }
+
+        int length = Math.min(value.length - offset, mtu - 1);
+        reads++;
+        bytes += length;
+
+        if (length < mtu - 1) {
+            /* The client stops reading after a short slice */
+            unpin(device, attribute);
+        } else if (pin != null && pin.snapshot == snapshot) {
+            pin.next = offset + length;
+        } else {
+            pin(device, attribute, new Pin(snapshot, offset + length));
+        }
+
+        if (length == value.length) {
+            responder.respond(value);
+            return true;
+        }
+
+        byte[] slice;
+        if (length == mtu - 1) {
+            slice = buffers.get(length);
+            if (slice == null) {
+                slice = new byte[length];
+                buffers.put(length, slice);
+            } else {
+                reused++;
+            }
+        } else {
+            /* Last part of a long value */
+            slice = new byte[length];
+        }
+
+        System.arraycopy(value, offset, slice, 0, length);
+        responder.respond(slice);
+        return true;
+    }
+
+    private Pin pinned(D device, A attribute) {
+        Map<A, Pin> pinned = reading.get(device);
+        return pinned == null ? null : pinned.get(attribute);
+    }
+
+    private void pin(D device, A attribute, Pin pin) {
+        Map<A, Pin> pinned = reading.get(device);
+        if (pinned == null) {
+            pinned = new HashMap<>();
+            reading.put(device, pinned);
+        }
+        pinned.put(attribute, pin);
+    }
+
+    private void unpin(D device, A attribute) {
+        Map<A, Pin> pinned = reading.get(device);
+        if (pinned == null) {
+            return;
+        }
+
+        pinned.remove(attribute);
+        if (pinned.isEmpty()) {
+            reading.remove(device);
+        }
+    }
+
+    /**
+     * @return number of long reads in progress for the device
+     */
+    public synchronized int pinned(D device) {
+        Map<A, Pin> pinned = reading.get(device);
+        return pinned == null ? 0 : pinned.size();
+    }
+
+    private Snapshot snapshot(A attribute, byte[] current) {
+        Snapshot snapshot = latest.get(attribute);
+        if (snapshot != null && snapshot.source == current) {
+            return snapshot;
+        }
+
+        snapshot = new Snapshot(current);
+        latest.put(attribute, snapshot);
+        snapshots++;
+        return snapshot;
+    }
+
+    /**
+     * Drops the snapshots pinned by a disconnected device.
+     */
+    public synchronized void removeDevice(D device) {
+        reading.remove(device);
+    }
+
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getSnapshots() {
+        return snapshots;
+    }
+
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("reads=%d bytes=%d snapshots=%d reused=%d", reads, bytes,
+                snapshots, reused);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.juul.btptesterandroid;
+
+import com.juul.btptesterandroid.DiscoveredDeviceCache.DiscoveredDevice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters scan results before they are reported as BTP device found events.
+ * <p>
+ * A result is forwarded only when its advertising payload differs from the one last reported
+ * for the device, and no more often than the minimum interval per device. The interval is 0,
+ * no throttling, unless a session sets it with the {@code scan} handshake query parameter.
+ * A payload that is a prefix of the last reported one is the advertisement without the scan
+ * response already reported with it, so it is dropped as well.
+ * <p>
+ * The last reported payload is kept in the {@link DiscoveredDevice} record, so forgetting a
+ * device in the cache also makes its next result reported again.
+ */
+public class ScanCoalescer {
+    public static final long DEFAULT_MIN_INTERVAL_MS = 0;
+
+    private final long minIntervalNanos;
+
+    private long offered;
+    private long forwarded;
+    private long duplicates;
+    private long merged;
+    private long throttled;
+
+    public ScanCoalescer() {
+        this(DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    public ScanCoalescer(long minIntervalMs) {
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+    }
+
+    /**
+     * Length of the significant part of the advertising payload. Android pads the raw scan
+     * record with zeros, the padding starts with the first zero length AD structure.
+     */
+    public static int adLength(byte[] data) {
+        if (data == null) {
+            return 0;
+        }
+
+        int pos = 0;
+        while (pos < data.length) {
+            int len = data[pos] & 0xff;
+            if (len == 0 || pos + 1 + len > data.length) {
+                break;
+            }
+            pos += 1 + len;
+        }
+
+        return pos;
+    }
+
+    private static int hash(byte[] data, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    private static boolean isPrefix(byte[] a, int aLen, byte[] b, int bLen) {
+        if (aLen > bLen) {
+            return false;
+        }
+
+        for (int i = 0; i < aLen; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decides whether a scan result should be reported.
+     *
+     * @param device cached record of the device
+     * @param payload raw scan record, not copied and must not be modified afterwards
+     * @param length significant length of the payload, see {@link #adLength(byte[])}
+     * @param nowNanos timestamp of the scan result
+     * @return true if the result should be forwarded
+     */
+    public synchronized boolean offer(DiscoveredDevice device, byte[] payload, int length,
+                                      long nowNanos) {
+        offered++;
+
+        int h = hash(payload, length);
+        if (device.payload != null) {
+            if (length == device.payloadLength) {
+                /* The hash rules out most changed payloads without comparing them */
+                if (h == device.payloadHash &&
+                        isPrefix(payload, length, device.payload, device.payloadLength)) {
+                    duplicates++;
+                    return false;
+                }
+            } else if (isPrefix(payload, length, device.payload, device.payloadLength)) {
+                /* Advertisement without the scan response reported before */
+                merged++;
+                return false;
+            }
+
+            if (nowNanos - device.lastReportNanos < minIntervalNanos) {
+                throttled++;
+                return false;
+            }
+        }
+
+        device.payload = payload;
+        device.payloadLength = length;
+        device.payloadHash = h;
+        device.lastReportNanos = nowNanos;
+        forwarded++;
+        return true;
+    }
+
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    public synchronized long getForwarded() {
+        return forwarded;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getMerged() {
+        return merged;
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("offered=%d forwarded=%d duplicates=%d merged=%d throttled=%d",
+                offered, forwarded, duplicates, merged, throttled);
+    }
+}
@@ -16,29 +16,45 @@
 
 package com.juul.btptesterandroid;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
-import android.util.Log;
 
-import java.util.HashMap;
+import com.juul.btptesterandroid.DiscoveredDeviceCache.DiscoveredDevice;
+
 import java.util.List;
-import java.util.Map;
 
 import no.nordicsemi.android.support.v18.scanner.ScanCallback;
+import no.nordicsemi.android.support.v18.scanner.ScanRecord;
 import no.nordicsemi.android.support.v18.scanner.ScanResult;
 
 public class ScanConnectCallback extends ScanCallback {
     private final static String TAG = "GAP";
-    private Map<String, ScanResult> results;
+    private static final byte[] EMPTY_DATA = new byte[0];
+    private final BluetoothAdapter bleAdapter;
+    private final DiscoveredDeviceCache devices;
+    private final ScanCoalescer coalescer;
     private int errorCode;
     private IDeviceDiscovered deviceDiscoveredCb;
 
     public interface IDeviceDiscovered {
-        void report(ScanResult result);
+        /**
+         * @param device cached record of the device, its payload is the scan record of the
+         *               result, of which only the first payloadLength bytes are significant
+         */
+        void report(ScanResult result, DiscoveredDevice device);
+    }
+
+    ScanConnectCallback(BluetoothAdapter bleAdapter) {
+        this(bleAdapter, new DiscoveredDeviceCache(), new ScanCoalescer());
     }
 
-    ScanConnectCallback() {
-        results = new HashMap<>();
+    ScanConnectCallback(BluetoothAdapter bleAdapter, DiscoveredDeviceCache devices,
+                        ScanCoalescer coalescer) {
+        this.bleAdapter = bleAdapter;
+        this.devices = devices;
+        this.coalescer = coalescer;
         errorCode = 0;
     }
 
@@ -47,34 +63,65 @@ public class ScanConnectCallback extends ScanCallback {
     }
 
     public BluetoothDevice findDiscoveredDevice(String address) {
-        ScanResult result = results.getOrDefault(address, null);
-        if (result == null) {
+        DiscoveredDevice device = devices.find(address, SystemClock.elapsedRealtimeNanos());
+        if (device == null) {
             return null;
         }
 
-        return result.getDevice();
+        return bleAdapter.getRemoteDevice(address);
     }
 
     private void deviceDiscovered(@NonNull ScanResult result) {
-        results.put(result.getDevice().getAddress(), result);
-        if (deviceDiscoveredCb != null) {
-            deviceDiscoveredCb.report(result);
+        long now = result.getTimestampNanos();
+        DiscoveredDevice device = devices.seen(result.getDevice().getAddress(),
+                result.getRssi(), now);
+
+        IDeviceDiscovered cb = deviceDiscoveredCb;
+        if (cb == null) {
+            return;
+        }
+
+        ScanRecord record = result.getScanRecord();
+        byte[] data = record == null ? null : record.getBytes();
+        if (data == null) {
+            data = EMPTY_DATA;
+        }
+
+        if (coalescer.offer(device, data, ScanCoalescer.adLength(data), now)) {
+            cb.report(result, device);
         }
     }
+
+    public DiscoveredDeviceCache getDevices() {
+        return devices;
+    }
+
+    public ScanCoalescer getCoalescer() {
+        return coalescer;
+    }
+
     public void setDeviceDiscoveredCb(IDeviceDiscovered cb) {
         this.deviceDiscoveredCb = cb;
     }
 
     public void clearCache() {
         this.deviceDiscoveredCb = null;
-        results.clear();
+        devices.clear();
+        devices.setAging(true);
         errorCode = 0;
     }
 
+    /**
+     * Keeps the devices found so far until the next discovery.
+     */
+    public void discoveryStopped() {
+        devices.setAging(false);
+    }
+
     @Override
     public void onScanResult(int callbackType, @NonNull ScanResult result) {
         super.onScanResult(callbackType, result);
-        Log.d(TAG, String.format("onScanResult %s", result.toString()));
+        Trace.d(TAG, "onScanResult %s", result);
         deviceDiscovered(result);
     }
 
@@ -82,7 +129,7 @@ public class ScanConnectCallback extends ScanCallback {
     public void onBatchScanResults(@NonNull List<ScanResult> results) {
         super.onBatchScanResults(results);
         for (ScanResult result : results) {
-            Log.d(TAG, String.format("onBatchScanResult %s", result.toString()));
+            Trace.d(TAG, "onBatchScanResult %s", result);
             deviceDiscovered(result);
         }
     }
@@ -90,7 +137,7 @@ public class ScanConnectCallback extends ScanCallback {
     @Override
     public void onScanFailed(int errorCode) {
         super.onScanFailed(errorCode);
-        Log.d(TAG, String.format("onScanFailed %d", errorCode));
+        Trace.d(TAG, "onScanFailed %d", errorCode);
         this.errorCode = errorCode;
     }
 }
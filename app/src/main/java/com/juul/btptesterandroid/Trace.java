@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug tracing with level gates and lazy formatting.
+ * <p>
+ * {@link #ENABLED} switches debug messages off altogether, and at runtime messages below
+ * {@link #setLevel(int)} are skipped before anything is formatted.
+ * Arguments are only formatted once a message passes both gates; byte arrays and buffers are
+ * formatted as hex at that point.
+ * <p>
+ * Frame events can additionally be recorded into a binary ring buffer, enabled with
+ * {@link #enableRing(int)}, e.g. from the {@code trace} handshake query parameter, and dumped
+ * with {@link #dumpRing()} when a session is cleaned up. The ring is shared by all sessions,
+ * the last session that asks for it sets its size.
+ */
+public final class Trace {
+    public static final boolean ENABLED = true;
+
+    public static final byte DIR_IN = 0;
+    public static final byte DIR_OUT = 1;
+
+    private static volatile int level = Log.DEBUG;
+    private static volatile Ring ring = null;
+
+    private Trace() {
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static boolean isDebugEnabled() {
+        return ENABLED && level <= Log.DEBUG;
+    }
+
+    public static void d(String tag, String msg) {
+        if (isDebugEnabled()) {
+            Log.d(tag, msg);
+        }
+    }
+
+    public static void d(String tag, String fmt, Object arg0) {
+        if (isDebugEnabled()) {
+            Log.d(tag, format(fmt, arg0));
+        }
+    }
+
+    public static void d(String tag, String fmt, Object arg0, Object arg1) {
+        if (isDebugEnabled()) {
+            Log.d(tag, format(fmt, arg0, arg1));
+        }
+    }
+
+    public static void d(String tag, String fmt, Object arg0, Object arg1, Object arg2) {
+        if (isDebugEnabled()) {
+            Log.d(tag, format(fmt, arg0, arg1, arg2));
+        }
+    }
+
+    public static void d(String tag, String fmt, Object arg0, Object arg1, Object arg2,
+                         Object arg3) {
+        if (isDebugEnabled()) {
+            Log.d(tag, format(fmt, arg0, arg1, arg2, arg3));
+        }
+    }
+
+    public static void d(String tag, String fmt, Object... args) {
+        if (isDebugEnabled()) {
+            Log.d(tag, format(fmt, args));
+        }
+    }
+
+    private static String format(String fmt, Object... args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof byte[]) {
+                args[i] = Utils.bytesToHex((byte[]) args[i]);
+            } else if (args[i] instanceof ByteBuffer) {
+                args[i] = Utils.bytesToHex((ByteBuffer) args[i]);
+            }
+        }
+
+        return String.format(fmt, args);
+    }
+
+    /**
+     * Fixed size ring of 16 byte frame records: a timestamp followed by the direction,
+     * service, opcode, index and payload length packed into one long.
+     */
+    private static class Ring {
+        final long[] records;
+        final int mask;
+        final AtomicLong next = new AtomicLong();
+
+        Ring(int capacity) {
+            records = new long[capacity * 2];
+            mask = capacity - 1;
+        }
+
+        void add(long timestamp, long packed) {
+            int slot = (int) (next.getAndIncrement() & mask) * 2;
+            records[slot] = timestamp;
+            records[slot + 1] = packed;
+        }
+    }
+
+    /**
+     * Starts recording frames into a ring of at least {@code capacity} records, rounded up
+     * to a power of two. A capacity of 0 stops recording. The ring replaces any earlier one,
+     * dropping what it recorded.
+     */
+    public static void enableRing(int capacity) {
+        if (capacity <= 0) {
+            ring = null;
+            return;
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        ring = new Ring(size);
+    }
+
+    public static boolean isRingEnabled() {
+        return ring != null;
+    }
+
+    public static void frame(byte direction, byte service, byte opcode, byte index, int len) {
+        Ring r = ring;
+        if (r == null) {
+            return;
+        }
+
+        r.add(System.nanoTime(), (long) (direction & 0xff) << 48 |
+                (long) (service & 0xff) << 40 | (long) (opcode & 0xff) << 32 |
+                (long) (index & 0xff) << 24 | (len & 0xffffff));
+    }
+
+    /**
+     * Formats the recorded frames, oldest first. Records written while dumping may show up
+     * torn; the ring is meant for post mortem inspection.
+     */
+    public static String dumpRing() {
+        Ring r = ring;
+        if (r == null) {
+            return "";
+        }
+
+        long end = r.next.get();
+        long start = Math.max(0, end - (r.mask + 1));
+        StringBuilder sb = new StringBuilder();
+
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & r.mask) * 2;
+            long packed = r.records[slot + 1];
+
+            sb.append(String.format("%d %s service=0x%02x opcode=0x%02x index=0x%02x len=%d\n",
+                    r.records[slot], (packed >>> 48 & 0xff) == DIR_IN ? "<" : ">",
+                    packed >>> 40 & 0xff, packed >>> 32 & 0xff, packed >>> 24 & 0xff,
+                    packed & 0xffffff));
+        }
+
+        return sb.toString();
+    }
+}
@@ -19,7 +19,6 @@ package com.juul.btptesterandroid;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
-import android.util.Log;
 
 import com.juul.btptesterandroid.gatt.GattDBCharacteristic;
 import com.juul.btptesterandroid.gatt.GattDBDescriptor;
@@ -84,6 +83,21 @@ public class Utils {
         return new String(hexChars);
     }
 
+    public static String bytesToHex(ByteBuffer buffer) {
+        if (buffer == null) {
+            return "";
+        }
+
+        int pos = buffer.position();
+        char[] hexChars = new char[buffer.remaining() * 2];
+        for ( int j = 0; j < buffer.remaining(); j++ ) {
+            int v = buffer.get(pos + j) & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
     public static byte[] hexStringToByteArray(String s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
@@ -104,46 +118,72 @@ public class Utils {
     }
 
     public static byte[] btAddrToBytes(String address) {
-        String addrStr = address.replaceAll(":", "");
-        byte[] addr = hexStringToByteArray(addrStr);
-        reverseBytes(addr);
-        return addr;
+        return BdAddr.toBtp(address);
     }
 
+    /**
+     * @param bytes address as left by the BTP command parsers, most significant byte first
+     */
     public static String btpToBdAddr(byte[] bytes) {
-        String hexAddr = Utils.bytesToHex(bytes);
-        return hexAddr.replaceAll("..(?!$)", "$0:");
+        return BdAddr.toString(BdAddr.fromBytes(bytes));
     }
 
     public static final String BT_BASE_UUID_STR = "00000000-0000-1000-8000-00805f9b34fb";
-    public static final byte[] BT_BASE_UUID_BYTE = hexStringToByteArray(
-            BT_BASE_UUID_STR.replace("-", ""));
 
-    public static UUID btpToUUID(byte[] bytes) {
-        byte[] uuidBytes;
+    /* Bluetooth Base UUID with the 16/32-bit value bits cleared */
+    static final long BT_BASE_UUID_MSB = 0x0000000000001000L;
+    static final long BT_BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    /* 16-bit SIG UUIDs that show up in every database: services (0x18xx), declarations
+     * (0x28xx), descriptors (0x29xx) and characteristics (0x2Axx-0x2Bxx).
+     */
+    private static final int SIG_UUID_CACHE_FIRST = 0x1800;
+    private static final int SIG_UUID_CACHE_LAST = 0x2FFF;
+    private static final UUID[] sigUuidCache =
+            new UUID[SIG_UUID_CACHE_LAST - SIG_UUID_CACHE_FIRST + 1];
+
+    /**
+     * Returns the UUID of a 16 or 32-bit SIG assigned number, interned for the common
+     * 16-bit ranges. UUIDs are immutable, so racing fills of the cache are harmless.
+     */
+    public static UUID sigUUID(long value) {
+        if (value < SIG_UUID_CACHE_FIRST || value > SIG_UUID_CACHE_LAST) {
+            return new UUID((value & 0xFFFFFFFFL) << 32 | BT_BASE_UUID_MSB, BT_BASE_UUID_LSB);
+        }
 
-        if (bytes.length != 2 && bytes.length != 4 && bytes.length != 16) {
-            return null;
+        int idx = (int) value - SIG_UUID_CACHE_FIRST;
+        UUID uuid = sigUuidCache[idx];
+        if (uuid == null) {
+            uuid = new UUID(value << 32 | BT_BASE_UUID_MSB, BT_BASE_UUID_LSB);
+            sigUuidCache[idx] = uuid;
         }
 
-        if (bytes.length == 16) {
-            uuidBytes = bytes;
-        } else if (bytes.length == 2) {
-            byte[] uuid = BT_BASE_UUID_BYTE.clone();
-            uuid[2] = bytes[0];
-            uuid[3] = bytes[1];
-            uuidBytes = uuid;
-        } else {
-            byte[] uuid = BT_BASE_UUID_BYTE.clone();
-            uuid[0] = bytes[0];
-            uuid[1] = bytes[1];
-            uuid[2] = bytes[2];
-            uuid[3] = bytes[3];
-            uuidBytes = uuid;
+        return uuid;
+    }
+
+    private static long getLongBE(byte[] bytes, int offset, int len) {
+        long value = 0;
+        for (int i = offset; i < offset + len; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
         }
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(uuidBytes);
-        return new UUID(byteBuffer.getLong(), byteBuffer.getLong());
+        return value;
+    }
+
+    /**
+     * Converts a big endian 16, 32 or 128-bit UUID, as left by the command parsers after
+     * reversing the BTP bytes.
+     */
+    public static UUID btpToUUID(byte[] bytes) {
+        switch (bytes.length) {
+            case 2:
+            case 4:
+                return sigUUID(getLongBE(bytes, 0, bytes.length));
+            case 16:
+                return new UUID(getLongBE(bytes, 0, 8), getLongBE(bytes, 8, 8));
+            default:
+                return null;
+        }
     }
 
     public static UUID stringToUUID(String str) {
@@ -153,59 +193,77 @@ public class Utils {
     }
 
     public static boolean isBluetoothSIGUuid(UUID uuid) {
-        String uuidStr = uuid.toString();
-        String normalizedStr = "00000000" + uuidStr.substring(8);
-        return normalizedStr.equals(BT_BASE_UUID_STR);
+        return (uuid.getMostSignificantBits() & 0xFFFFFFFFL) == BT_BASE_UUID_MSB &&
+                uuid.getLeastSignificantBits() == BT_BASE_UUID_LSB;
     }
 
-    public static byte[] UUIDtoBTP(UUID uuid) {
-        if (isBluetoothSIGUuid(uuid)) {
-            String uuidStr = uuid.toString();
-            String substr = uuidStr.substring(0, 8);
-            byte[] byteuuid = hexStringToByteArray(substr);
-            if (byteuuid[0] == 0 && byteuuid[1] == 0) {
-                return new byte[] {byteuuid[3], byteuuid[2]};
-            } else {
-                reverseBytes(byteuuid);
-                return byteuuid;
+    /**
+     * Length of the BTP form of the UUID: 2 or 4 bytes for SIG UUIDs, 16 otherwise.
+     */
+    public static int UUIDtoBTPLength(UUID uuid) {
+        if (!isBluetoothSIGUuid(uuid)) {
+            return 16;
+        }
+
+        return (uuid.getMostSignificantBits() >>> 48) == 0 ? 2 : 4;
+    }
+
+    /**
+     * Writes the little endian BTP form of the UUID at the buffer position, regardless of
+     * the buffer byte order.
+     */
+    public static void putUUID(ByteBuffer buffer, UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        int len = UUIDtoBTPLength(uuid);
+
+        if (len != 16) {
+            long value = msb >>> 32;
+            for (int i = 0; i < len; i++) {
+                buffer.put((byte) (value >>> (8 * i)));
             }
+            return;
         }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(16);
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 8; i++) {
+            buffer.put((byte) (lsb >>> (8 * i)));
+        }
+        for (int i = 0; i < 8; i++) {
+            buffer.put((byte) (msb >>> (8 * i)));
+        }
+    }
 
-        byteBuffer.putLong(uuid.getLeastSignificantBits());
-        byteBuffer.putLong(uuid.getMostSignificantBits());
+    public static byte[] UUIDtoBTP(UUID uuid) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(UUIDtoBTPLength(uuid));
+        putUUID(byteBuffer, uuid);
         return byteBuffer.array();
     }
 
     public static List<GattDBService> initializeGattDB(List<BluetoothGattService> services) {
-        Log.d(GATT_TAG, "initializeGattDB");
+        Trace.d(GATT_TAG, "initializeGattDB");
         ArrayList<GattDBService> dbServices = new ArrayList<>();
         int curHandle = 1;
 
         for (BluetoothGattService svc : services) {
-            Log.d(GATT_TAG, String.format("service UUID=%s TYPE=%d",
-                    svc.getUuid(), svc.getType()));
+            Trace.d(GATT_TAG, "service UUID=%s TYPE=%d", svc.getUuid(), svc.getType());
 
             GattDBService service = new GattDBService(svc);
 
             for (BluetoothGattService inc : svc.getIncludedServices()) {
-                Log.d(GATT_TAG, String.format("include UUID=%s TYPE=%d",
-                        inc.getUuid(), inc.getType()));
+                Trace.d(GATT_TAG, "include UUID=%s TYPE=%d", inc.getUuid(), inc.getType());
 
                 service.addIncludeService(new GattDBIncludeService(new GattDBService(inc)));
             }
 
             for (BluetoothGattCharacteristic chr : svc.getCharacteristics()) {
-                Log.d(GATT_TAG, String.format("characteristic UUID=%s PROPS=%d PERMS=%d",
-                        chr.getUuid(), chr.getProperties(), chr.getPermissions()));
+                Trace.d(GATT_TAG, "characteristic UUID=%s PROPS=%d PERMS=%d", chr.getUuid(),
+                        chr.getProperties(), chr.getPermissions());
 
                 GattDBCharacteristic characteristic = new GattDBCharacteristic(chr);
 
                 for (BluetoothGattDescriptor dsc : chr.getDescriptors()) {
-                    Log.d(GATT_TAG, String.format("descriptor UUID=%s PERMS=%d",
-                            dsc.getUuid(), dsc.getPermissions()));
+                    Trace.d(GATT_TAG, "descriptor UUID=%s PERMS=%d", dsc.getUuid(),
+                            dsc.getPermissions());
 
                     characteristic.addDescriptor(new GattDBDescriptor(dsc));
                 }
@@ -265,112 +323,6 @@ public class Utils {
     public static final byte[] BT_INC_SVC_TYPE_UUID_BYTES = new byte[]{ 0x02, 0x28 };
     public static final byte[] BT_CHRC_TYPE_UUID_BYTES = new byte[]{ 0x03, 0x28 };
 
-    public static List<BTP.GattAttribute> getGATTAttributes(List<BluetoothGattService> services,
-                                                            int startHandle, int endHandle,
-                                                            UUID typeUUID) {
-        List<GattDBService> dbServices = Utils.initializeGattDB(services);
-        List<BTP.GattAttribute> attrs = new ArrayList<>();
-
-        for (GattDBService svc : dbServices) {
-            Log.d(GATT_TAG, String.format("service UUID=%s TYPE=%d",
-                    svc.getService().getUuid(), svc.getService().getType()));
-            attrs.add(new BTP.GattAttribute(svc));
-
-            for (GattDBIncludeService inc : svc.getIncludedServices()) {
-                Log.d(GATT_TAG, String.format("include UUID=%s TYPE=%d",
-                        inc.getService().getService().getUuid(),
-                        inc.getService().getService().getType()));
-                attrs.add(new BTP.GattAttribute(inc));
-            }
-
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                Log.d(GATT_TAG, String.format("characteristic UUID=%s PROPS=%d PERMS=%d",
-                        chr.getCharacteristic().getUuid(),
-                        chr.getCharacteristic().getProperties(),
-                        chr.getCharacteristic().getPermissions()));
-                attrs.add(new BTP.GattAttribute(chr));
-
-                for (GattDBDescriptor dsc : chr.getDescriptors()) {
-                    Log.d(GATT_TAG, String.format("descriptor UUID=%s PERMS=%d",
-                            dsc.getDescriptor().getUuid(),
-                            dsc.getDescriptor().getPermissions()));
-                    attrs.add(new BTP.GattAttribute(dsc));
-                }
-            }
-        }
-
-        return attrs;
-    }
-
-    public static byte[] gattAttrValToBTP(List<BluetoothGattService> services,
-                                          int handle) {
-        List<GattDBService> dbServices = Utils.initializeGattDB(services);
-
-        for (GattDBService svc : dbServices) {
-            Log.d(GATT_TAG, String.format("service UUID=%s TYPE=%d",
-                    svc.getService().getUuid(), svc.getService().getType()));
-
-            if (svc.getStartHandle() == handle) {
-                return svc.toBTP();
-            }
-
-            for (GattDBIncludeService inc : svc.getIncludedServices()) {
-                Log.d(GATT_TAG, String.format("include UUID=%s TYPE=%d",
-                        inc.getService().getService().getUuid(),
-                        inc.getService().getService().getType()));
-
-                if (inc.getHandle() == handle) {
-                    return inc.toBTP();
-                }
-            }
-
-            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
-                Log.d(GATT_TAG, String.format("characteristic UUID=%s PROPS=%d PERMS=%d",
-                        chr.getCharacteristic().getUuid(),
-                        chr.getCharacteristic().getProperties(),
-                        chr.getCharacteristic().getPermissions()));
-
-                if (chr.getDefHandle() == handle) {
-                    return chr.toBTPDefinition();
-                }
-
-                if (chr.getValHandle() == handle) {
-                    return chr.toBTPValue();
-                }
-
-                for (GattDBDescriptor dsc : chr.getDescriptors()) {
-                    Log.d(GATT_TAG, String.format("descriptor UUID=%s PERMS=%d",
-                            dsc.getDescriptor().getUuid(),
-                            dsc.getDescriptor().getPermissions()));
-
-                    if (dsc.getHandle() == handle) {
-                        return dsc.toBTP();
-                    }
-                }
-            }
-        }
-
-        return null;
-    }
-
     static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID
             .fromString("00002902-0000-1000-8000-00805f9b34fb");
-
-
-    public static BluetoothGattService findServiceByHandle(List<BluetoothGattService> services,
-                                                           int handle) {
-        List<GattDBService> dbServices = Utils.initializeGattDB(services);
-
-        for (GattDBService svc : dbServices) {
-            Log.d(GATT_TAG, String.format("service UUID=%s TYPE=%d",
-                    svc.getService().getUuid(), svc.getService().getType()));
-
-            if (svc.getStartHandle() == handle) {
-                return svc.getService();
-            }
-
-        }
-
-        return null;
-    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid.gatt;
+
+import java.util.Arrays;
+
+/**
+ * Maps the attribute IDs handed out for GATT_ADD_* commands to the attributes they created.
+ * <p>
+ * IDs are assigned sequentially from 1, so they index straight into an array.
+ */
+public class GattAttributeIdMap {
+    private Object[] attributes = new Object[64];
+    private int maxId = 0;
+
+    public synchronized void register(int attrId, Object attr) {
+        if (attrId <= 0) {
+            return;
+        }
+
+        if (attrId >= attributes.length) {
+            attributes = Arrays.copyOf(attributes, Math.max(attrId + 1, attributes.length * 2));
+        }
+
+        attributes[attrId] = attr;
+        maxId = Math.max(maxId, attrId);
+    }
+
+    public synchronized Object get(int attrId) {
+        if (attrId <= 0 || attrId > maxId) {
+            return null;
+        }
+
+        return attributes[attrId];
+    }
+
+    public synchronized int size() {
+        return maxId;
+    }
+}
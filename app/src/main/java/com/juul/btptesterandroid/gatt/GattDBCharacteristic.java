@@ -22,8 +22,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
-import static com.juul.btptesterandroid.Utils.UUIDtoBTP;
+import static com.juul.btptesterandroid.Utils.UUIDtoBTPLength;
+import static com.juul.btptesterandroid.Utils.putUUID;
 
 public class GattDBCharacteristic {
 
@@ -72,13 +74,13 @@ public class GattDBCharacteristic {
     }
 
     public byte[] toBTPDefinition() {
-        byte[] uuid = UUIDtoBTP(getCharacteristic().getUuid());
-        ByteBuffer buf = ByteBuffer.allocate(1 + 2 + uuid.length);
+        UUID uuid = getCharacteristic().getUuid();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 2 + UUIDtoBTPLength(uuid));
         buf.order(ByteOrder.LITTLE_ENDIAN);
 
         buf.put((byte) getCharacteristic().getProperties());
         buf.putShort((short) getValHandle());
-        buf.put(uuid);
+        putUUID(buf, uuid);
 
         return buf.array();
     }
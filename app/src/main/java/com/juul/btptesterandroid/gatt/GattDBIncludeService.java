@@ -20,8 +20,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.UUID;
 
-import static com.juul.btptesterandroid.Utils.UUIDtoBTP;
+import static com.juul.btptesterandroid.Utils.UUIDtoBTPLength;
 import static com.juul.btptesterandroid.Utils.isBluetoothSIGUuid;
+import static com.juul.btptesterandroid.Utils.putUUID;
 
 public class GattDBIncludeService {
 
@@ -47,10 +48,9 @@ public class GattDBIncludeService {
 
     public byte[] toBTP() {
         UUID uuid = getService().getService().getUuid();
-        byte[] uuidBytes = UUIDtoBTP(getService().getService().getUuid());
         int uuidLen = 0;
         if (isBluetoothSIGUuid(uuid)) {
-            uuidLen = uuidBytes.length;
+            uuidLen = UUIDtoBTPLength(uuid);
         }
 
         ByteBuffer buf = ByteBuffer.allocate(2 + 2 + uuidLen);
@@ -58,7 +58,10 @@ public class GattDBIncludeService {
 
         buf.putShort((short) getService().getStartHandle());
         buf.putShort((short) getService().getEndHandle());
-        buf.put(uuidBytes);
+        /* 128-bit UUIDs are not part of the include declaration value */
+        if (uuidLen > 0) {
+            putUUID(buf, uuid);
+        }
 
         return buf.array();
     }
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid.gatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable handle index over a discovered GATT database.
+ * <p>
+ * Attributes are stored in arrays indexed by handle, so lookups by handle are O(1) and range
+ * queries only visit the handles inside the range. Services and characteristics are also
+ * indexed by UUID.
+ */
+public final class GattDBIndex {
+
+    public static final byte TYPE_NONE = 0;
+    public static final byte TYPE_SERVICE = 1;
+    public static final byte TYPE_INCLUDE = 2;
+    public static final byte TYPE_CHRC_DECLARATION = 3;
+    public static final byte TYPE_CHRC_VALUE = 4;
+    public static final byte TYPE_DESCRIPTOR = 5;
+
+    private static final int[] NO_HANDLES = new int[0];
+
+    public static final GattDBIndex EMPTY = build(Collections.<GattDBService>emptyList());
+
+    private final byte[] types;
+    private final Object[] attributes;
+    /* Characteristic owning a value or descriptor handle */
+    private final GattDBCharacteristic[] owners;
+    private final List<GattDBService> primaryServices;
+    private final Map<UUID, int[]> primaryServicesByUuid;
+    private final Map<UUID, int[]> characteristicsByUuid;
+
+    private GattDBIndex(byte[] types, Object[] attributes, GattDBCharacteristic[] owners,
+                        List<GattDBService> primaryServices,
+                        Map<UUID, int[]> primaryServicesByUuid,
+                        Map<UUID, int[]> characteristicsByUuid) {
+        this.types = types;
+        this.attributes = attributes;
+        this.owners = owners;
+        this.primaryServices = primaryServices;
+        this.primaryServicesByUuid = primaryServicesByUuid;
+        this.characteristicsByUuid = characteristicsByUuid;
+    }
+
+    public static GattDBIndex build(List<GattDBService> services) {
+        int maxHandle = 0;
+        for (GattDBService svc : services) {
+            maxHandle = Math.max(maxHandle, svc.getEndHandle());
+        }
+
+        byte[] types = new byte[maxHandle + 1];
+        Object[] attributes = new Object[maxHandle + 1];
+        GattDBCharacteristic[] owners = new GattDBCharacteristic[maxHandle + 1];
+        List<GattDBService> primaryServices = new ArrayList<>();
+        Map<UUID, int[]> primaryServicesByUuid = new HashMap<>();
+        Map<UUID, int[]> characteristicsByUuid = new HashMap<>();
+
+        for (GattDBService svc : services) {
+            put(types, attributes, svc.getStartHandle(), TYPE_SERVICE, svc);
+            if (svc.isPrimary()) {
+                primaryServices.add(svc);
+                addHandle(primaryServicesByUuid, svc.getService().getUuid(),
+                        svc.getStartHandle());
+            }
+
+            for (GattDBIncludeService inc : svc.getIncludedServices()) {
+                put(types, attributes, inc.getHandle(), TYPE_INCLUDE, inc);
+            }
+
+            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
+                put(types, attributes, chr.getDefHandle(), TYPE_CHRC_DECLARATION, chr);
+                put(types, attributes, chr.getValHandle(), TYPE_CHRC_VALUE, chr);
+                owners[chr.getValHandle()] = chr;
+                addHandle(characteristicsByUuid, chr.getCharacteristic().getUuid(),
+                        chr.getDefHandle());
+
+                for (GattDBDescriptor dsc : chr.getDescriptors()) {
+                    put(types, attributes, dsc.getHandle(), TYPE_DESCRIPTOR, dsc);
+                    owners[dsc.getHandle()] = chr;
+                }
+            }
+        }
+
+        /* Handles are assigned in ascending order, but keep the lookup tables sorted anyway */
+        for (int[] handles : primaryServicesByUuid.values()) {
+            Arrays.sort(handles);
+        }
+        for (int[] handles : characteristicsByUuid.values()) {
+            Arrays.sort(handles);
+        }
+
+        return new GattDBIndex(types, attributes, owners,
+                Collections.unmodifiableList(primaryServices),
+                primaryServicesByUuid, characteristicsByUuid);
+    }
+
+    private static void put(byte[] types, Object[] attributes, int handle, byte type,
+                            Object attr) {
+        types[handle] = type;
+        attributes[handle] = attr;
+    }
+
+    private static void addHandle(Map<UUID, int[]> map, UUID uuid, int handle) {
+        int[] handles = map.get(uuid);
+        if (handles == null) {
+            handles = new int[]{handle};
+        } else {
+            handles = Arrays.copyOf(handles, handles.length + 1);
+            handles[handles.length - 1] = handle;
+        }
+        map.put(uuid, handles);
+    }
+
+    public int getMaxHandle() {
+        return types.length - 1;
+    }
+
+    public byte getType(int handle) {
+        if (handle <= 0 || handle >= types.length) {
+            return TYPE_NONE;
+        }
+
+        return types[handle];
+    }
+
+    public Object getAttribute(int handle) {
+        if (getType(handle) == TYPE_NONE) {
+            return null;
+        }
+
+        return attributes[handle];
+    }
+
+    public GattDBService getService(int startHandle) {
+        if (getType(startHandle) != TYPE_SERVICE) {
+            return null;
+        }
+
+        return (GattDBService) attributes[startHandle];
+    }
+
+    public GattDBCharacteristic getCharacteristicByValueHandle(int handle) {
+        if (getType(handle) != TYPE_CHRC_VALUE) {
+            return null;
+        }
+
+        return owners[handle];
+    }
+
+    public GattDBDescriptor getDescriptor(int handle) {
+        if (getType(handle) != TYPE_DESCRIPTOR) {
+            return null;
+        }
+
+        return (GattDBDescriptor) attributes[handle];
+    }
+
+    public GattDBCharacteristic getDescriptorCharacteristic(int handle) {
+        if (getType(handle) != TYPE_DESCRIPTOR) {
+            return null;
+        }
+
+        return owners[handle];
+    }
+
+    public List<GattDBService> getPrimaryServices() {
+        return primaryServices;
+    }
+
+    public List<GattDBService> getPrimaryServices(UUID uuid) {
+        int[] handles = primaryServicesByUuid.get(uuid);
+        if (handles == null) {
+            return Collections.emptyList();
+        }
+
+        List<GattDBService> services = new ArrayList<>(handles.length);
+        for (int handle : handles) {
+            services.add((GattDBService) attributes[handle]);
+        }
+
+        return services;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> collect(int startHandle, int endHandle, byte type) {
+        List<T> result = new ArrayList<>();
+        int first = Math.max(startHandle, 1);
+        int last = Math.min(endHandle, getMaxHandle());
+
+        for (int handle = first; handle <= last; handle++) {
+            if (types[handle] == type) {
+                result.add((T) attributes[handle]);
+            }
+        }
+
+        return result;
+    }
+
+    public List<GattDBIncludeService> getIncludedServices(int startHandle, int endHandle) {
+        return collect(startHandle, endHandle, TYPE_INCLUDE);
+    }
+
+    public List<GattDBCharacteristic> getCharacteristics(int startHandle, int endHandle) {
+        return collect(startHandle, endHandle, TYPE_CHRC_DECLARATION);
+    }
+
+    public List<GattDBDescriptor> getDescriptors(int startHandle, int endHandle) {
+        return collect(startHandle, endHandle, TYPE_DESCRIPTOR);
+    }
+
+    public List<GattDBCharacteristic> getCharacteristics(int startHandle, int endHandle,
+                                                         UUID uuid) {
+        int[] handles = characteristicsByUuid.getOrDefault(uuid, NO_HANDLES);
+        List<GattDBCharacteristic> chrcs = new ArrayList<>();
+
+        int i = Arrays.binarySearch(handles, startHandle);
+        if (i < 0) {
+            i = -i - 1;
+        }
+
+        for (; i < handles.length && handles[i] <= endHandle; i++) {
+            chrcs.add((GattDBCharacteristic) attributes[handles[i]]);
+        }
+
+        return chrcs;
+    }
+}
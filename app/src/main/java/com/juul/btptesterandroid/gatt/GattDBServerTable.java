@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid.gatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.juul.btptesterandroid.BTP;
+import com.juul.btptesterandroid.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.juul.btptesterandroid.gatt.GattDBIndex.TYPE_CHRC_DECLARATION;
+import static com.juul.btptesterandroid.gatt.GattDBIndex.TYPE_CHRC_VALUE;
+import static com.juul.btptesterandroid.gatt.GattDBIndex.TYPE_DESCRIPTOR;
+import static com.juul.btptesterandroid.gatt.GattDBIndex.TYPE_INCLUDE;
+import static com.juul.btptesterandroid.gatt.GattDBIndex.TYPE_NONE;
+import static com.juul.btptesterandroid.gatt.GattDBIndex.TYPE_SERVICE;
+
+/**
+ * Attribute table of the local GATT server.
+ * <p>
+ * The table starts with the core GAP/GATT services and grows as services get registered on
+ * the server. Handles are assigned once, in registration order, the same way
+ * {@link Utils#initializeGattDB(List)} numbers them.
+ */
+public class GattDBServerTable {
+
+    private static final UUID PRI_SVC_TYPE_UUID = Utils.btpToUUID(new byte[]{ 0x28, 0x00 });
+    private static final UUID SEC_SVC_TYPE_UUID = Utils.btpToUUID(new byte[]{ 0x28, 0x01 });
+    private static final UUID INC_SVC_TYPE_UUID = Utils.btpToUUID(new byte[]{ 0x28, 0x02 });
+    private static final UUID CHRC_TYPE_UUID = Utils.btpToUUID(new byte[]{ 0x28, 0x03 });
+
+    private static class HandleList {
+        int[] handles = new int[4];
+        int size = 0;
+
+        void add(int handle) {
+            if (size == handles.length) {
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+            handles[size++] = handle;
+        }
+    }
+
+    private final List<GattDBService> services = new ArrayList<>();
+    private final Map<BluetoothGattService, GattDBService> servicesByInstance =
+            new IdentityHashMap<>();
+    private final Map<UUID, HandleList> handlesByType = new HashMap<>();
+    private byte[] types = new byte[64];
+    private Object[] attributes = new Object[64];
+    private int nextHandle = 1;
+    private int coreHandleCount;
+
+    public GattDBServerTable(List<BluetoothGattService> coreServices) {
+        for (BluetoothGattService svc : coreServices) {
+            addService(svc);
+        }
+
+        coreHandleCount = nextHandle - 1;
+    }
+
+    public synchronized GattDBService addService(BluetoothGattService svc) {
+        GattDBService service = new GattDBService(svc);
+
+        for (BluetoothGattService inc : svc.getIncludedServices()) {
+            GattDBService included = servicesByInstance.get(inc);
+            if (included == null) {
+                included = new GattDBService(inc);
+            }
+
+            service.addIncludeService(new GattDBIncludeService(included));
+        }
+
+        for (BluetoothGattCharacteristic chr : svc.getCharacteristics()) {
+            GattDBCharacteristic characteristic = new GattDBCharacteristic(chr);
+
+            for (BluetoothGattDescriptor dsc : chr.getDescriptors()) {
+                characteristic.addDescriptor(new GattDBDescriptor(dsc));
+            }
+
+            service.addCharacteristic(characteristic);
+        }
+
+        int endHandle = service.setHandles(nextHandle);
+        ensureCapacity(endHandle + 1);
+
+        put(service.getStartHandle(), TYPE_SERVICE, service,
+                service.isPrimary() ? PRI_SVC_TYPE_UUID : SEC_SVC_TYPE_UUID);
+
+        for (GattDBIncludeService inc : service.getIncludedServices()) {
+            put(inc.getHandle(), TYPE_INCLUDE, inc, INC_SVC_TYPE_UUID);
+        }
+
+        for (GattDBCharacteristic chr : service.getCharacteristics()) {
+            put(chr.getDefHandle(), TYPE_CHRC_DECLARATION, chr, CHRC_TYPE_UUID);
+            put(chr.getValHandle(), TYPE_CHRC_VALUE, chr, null);
+
+            for (GattDBDescriptor dsc : chr.getDescriptors()) {
+                put(dsc.getHandle(), TYPE_DESCRIPTOR, dsc, dsc.getDescriptor().getUuid());
+            }
+        }
+
+        services.add(service);
+        servicesByInstance.put(svc, service);
+        nextHandle = endHandle + 1;
+
+        return service;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= types.length) {
+            return;
+        }
+
+        int newSize = Math.max(size, types.length * 2);
+        types = Arrays.copyOf(types, newSize);
+        attributes = Arrays.copyOf(attributes, newSize);
+    }
+
+    private void put(int handle, byte type, Object attr, UUID typeUUID) {
+        types[handle] = type;
+        attributes[handle] = attr;
+
+        if (typeUUID == null) {
+            return;
+        }
+
+        HandleList handles = handlesByType.get(typeUUID);
+        if (handles == null) {
+            handles = new HandleList();
+            handlesByType.put(typeUUID, handles);
+        }
+        handles.add(handle);
+    }
+
+    public synchronized List<GattDBService> getServices() {
+        return new ArrayList<>(services);
+    }
+
+    /**
+     * Looks up a service by its start handle counted over the registered services only,
+     * i.e. without the core services.
+     */
+    public synchronized BluetoothGattService findServerService(int handle) {
+        int tableHandle = handle + coreHandleCount;
+        if (handle <= 0 || tableHandle >= nextHandle || types[tableHandle] != TYPE_SERVICE) {
+            return null;
+        }
+
+        return ((GattDBService) attributes[tableHandle]).getService();
+    }
+
+    public synchronized byte[] getAttributeValue(int handle) {
+        if (handle <= 0 || handle >= nextHandle) {
+            return null;
+        }
+
+        Object attr = attributes[handle];
+
+        switch (types[handle]) {
+            case TYPE_SERVICE:
+                return ((GattDBService) attr).toBTP();
+            case TYPE_INCLUDE:
+                return ((GattDBIncludeService) attr).toBTP();
+            case TYPE_CHRC_DECLARATION:
+                return ((GattDBCharacteristic) attr).toBTPDefinition();
+            case TYPE_CHRC_VALUE:
+                return ((GattDBCharacteristic) attr).toBTPValue();
+            case TYPE_DESCRIPTOR:
+                return ((GattDBDescriptor) attr).toBTP();
+            default:
+                return null;
+        }
+    }
+
+    private BTP.GattAttribute toBTPAttribute(int handle) {
+        Object attr = attributes[handle];
+
+        switch (types[handle]) {
+            case TYPE_SERVICE:
+                return new BTP.GattAttribute((GattDBService) attr);
+            case TYPE_INCLUDE:
+                return new BTP.GattAttribute((GattDBIncludeService) attr);
+            case TYPE_CHRC_DECLARATION:
+                return new BTP.GattAttribute((GattDBCharacteristic) attr);
+            case TYPE_DESCRIPTOR:
+                return new BTP.GattAttribute((GattDBDescriptor) attr);
+            default:
+                /* Characteristic values are not reported as separate attributes */
+                return null;
+        }
+    }
+
+    public synchronized List<BTP.GattAttribute> getAttributes(int startHandle, int endHandle,
+                                                              UUID typeUUID) {
+        List<BTP.GattAttribute> attrs = new ArrayList<>();
+        int first = Math.max(startHandle, 1);
+        int last = Math.min(endHandle, nextHandle - 1);
+
+        if (typeUUID == null) {
+            for (int handle = first; handle <= last; handle++) {
+                if (types[handle] == TYPE_NONE) {
+                    continue;
+                }
+
+                BTP.GattAttribute attr = toBTPAttribute(handle);
+                if (attr != null) {
+                    attrs.add(attr);
+                }
+            }
+
+            return attrs;
+        }
+
+        HandleList handles = handlesByType.get(typeUUID);
+        if (handles == null) {
+            return attrs;
+        }
+
+        int i = Arrays.binarySearch(handles.handles, 0, handles.size, first);
+        if (i < 0) {
+            i = -i - 1;
+        }
+
+        for (; i < handles.size && handles.handles[i] <= last; i++) {
+            attrs.add(toBTPAttribute(handles.handles[i]));
+        }
+
+        return attrs;
+    }
+}
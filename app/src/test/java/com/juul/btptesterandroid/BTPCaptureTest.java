@@ -0,0 +1,51 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BTPCaptureTest {
+    @Test
+    public void replay_feedsInboundFramesInOrder() throws Exception {
+        File file = File.createTempFile("btp", ".cap");
+        try {
+            BTPFramePool pool = new BTPFramePool();
+            try (BTPCapture capture = new BTPCapture(file)) {
+                capture.record(Trace.DIR_IN, pool.encode(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_READ,
+                        (byte) 0, new byte[]{0x01, 0x02}));
+                capture.record(Trace.DIR_OUT, pool.encode(BTP.BTP_SERVICE_ID_GATT,
+                        BTP.GATT_READ, (byte) 0, null));
+                capture.record(Trace.DIR_IN, pool.encode(BTP.BTP_SERVICE_ID_GAP,
+                        BTP.GAP_EV_DEVICE_FOUND, (byte) 0, new byte[1000]));
+                assertEquals(3, capture.getRecords());
+            }
+
+            List<BTPMessage> messages = new ArrayList<>();
+            BTPReplay.Result result = new BTPReplay(file).replay(
+                    frame -> messages.add(BTPMessage.parse(frame)), false);
+
+            assertEquals(2, result.inbound);
+            assertEquals(1, result.outbound);
+            assertEquals(BTP.GATT_READ, messages.get(0).opcode);
+            assertEquals(2, messages.get(0).len);
+            assertEquals(1000, messages.get(1).len);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void replay_rejectsOtherFiles() throws Exception {
+        File file = File.createTempFile("btp", ".cap");
+        try {
+            new BTPReplay(file);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.juul.btptesterandroid.BTP.BTP_INDEX_NONE;
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_CORE;
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GAP;
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GATT;
+import static com.juul.btptesterandroid.BTP.BTP_STATUS_FAILED;
+import static org.junit.Assert.*;
+
+public class BTPDispatcherTest {
+    private final List<byte[]> responses = Collections.synchronizedList(new ArrayList<>());
+
+    private void response(byte service, byte opcode, byte index, byte status) {
+        responses.add(new byte[]{service, opcode, index, status});
+    }
+
+    private static BTPMessage msg(byte service, int opcode) {
+        return new BTPMessage(service, (byte) opcode, BTP_INDEX_NONE, null);
+    }
+
+    @Test
+    public void servicesKeepArrivalOrder() {
+        List<Byte> gap = Collections.synchronizedList(new ArrayList<>());
+        List<Byte> gatt = Collections.synchronizedList(new ArrayList<>());
+        BTPDispatcher dispatcher = new BTPDispatcher(msg ->
+                (msg.service == BTP_SERVICE_ID_GAP ? gap : gatt).add(msg.opcode),
+                this::response);
+
+        for (int i = 0; i < 32; i++) {
+            byte service = i % 3 == 0 ? BTP_SERVICE_ID_GATT : BTP_SERVICE_ID_GAP;
+            assertTrue(dispatcher.dispatch(msg(service, i)));
+        }
+        dispatcher.shutdown();
+
+        assertEquals(21, gap.size());
+        assertEquals(11, gatt.size());
+        for (int i = 1; i < gap.size(); i++) {
+            assertTrue(gap.get(i - 1) < gap.get(i));
+        }
+        for (int i = 1; i < gatt.size(); i++) {
+            assertTrue(gatt.get(i - 1) < gatt.get(i));
+        }
+        assertEquals(21, dispatcher.getStats(BTP_SERVICE_ID_GAP).getCompleted());
+        assertEquals(11, dispatcher.getStats(BTP_SERVICE_ID_GATT).getCompleted());
+        assertTrue(responses.isEmpty());
+    }
+
+    @Test
+    public void blockedGapDoesNotStallGatt() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch gattHandled = new CountDownLatch(1);
+        BTPDispatcher dispatcher = new BTPDispatcher(msg -> {
+            if (msg.service == BTP_SERVICE_ID_GATT) {
+                gattHandled.countDown();
+                return;
+            }
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, this::response);
+
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GAP, 0x01)));
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GATT, 0x02)));
+
+        assertTrue(gattHandled.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void exclusiveWorkWaitsForBothServices() {
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        BTPDispatcher dispatcher = new BTPDispatcher(msg -> {
+            try {
+                Thread.sleep(msg.opcode);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(msg.service + "/" + msg.opcode);
+        }, this::response);
+
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GAP, 1)));
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GATT, 20)));
+        assertTrue(dispatcher.executeExclusive(BTP_SERVICE_ID_GAP, BTP_SERVICE_ID_GATT,
+                () -> handled.add("exclusive")));
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GATT, 0)));
+        dispatcher.shutdown();
+
+        assertEquals(4, handled.size());
+        assertEquals("exclusive", handled.get(2));
+        assertEquals(BTP_SERVICE_ID_GATT + "/0", handled.get(3));
+    }
+
+    @Test
+    public void fullQueueRespondsFailed() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BTPDispatcher dispatcher = new BTPDispatcher(msg -> {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, this::response, 1);
+
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GAP, 0x01)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_GAP, 0x02)));
+        assertFalse(dispatcher.dispatch(msg(BTP_SERVICE_ID_GAP, 0x03)));
+
+        /* Other services have their own queues */
+        assertTrue(dispatcher.dispatch(msg(BTP_SERVICE_ID_CORE, 0x04)));
+
+        assertEquals(1, responses.size());
+        assertArrayEquals(new byte[]{BTP_SERVICE_ID_GAP, 0x03, BTP_INDEX_NONE,
+                BTP_STATUS_FAILED}, responses.get(0));
+        assertEquals(1, dispatcher.getStats(BTP_SERVICE_ID_GAP).getRejected());
+        assertEquals(0, dispatcher.getStats(BTP_SERVICE_ID_GATT).getRejected());
+
+        release.countDown();
+        dispatcher.shutdown();
+        assertEquals(2, dispatcher.getStats(BTP_SERVICE_ID_GAP).getCompleted());
+        assertEquals(1, dispatcher.getStats(BTP_SERVICE_ID_CORE).getCompleted());
+    }
+}
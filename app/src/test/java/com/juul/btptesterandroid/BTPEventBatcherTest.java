@@ -0,0 +1,101 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BTPEventBatcherTest {
+    private static final byte[] EV = {0x01, 0x02, 0x03};
+
+    private static class CollectingSink implements BTPEventBatcher.Sink {
+        final List<byte[]> messages = new ArrayList<>();
+        final List<Integer> frames = new ArrayList<>();
+        final CountDownLatch sent = new CountDownLatch(1);
+
+        @Override
+        public synchronized void send(ByteBuffer message, int count) {
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            messages.add(bytes);
+            frames.add(count);
+            sent.countDown();
+        }
+    }
+
+    @Test
+    public void add_flushesWhenFull() {
+        CollectingSink sink = new CollectingSink();
+        BTPEventBatcher batcher = new BTPEventBatcher(sink, 3, 10000);
+
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+        assertTrue(sink.messages.isEmpty());
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+
+        assertEquals(1, sink.messages.size());
+        assertEquals(3, (int) sink.frames.get(0));
+        assertEquals(3 * (5 + EV.length), sink.messages.get(0).length);
+
+        /* Every frame keeps its own header */
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer frame = ByteBuffer.wrap(sink.messages.get(0), i * 8, 8).slice();
+            BTPMessage msg = BTPMessage.parse(frame);
+            assertNotNull(msg);
+            assertEquals((byte) 0x81, msg.opcode);
+            assertEquals(EV.length, msg.len);
+        }
+        batcher.close();
+    }
+
+    @Test
+    public void add_flushesAfterWindow() throws InterruptedException {
+        CollectingSink sink = new CollectingSink();
+        BTPEventBatcher batcher = new BTPEventBatcher(sink, 32, 10);
+
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+
+        assertTrue(sink.sent.await(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) sink.frames.get(0));
+        batcher.close();
+    }
+
+    @Test
+    public void add_sendsOversizedFrameAlone() {
+        CollectingSink sink = new CollectingSink();
+        BTPEventBatcher batcher = new BTPEventBatcher(sink, 32, 10000, 16);
+
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, new byte[20]);
+
+        assertEquals(2, sink.messages.size());
+        assertEquals(8, sink.messages.get(0).length);
+        assertEquals(25, sink.messages.get(1).length);
+
+        batcher.close();
+        assertEquals(2, sink.messages.size());
+    }
+
+    @Test
+    public void close_dropsLaterEvents() {
+        CollectingSink sink = new CollectingSink();
+        BTPEventBatcher batcher = new BTPEventBatcher(sink, 32, 10);
+
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+        batcher.close();
+        assertTrue(batcher.isClosed());
+        assertEquals(1, sink.messages.size());
+
+        /* The timer is gone, these must neither schedule nor send anything */
+        batcher.add((byte) 1, (byte) 0x81, (byte) 0, EV);
+        batcher.addFrame(ByteBuffer.wrap(new byte[]{1, (byte) 0x81, 0, 0, 0}));
+        batcher.flush();
+        batcher.close();
+        assertEquals(1, sink.messages.size());
+    }
+}
@@ -0,0 +1,72 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BTPFramePoolTest {
+    @Test
+    public void encode_writesHeaderAndPayload() {
+        BTPFramePool pool = new BTPFramePool();
+        ByteBuffer frame = pool.encode(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_READ, (byte) 0,
+                new byte[]{0x01, 0x02, 0x03});
+
+        assertEquals(BTP.HDR_LEN + 3, frame.remaining());
+        assertEquals(BTP.BTP_SERVICE_ID_GATT, frame.get(0));
+        assertEquals(BTP.GATT_READ, frame.get(1));
+        assertEquals(0, frame.get(2));
+        assertEquals(3, frame.get(3));
+        assertEquals(0, frame.get(4));
+        assertEquals(0x03, frame.get(7));
+    }
+
+    @Test
+    public void encode_steadyStateIsAllocationFree() {
+        BTPFramePool pool = new BTPFramePool();
+        byte[] payload = new byte[64];
+
+        for (int i = 0; i < 10000; i++) {
+            ByteBuffer frame = pool.encode(BTP.BTP_SERVICE_ID_GAP, BTP.GAP_EV_DEVICE_FOUND,
+                    (byte) 0, payload);
+            pool.release(frame);
+        }
+
+        assertEquals(10000, pool.getAcquisitions());
+        assertEquals(1, pool.getAllocations());
+        assertEquals(0, pool.getDiscarded());
+    }
+
+    @Test
+    public void encode_growsForOversizedFrames() {
+        BTPFramePool pool = new BTPFramePool(16, 4);
+        ByteBuffer frame = pool.encode(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_READ, (byte) 0,
+                new byte[100]);
+
+        assertEquals(BTP.HDR_LEN + 100, frame.remaining());
+        pool.release(frame);
+
+        frame = pool.encode(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_READ, (byte) 0, null);
+        assertEquals(BTP.HDR_LEN, frame.remaining());
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void parse_readsPayloadInPlace() {
+        byte[] bytes = new byte[]{0x02, 0x11, 0x00, 0x02, 0x00, 0x0a, 0x0b};
+        BTPMessage msg = BTPMessage.parse(ByteBuffer.wrap(bytes));
+
+        assertNotNull(msg);
+        assertEquals(2, msg.len);
+        assertEquals(2, msg.data.remaining());
+        assertEquals(0x0a, msg.data.get());
+        assertSame(bytes, msg.data.array());
+    }
+
+    @Test
+    public void parse_rejectsTruncatedFrame() {
+        byte[] bytes = new byte[]{0x02, 0x11, 0x00, 0x05, 0x00, 0x0a};
+        assertNull(BTPMessage.parse(ByteBuffer.wrap(bytes)));
+    }
+}
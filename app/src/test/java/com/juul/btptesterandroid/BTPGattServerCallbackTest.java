@@ -0,0 +1,73 @@
+package com.juul.btptesterandroid;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/* The framework Bluetooth classes are empty in plain unit tests */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BTPGattServerCallbackTest {
+    private final BluetoothDevice device =
+            BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:55");
+    private final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"),
+            BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+            BluetoothGattCharacteristic.PERMISSION_READ);
+
+    @Test
+    public void connectionState_opensAndClosesSession() {
+        BTPGattServerCallback callback = new BTPGattServerCallback(null);
+
+        callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS,
+                BluetoothGatt.STATE_CONNECTED);
+        GattServerSession session = callback.getSession(device);
+        assertNotNull(session);
+
+        callback.reads.serve(device, characteristic, new byte[100], 0, session.getMtu(),
+                slice -> {
+                });
+        callback.prepWrites.prepare(device, characteristic, 0, new byte[10]);
+        callback.notifications.subscribe(device, characteristic, false);
+        assertEquals(1, callback.reads.pinned(device));
+        assertEquals(10, callback.prepWrites.queuedBytes(device));
+
+        callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS,
+                BluetoothGatt.STATE_DISCONNECTED);
+
+        assertNull(callback.getSession(device));
+        assertTrue(session.isClosed());
+        assertEquals(10, session.getPendingPreparedBytes());
+        assertEquals(0, callback.reads.pinned(device));
+        assertEquals(0, callback.prepWrites.queuedBytes(device));
+        assertFalse(callback.notifications.isSubscribed(device, characteristic));
+        callback.notifications.close();
+    }
+
+    @Test
+    public void lateCallbacks_doNotReopenSession() {
+        BTPGattServerCallback callback = new BTPGattServerCallback(null);
+
+        callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS,
+                BluetoothGatt.STATE_CONNECTED);
+        callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS,
+                BluetoothGatt.STATE_DISCONNECTED);
+        callback.onMtuChanged(device, 247);
+        callback.onPhyUpdate(device, 2, 2, BluetoothGatt.GATT_SUCCESS);
+
+        assertNull(callback.getSession(device));
+        assertTrue(callback.getSessions().isEmpty());
+        assertEquals(Att.ATT_DEFAULT_MTU, callback.getMtu(device));
+        callback.notifications.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BdAddrTest {
+    private static final String BD_ADDR = "C0:11:22:33:44:AF";
+    private static final long PACKED = 0xc011223344afL;
+    private static final byte[] BTP = {(byte) 0xaf, 0x44, 0x33, 0x22, 0x11, (byte) 0xc0};
+
+    @Test
+    public void parse_acceptsBothCases() {
+        assertEquals(PACKED, BdAddr.parse(BD_ADDR));
+        assertEquals(PACKED, BdAddr.parse(BD_ADDR.toLowerCase()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsInvalidDigits() {
+        BdAddr.parse("C0:11:22:33:44:AG");
+    }
+
+    @Test
+    public void convert_roundTrips() {
+        assertEquals(BD_ADDR, BdAddr.toString(PACKED));
+        assertArrayEquals(BTP, BdAddr.toBtp(BD_ADDR));
+        assertEquals(PACKED, BdAddr.fromBtp(BTP, 0));
+
+        byte[] frame = new byte[8];
+        BdAddr.toBtp(PACKED, frame, 1);
+        assertEquals(PACKED, BdAddr.fromBtp(frame, 1));
+    }
+
+    @Test
+    public void utils_matchCommandByteOrder() {
+        byte[] cmdAddress = {(byte) 0xc0, 0x11, 0x22, 0x33, 0x44, (byte) 0xaf};
+
+        assertEquals(PACKED, BdAddr.fromBytes(cmdAddress));
+        assertEquals(BD_ADDR, Utils.btpToBdAddr(cmdAddress));
+        assertArrayEquals(BTP, Utils.btAddrToBytes(BD_ADDR));
+    }
+}
@@ -0,0 +1,70 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionArbiterTest {
+    private static final String ADDR = "C0:11:22:33:44:55";
+    private static final String OTHER_ADDR = "C0:11:22:33:44:66";
+
+    @Test
+    public void acquire_firstOwnerWins() {
+        ConnectionArbiter arbiter = new ConnectionArbiter();
+        Object first = new Object();
+        Object second = new Object();
+
+        assertTrue(arbiter.acquire(ADDR, first));
+        assertTrue(arbiter.acquire(ADDR, first));
+        assertFalse(arbiter.acquire(ADDR, second));
+        assertTrue(arbiter.isOwnedByOther(ADDR, second));
+        assertFalse(arbiter.isOwnedByOther(ADDR, first));
+        assertFalse(arbiter.isOwnedByOther(OTHER_ADDR, second));
+    }
+
+    @Test
+    public void release_onlyByOwner() {
+        ConnectionArbiter arbiter = new ConnectionArbiter();
+        Object first = new Object();
+        Object second = new Object();
+
+        arbiter.acquire(ADDR, first);
+        arbiter.release(ADDR, second);
+        assertFalse(arbiter.acquire(ADDR, second));
+
+        arbiter.release(ADDR, first);
+        assertTrue(arbiter.acquire(ADDR, second));
+    }
+
+    @Test
+    public void releaseAll_dropsOwnerDevices() {
+        ConnectionArbiter arbiter = new ConnectionArbiter();
+        Object first = new Object();
+        Object second = new Object();
+
+        arbiter.acquire(ADDR, first);
+        arbiter.acquire(OTHER_ADDR, second);
+        arbiter.releaseAll(first);
+
+        assertEquals(1, arbiter.size());
+        assertTrue(arbiter.acquire(ADDR, second));
+    }
+
+    @Test
+    public void server_hasSingleOwner() {
+        ConnectionArbiter arbiter = new ConnectionArbiter();
+        Object first = new Object();
+        Object second = new Object();
+
+        assertTrue(arbiter.acquireServer(first));
+        assertTrue(arbiter.acquireServer(first));
+        assertFalse(arbiter.acquireServer(second));
+        assertFalse(arbiter.isServerOwner(second));
+
+        arbiter.releaseServer(second);
+        assertTrue(arbiter.isServerOwner(first));
+
+        arbiter.releaseAll(first);
+        assertTrue(arbiter.acquireServer(second));
+    }
+}
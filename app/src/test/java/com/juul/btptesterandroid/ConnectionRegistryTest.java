@@ -0,0 +1,77 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRegistryTest {
+
+    @Test
+    public void put_growsAndKeepsAllLinks() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+
+        for (long addr = 1; addr <= 100; addr++) {
+            registry.put(addr << 8, null);
+        }
+
+        assertEquals(100, registry.size());
+        for (long addr = 1; addr <= 100; addr++) {
+            assertEquals(addr << 8, registry.get(addr << 8).getAddress());
+        }
+        assertNull(registry.get(101L << 8));
+        assertNull(registry.get(0));
+    }
+
+    @Test
+    public void remove_keepsProbeSequences() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+
+        for (long addr = 1; addr <= 12; addr++) {
+            registry.put(addr, null);
+        }
+        for (long addr = 1; addr <= 12; addr += 2) {
+            assertNotNull(registry.remove(addr));
+        }
+
+        assertEquals(6, registry.size());
+        for (long addr = 1; addr <= 12; addr++) {
+            assertEquals(addr % 2 == 0, registry.get(addr) != null);
+        }
+        assertNull(registry.remove(1));
+    }
+
+    @Test
+    public void setState_countsLinkEvents() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        byte[] address = {(byte) 0xc0, 0x11, 0x22, 0x33, 0x44, 0x55};
+        long packed = BdAddr.fromBytes(address);
+        ConnectionRegistry.Link link = registry.put(packed, null);
+
+        assertEquals(ConnectionRegistry.STATE_CONNECTING, link.getState());
+        registry.setState(packed, ConnectionRegistry.STATE_CONNECTED);
+        registry.setState(packed, ConnectionRegistry.STATE_CONNECTED);
+        registry.setState(packed, ConnectionRegistry.STATE_DISCONNECTED);
+        registry.find(address);
+        registry.find(packed);
+
+        assertEquals(ConnectionRegistry.STATE_DISCONNECTED, link.getState());
+        assertEquals(1, link.getConnects());
+        assertEquals(1, link.getDisconnects());
+        assertEquals(2, link.getLookups());
+    }
+
+    @Test
+    public void setMtu_resetOnDisconnect() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        ConnectionRegistry.Link link = registry.put(1L, null);
+
+        assertEquals(Att.ATT_DEFAULT_MTU, link.getMtu());
+        registry.setState(1L, ConnectionRegistry.STATE_CONNECTED);
+        registry.setMtu(1L, 247);
+        registry.setMtu(2L, 100);
+        assertEquals(247, link.getMtu());
+
+        registry.setState(1L, ConnectionRegistry.STATE_DISCONNECTED);
+        assertEquals(Att.ATT_DEFAULT_MTU, link.getMtu());
+    }
+}
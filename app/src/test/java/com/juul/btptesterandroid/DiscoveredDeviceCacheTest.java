@@ -0,0 +1,86 @@
+package com.juul.btptesterandroid;
+
+import com.juul.btptesterandroid.DiscoveredDeviceCache.DiscoveredDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiscoveredDeviceCacheTest {
+    private static final long MS = 1000000L;
+
+    private static String addr(int i) {
+        return String.format("C0:11:22:33:44:%02X", i);
+    }
+
+    @Test
+    public void seen_keepsCompactRecord() {
+        DiscoveredDeviceCache cache = new DiscoveredDeviceCache(4, 1000);
+
+        DiscoveredDevice dev = cache.seen(addr(1), -40, 10 * MS);
+        assertSame(dev, cache.seen(addr(1), -50, 20 * MS));
+
+        assertArrayEquals(new byte[]{0x01, 0x44, 0x33, 0x22, 0x11, (byte) 0xc0},
+                dev.getAddress());
+        assertEquals(-50, dev.getRssi());
+        assertEquals(10 * MS, dev.getFirstSeenNanos());
+        assertEquals(20 * MS, dev.getLastSeenNanos());
+    }
+
+    @Test
+    public void seen_evictsLeastRecentlyUsed() {
+        DiscoveredDeviceCache cache = new DiscoveredDeviceCache(2, 1000);
+
+        cache.seen(addr(1), 0, 0);
+        cache.seen(addr(2), 0, 0);
+        assertNotNull(cache.find(addr(1), 0));
+        cache.seen(addr(3), 0, 0);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.find(addr(1), 0));
+        assertNull(cache.find(addr(2), 0));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void find_dropsExpiredDevices() {
+        DiscoveredDeviceCache cache = new DiscoveredDeviceCache(4, 1000);
+
+        cache.seen(addr(1), 0, 0);
+        cache.seen(addr(2), 0, 900 * MS);
+        assertNull(cache.find(addr(1), 1500 * MS));
+        assertNotNull(cache.find(addr(2), 1500 * MS));
+
+        /* Inserting sweeps the expired devices off the head */
+        cache.seen(addr(3), 0, 2000 * MS);
+        cache.seen(addr(4), 0, 2000 * MS);
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getExpirations());
+    }
+
+    @Test
+    public void seen_restartsExpiredDevice() {
+        DiscoveredDeviceCache cache = new DiscoveredDeviceCache(4, 1000);
+
+        DiscoveredDevice dev = cache.seen(addr(1), 0, 0);
+        DiscoveredDevice renewed = cache.seen(addr(1), 0, 2000 * MS);
+
+        assertNotSame(dev, renewed);
+        assertEquals(2000 * MS, renewed.getFirstSeenNanos());
+    }
+
+    @Test
+    public void find_keepsDevicesOnceDiscoveryStopped() {
+        DiscoveredDeviceCache cache = new DiscoveredDeviceCache(4, 1000);
+
+        cache.seen(addr(1), 0, 0);
+        cache.setAging(false);
+        assertNotNull(cache.find(addr(1), 60000 * MS));
+
+        cache.setAging(true);
+        assertNull(cache.find(addr(1), 60000 * MS));
+        assertEquals(1, cache.getExpirations());
+    }
+}
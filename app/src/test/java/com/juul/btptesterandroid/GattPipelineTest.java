@@ -0,0 +1,122 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GattPipelineTest {
+    private static final byte[] ADDRESS = {0x06, 0x05, 0x04, 0x03, 0x02, 0x01};
+
+    private static ByteBuffer command(int... handles) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + handles.length * 6).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 0);
+        buf.put(ADDRESS);
+        buf.put((byte) handles.length);
+        for (int i = 0; i < handles.length; i++) {
+            boolean write = i % 2 == 1;
+            buf.put(write ? BTP.GATT_PIPELINE_OP_WRITE : BTP.GATT_PIPELINE_OP_READ);
+            buf.putShort((short) handles[i]);
+            buf.putShort((short) (write ? 1 : 0));
+            if (write) {
+                buf.put((byte) 0x55);
+            }
+        }
+        return ByteBuffer.wrap(buf.array(), 0, buf.position());
+    }
+
+    private static GattPipeline pipeline(List<byte[]> events, int... handles) {
+        BTP.GattPipelineCmd cmd = BTP.GattPipelineCmd.parse(command(handles));
+        assertNotNull(cmd);
+        return new GattPipeline(cmd.addressType, ADDRESS, cmd.ops, events::add);
+    }
+
+    private static int seq(byte[] ev) {
+        return ev[7];
+    }
+
+    private static int attResponse(byte[] ev) {
+        return ev[9];
+    }
+
+    @Test
+    public void parse_readsOperations() {
+        BTP.GattPipelineCmd cmd = BTP.GattPipelineCmd.parse(command(0x10, 0x12, 0x14));
+
+        assertNotNull(cmd);
+        assertEquals(3, cmd.ops.length);
+        assertEquals(BTP.GATT_PIPELINE_OP_WRITE, cmd.ops[1].type);
+        assertEquals(0x12, cmd.ops[1].handle);
+        assertArrayEquals(new byte[]{0x55}, cmd.ops[1].data);
+        assertEquals(0, cmd.ops[2].data.length);
+    }
+
+    @Test
+    public void parse_rejectsTruncatedCommand() {
+        ByteBuffer cmd = command(0x10, 0x12);
+        byte[] truncated = new byte[cmd.remaining() - 1];
+        cmd.get(truncated);
+
+        assertNull(BTP.GattPipelineCmd.parse(ByteBuffer.wrap(truncated)));
+    }
+
+    @Test
+    public void completed_reportsInOrder() {
+        List<byte[]> events = new ArrayList<>();
+        GattPipeline pipeline = pipeline(events, 0x10, 0x12);
+
+        pipeline.completed(0, new byte[]{0x01, 0x02});
+        pipeline.completed(1, null);
+
+        assertTrue(pipeline.isDone());
+        assertEquals(2, events.size());
+        assertEquals(0, seq(events.get(0)));
+        assertEquals(0, attResponse(events.get(0)));
+        assertEquals(1 + 6 + 1 + 1 + 1 + 2 + 2 + 2, events.get(0).length);
+        assertEquals(1, seq(events.get(1)));
+    }
+
+    @Test
+    public void failed_mapsStatus() {
+        List<byte[]> events = new ArrayList<>();
+        GattPipeline pipeline = pipeline(events, 0x10, 0x12);
+
+        pipeline.failed(0, 0x05);
+        pipeline.failed(1, -5);
+
+        assertEquals(0x05, attResponse(events.get(0)));
+        assertEquals(GattPipeline.ATT_ERR_UNLIKELY, attResponse(events.get(1)));
+    }
+
+    @Test
+    public void finish_reportsRemaining() {
+        List<byte[]> events = new ArrayList<>();
+        GattPipeline pipeline = pipeline(events, 0x10, 0x12, 0x14);
+
+        pipeline.failed(0, 0x0a);
+        pipeline.finish(-4);
+        pipeline.finish(-4);
+
+        assertTrue(pipeline.isDone());
+        assertEquals(3, events.size());
+        assertEquals(2, seq(events.get(2)));
+        assertEquals(GattPipeline.ATT_ERR_UNLIKELY, attResponse(events.get(2)));
+    }
+
+    @Test
+    public void completed_ignoresLateResults() {
+        List<byte[]> events = new ArrayList<>();
+        GattPipeline pipeline = pipeline(events, 0x10, 0x12);
+
+        pipeline.completed(1, null);
+        pipeline.completed(0, null);
+
+        assertEquals(2, events.size());
+        assertEquals(0, seq(events.get(0)));
+        assertEquals(GattPipeline.ATT_ERR_UNLIKELY, attResponse(events.get(0)));
+    }
+}
@@ -0,0 +1,73 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GattServerSessionTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void countsPerSession() {
+        GattServerSession a = new GattServerSession("00:00:00:00:00:0A", 0);
+        GattServerSession b = new GattServerSession("00:00:00:00:00:0B", 0);
+
+        a.read(20);
+        a.read(22);
+        a.write(10);
+        a.prepare(18, 0);
+        a.prepare(18, PreparedWriteQueue.ATT_ERR_PREPARE_QUEUE_FULL);
+        b.write(5);
+
+        assertEquals(2, a.getReads());
+        assertEquals(42, a.getReadBytes());
+        assertEquals(1, a.getWrites());
+        assertEquals(28, a.getWriteBytes());
+        assertEquals(0, b.getReads());
+        assertEquals(5, b.getWriteBytes());
+    }
+
+    @Test
+    public void linkParameters() {
+        GattServerSession session = new GattServerSession("00:00:00:00:00:0A", 0);
+        assertEquals(Att.ATT_DEFAULT_MTU, session.getMtu());
+
+        session.setMtu(247);
+        session.setConnectionParameters(6, 0, 500);
+        assertEquals(247, session.getMtu());
+        assertEquals(6, session.getInterval());
+    }
+
+    @Test
+    public void subscriptionsNeverGoNegative() {
+        GattServerSession session = new GattServerSession("00:00:00:00:00:0A", 0);
+
+        session.subscribed();
+        session.subscribed();
+        session.unsubscribed();
+        assertEquals(1, session.getSubscriptions());
+
+        session.unsubscribed();
+        session.unsubscribed();
+        assertEquals(0, session.getSubscriptions());
+    }
+
+    @Test
+    public void closeFreezesDuration() {
+        GattServerSession session = new GattServerSession("00:00:00:00:00:0A", SECOND);
+        session.read(1000);
+        session.write(1000);
+
+        assertEquals(SECOND, session.getDurationNanos(2 * SECOND));
+        assertFalse(session.isClosed());
+
+        session.close(3 * SECOND, 36, 2);
+        session.close(5 * SECOND, 0, 0);
+
+        assertTrue(session.isClosed());
+        assertEquals(2 * SECOND, session.getDurationNanos(10 * SECOND));
+        assertEquals(1000, session.getThroughput(10 * SECOND));
+        assertEquals(36, session.getPendingPreparedBytes());
+        assertEquals(2, session.getPendingNotifications());
+    }
+}
@@ -0,0 +1,29 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkProfileTest {
+    @Test
+    public void fromId_findsEveryProfile() {
+        for (LinkProfile profile : LinkProfile.values()) {
+            assertSame(profile, LinkProfile.fromId(profile.getId()));
+        }
+        assertNull(LinkProfile.fromId((byte) 0x7f));
+    }
+
+    @Test
+    public void throughput_asksForMoreThanLowPower() {
+        assertTrue(LinkProfile.THROUGHPUT.getMtu() > LinkProfile.LOW_POWER.getMtu());
+        assertTrue(LinkProfile.THROUGHPUT.getPhyMask() > LinkProfile.LOW_POWER.getPhyMask());
+        assertEquals(Att.ATT_DEFAULT_MTU, LinkProfile.LOW_POWER.getMtu());
+    }
+
+    @Test
+    public void requestedMtu_keepsLargerSessionTarget() {
+        assertEquals(Att.ATT_MAX_MTU, LinkProfile.LOW_POWER.requestedMtu(Att.ATT_MAX_MTU));
+        assertEquals(Att.ATT_DLE_MTU, LinkProfile.BALANCED.requestedMtu(Att.ATT_DEFAULT_MTU));
+        assertEquals(Att.ATT_MAX_MTU, LinkProfile.THROUGHPUT.requestedMtu(Att.ATT_DLE_MTU));
+    }
+}
@@ -0,0 +1,236 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongAttributeEngineTest {
+    private static final byte[] VALUE = {0x01, 0x02, 0x03, 0x04};
+    private static final int CHR = 0x0010;
+    private static final int WRITE_ONLY = 0x0012;
+
+    private static class FakeLink implements LongAttributeEngine.Link {
+        final Map<Integer, byte[]> values = new HashMap<>();
+        final Set<Integer> readable = new HashSet<>();
+        final List<String> ops = new ArrayList<>();
+        int mtu = 23;
+        int status = 0;
+
+        @Override
+        public int getMtu() {
+            return mtu;
+        }
+
+        @Override
+        public boolean isReadable(int handle) {
+            return readable.contains(handle);
+        }
+
+        @Override
+        public boolean read(int handle, Completion cb) {
+            if (!values.containsKey(handle)) {
+                return false;
+            }
+
+            ops.add("read");
+            cb.onComplete(status, status == 0 ? values.get(handle) : null);
+            return true;
+        }
+
+        @Override
+        public boolean write(int handle, byte[] value, Completion cb) {
+            return write("write", handle, value, cb);
+        }
+
+        @Override
+        public boolean reliableWrite(int handle, byte[] value, Completion cb) {
+            return write("reliableWrite", handle, value, cb);
+        }
+
+        private boolean write(String op, int handle, byte[] value, Completion cb) {
+            if (!values.containsKey(handle)) {
+                return false;
+            }
+
+            ops.add(op);
+            if (status == 0) {
+                values.put(handle, value);
+            }
+            cb.onComplete(status, null);
+            return true;
+        }
+    }
+
+    private static class Result implements LongAttributeEngine.Callback {
+        byte attResponse = -1;
+        byte[] value;
+
+        @Override
+        public void onComplete(byte attResponse, byte[] value) {
+            this.attResponse = attResponse;
+            this.value = value;
+        }
+    }
+
+    private static FakeLink link() {
+        FakeLink link = new FakeLink();
+        link.values.put(CHR, VALUE);
+        link.values.put(WRITE_ONLY, VALUE);
+        link.readable.add(CHR);
+        return link;
+    }
+
+    @Test
+    public void fitsPrepareWrite_sizedToMtu() {
+        assertTrue(LongAttributeEngine.fitsPrepareWrite(0, 23));
+        assertTrue(LongAttributeEngine.fitsPrepareWrite(18, 23));
+        assertFalse(LongAttributeEngine.fitsPrepareWrite(19, 23));
+        assertTrue(LongAttributeEngine.fitsPrepareWrite(251, 256));
+    }
+
+    @Test
+    public void write_shortValueIsReliable() {
+        FakeLink link = link();
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.write(CHR, 0, new byte[18], result));
+
+        assertEquals(0, result.attResponse);
+        assertEquals(1, link.ops.size());
+        assertEquals("reliableWrite", link.ops.get(0));
+        assertEquals(1, engine.getWriteStats().getReliableWrites());
+        assertEquals(18, engine.getWriteStats().getBytes());
+    }
+
+    @Test
+    public void write_longValueIsLeftToTheStack() {
+        FakeLink link = link();
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.write(CHR, 0, new byte[19], result));
+        link.mtu = 247;
+        assertTrue(engine.write(CHR, 0, new byte[100], result));
+
+        assertEquals("write", link.ops.get(0));
+        assertEquals("reliableWrite", link.ops.get(1));
+        assertEquals(1, engine.getWriteStats().getLongWrites());
+        assertEquals(1, engine.getWriteStats().getReliableWrites());
+    }
+
+    @Test
+    public void write_atOffsetReadsFirst() {
+        FakeLink link = link();
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.write(CHR, 3, new byte[]{0x0a, 0x0b}, result));
+
+        assertEquals(0, result.attResponse);
+        assertEquals(2, link.ops.size());
+        assertEquals("read", link.ops.get(0));
+        assertEquals("reliableWrite", link.ops.get(1));
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x0a, 0x0b}, link.values.get(CHR));
+        assertEquals(1, engine.getWriteStats().getPatched());
+    }
+
+    @Test
+    public void write_atOffsetOfWriteOnlyFailsWithoutTraffic() {
+        FakeLink link = link();
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.write(WRITE_ONLY, 1, new byte[]{0x0a}, result));
+
+        assertEquals(LongAttributeEngine.ATT_ERR_REQUEST_NOT_SUPPORTED, result.attResponse);
+        assertTrue(link.ops.isEmpty());
+        assertEquals(1, engine.getWriteStats().getFailures());
+    }
+
+    @Test
+    public void write_pastTheEndIsInvalidOffset() {
+        FakeLink link = link();
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.write(CHR, 5, new byte[]{0x0a}, result));
+
+        assertEquals(LongAttributeEngine.ATT_ERR_INVALID_OFFSET, result.attResponse);
+        assertEquals(1, link.ops.size());
+        assertArrayEquals(VALUE, link.values.get(CHR));
+    }
+
+    @Test
+    public void write_failureCarriesAttError() {
+        FakeLink link = link();
+        link.status = 0x03;
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.write(CHR, 0, new byte[40], result));
+
+        assertEquals(0x03, result.attResponse);
+        assertEquals(0, engine.getWriteStats().getBytes());
+        assertEquals(1, engine.getWriteStats().getFailures());
+    }
+
+    @Test
+    public void read_slicesAtOffset() {
+        FakeLink link = link();
+        LongAttributeEngine engine = new LongAttributeEngine(link);
+        Result result = new Result();
+
+        assertTrue(engine.read(CHR, 2, result));
+        assertEquals(0, result.attResponse);
+        assertArrayEquals(new byte[]{0x03, 0x04}, result.value);
+
+        assertTrue(engine.read(CHR, 5, result));
+        assertEquals(LongAttributeEngine.ATT_ERR_INVALID_OFFSET, result.attResponse);
+        assertNull(result.value);
+
+        assertFalse(engine.read(0x0100, 0, result));
+        assertEquals(2, engine.getReadStats().getCount());
+    }
+
+    @Test
+    public void slice_honorsOffset() {
+        assertSame(VALUE, LongAttributeEngine.slice(VALUE, 0));
+        assertArrayEquals(new byte[]{0x03, 0x04}, LongAttributeEngine.slice(VALUE, 2));
+        assertArrayEquals(new byte[0], LongAttributeEngine.slice(VALUE, 4));
+        assertNull(LongAttributeEngine.slice(VALUE, 5));
+    }
+
+    @Test
+    public void patch_writesAtOffset() {
+        assertArrayEquals(new byte[]{0x01, 0x0a, 0x0b, 0x04},
+                LongAttributeEngine.patch(VALUE, 1, new byte[]{0x0a, 0x0b}));
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x0a, 0x0b},
+                LongAttributeEngine.patch(VALUE, 3, new byte[]{0x0a, 0x0b}));
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x04, 0x0a},
+                LongAttributeEngine.patch(VALUE, 4, new byte[]{0x0a}));
+        assertNull(LongAttributeEngine.patch(VALUE, 5, new byte[]{0x0a}));
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x04}, VALUE);
+    }
+
+    @Test
+    public void stats_trackLatency() {
+        LongAttributeEngine.Stats stats = new LongAttributeEngine.Stats("writeLong");
+
+        stats.record(1000, 100, true);
+        stats.record(3000, 100, false);
+
+        assertEquals(2, stats.getCount());
+        assertEquals(1, stats.getFailures());
+        assertEquals(100, stats.getBytes());
+        assertEquals(2000, stats.getAverageNanos());
+        assertEquals(3000, stats.getMaxNanos());
+    }
+}
@@ -0,0 +1,107 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NotificationForwarderTest {
+    private static final byte[] ADDRESS = {0x55, 0x44, 0x33, 0x22, 0x11, (byte) 0xc0};
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final BTPFramePool framePool = new BTPFramePool();
+    private final List<byte[]> sent = new ArrayList<>();
+
+    private boolean send(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        framePool.release(frame);
+        sent.add(bytes);
+        return true;
+    }
+
+    private static byte[] expectedFrame(byte type, int handle, byte[] value) {
+        BTP.GattNotificationEv ev = new BTP.GattNotificationEv();
+        ev.addressType = 0x01;
+        ev.address = ADDRESS;
+        ev.type = type;
+        ev.handle = (short) handle;
+        ev.dataLen = (short) value.length;
+        ev.data = value;
+        byte[] payload = ev.toBytes();
+
+        ByteBuffer frame = ByteBuffer.allocate(BTP.HDR_LEN + payload.length);
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        frame.put(BTP.BTP_SERVICE_ID_GATT);
+        frame.put(BTP.GATT_EV_NOTIFICATION);
+        frame.put((byte) 0);
+        frame.putShort((short) payload.length);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    @Test
+    public void forward_matchesEncodedEvent() {
+        NotificationForwarder forwarder = new NotificationForwarder(framePool, this::send,
+                (byte) 0, ADDRESS);
+        forwarder.setSubscription(NotificationForwarder.TYPE_INDICATION, 0x1234);
+
+        byte[] value = {1, 2, 3, 4, 5};
+        forwarder.forward(value);
+        forwarder.forward(new byte[0]);
+
+        assertEquals(2, sent.size());
+        assertArrayEquals(expectedFrame(NotificationForwarder.TYPE_INDICATION, 0x1234, value),
+                sent.get(0));
+        assertArrayEquals(expectedFrame(NotificationForwarder.TYPE_INDICATION, 0x1234,
+                new byte[0]), sent.get(1));
+        assertEquals(5, forwarder.getBytes());
+    }
+
+    @Test
+    public void forward_countsDroppedFrames() {
+        NotificationForwarder forwarder = new NotificationForwarder(framePool, frame -> {
+            framePool.release(frame);
+            return false;
+        }, (byte) 0, ADDRESS);
+
+        forwarder.forward(new byte[]{1});
+
+        assertEquals(1, forwarder.getReceived());
+        assertEquals(1, forwarder.getDropped());
+        assertEquals(0, forwarder.getBytes());
+    }
+
+    @Test
+    public void getRate_decaysOnceNotificationsStop() {
+        NotificationForwarder forwarder = new NotificationForwarder(framePool, this::send,
+                (byte) 0, ADDRESS);
+
+        /* 100 notifications over the first second */
+        for (int i = 0; i <= 100; i++) {
+            forwarder.count(true, 20, i * SECOND / 100);
+        }
+
+        assertEquals(100, forwarder.getRate(SECOND + SECOND / 2));
+        assertEquals(0, forwarder.getRate(3 * SECOND));
+    }
+
+    @Test
+    public void getRate_spreadsOpenWindowOverElapsedTime() {
+        NotificationForwarder forwarder = new NotificationForwarder(framePool, this::send,
+                (byte) 0, ADDRESS);
+
+        forwarder.count(true, 20, 0);
+        for (int i = 1; i <= 10; i++) {
+            forwarder.count(true, 20, i * SECOND / 100);
+        }
+
+        assertEquals(0, forwarder.getRate(SECOND / 2));
+        assertEquals(5, forwarder.getRate(2 * SECOND));
+    }
+}
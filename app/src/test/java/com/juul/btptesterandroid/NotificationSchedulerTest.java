@@ -0,0 +1,373 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationSchedulerTest {
+    private static class RecordingTransport
+            implements NotificationScheduler.Transport<String, String> {
+        final List<String> sent = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean send(String device, String characteristic, byte[] value, boolean indicate) {
+            if (!accept) {
+                return false;
+            }
+            sent.add(device + "/" + characteristic + "=" + value[0]);
+            return true;
+        }
+    }
+
+    /* Runs scheduled tasks only when asked to, in the order they were scheduled */
+    private static class ManualTimer implements NotificationScheduler.Timer {
+        final List<Runnable> tasks = new ArrayList<>();
+        long lastDelayMs;
+
+        @Override
+        public Runnable schedule(Runnable task, long delayMs) {
+            tasks.add(task);
+            lastDelayMs = delayMs;
+            return () -> tasks.remove(task);
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+    }
+
+    private static byte[] value(int v) {
+        return new byte[]{(byte) v};
+    }
+
+    @Test
+    public void notifyChanged_fansOutToSubscribers() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport);
+
+        assertTrue(scheduler.subscribe("a", "chr", false));
+        assertTrue(scheduler.subscribe("b", "chr", true));
+        assertFalse(scheduler.subscribe("a", "chr", false));
+
+        assertEquals(2, scheduler.notifyChanged("chr", value(1)));
+        assertEquals(0, scheduler.notifyChanged("other", value(1)));
+        assertEquals(2, transport.sent.size());
+        assertTrue(transport.sent.contains("a/chr=1"));
+        assertTrue(transport.sent.contains("b/chr=1"));
+    }
+
+    @Test
+    public void notifyChanged_waitsForSentAndCoalesces() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport);
+        scheduler.subscribe("a", "chr", false);
+
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.notifyChanged("chr", value(2));
+        scheduler.notifyChanged("chr", value(3));
+        assertEquals(1, transport.sent.size());
+        assertEquals(1, scheduler.pending("a"));
+
+        scheduler.onSent("a", true);
+        scheduler.onSent("a", true);
+
+        assertEquals(2, transport.sent.size());
+        assertEquals("a/chr=3", transport.sent.get(1));
+        assertEquals(2, scheduler.getDelivered());
+        assertEquals(1, scheduler.getCoalesced());
+        assertEquals(0, scheduler.getDropped());
+    }
+
+    @Test
+    public void failures_areCountedAsDropped() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 1000, 0, new ManualTimer());
+        scheduler.subscribe("a", "chr", false);
+
+        transport.accept = false;
+        scheduler.notifyChanged("chr", value(1));
+        transport.accept = true;
+        scheduler.notifyChanged("chr", value(2));
+        scheduler.onSent("a", false);
+
+        assertEquals(2, scheduler.getDropped());
+        assertEquals(0, scheduler.getDelivered());
+    }
+
+    @Test
+    public void notifications_areRetriedWhenRejected() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 1000, 1, timer);
+        scheduler.subscribe("a", "chr", false);
+
+        transport.accept = false;
+        scheduler.notifyChanged("chr", value(1));
+        assertEquals(1, scheduler.pending("a"));
+        assertEquals(1, timer.tasks.size());
+        assertEquals(NotificationScheduler.RETRY_DELAY_MS, timer.lastDelayMs);
+
+        transport.accept = true;
+        timer.runNext();
+        scheduler.onSent("a", true);
+
+        assertEquals("a/chr=1", transport.sent.get(0));
+        assertEquals(1, scheduler.getDelivered());
+        assertEquals(1, scheduler.getRetries());
+        assertEquals(0, scheduler.getDropped());
+    }
+
+    @Test
+    public void notifications_keepNewerValueWhenRejected() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 1000, 1, timer);
+        scheduler.subscribe("a", "chr", false);
+
+        transport.accept = false;
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.notifyChanged("chr", value(2));
+        transport.accept = true;
+        timer.runNext();
+
+        assertEquals(1, transport.sent.size());
+        assertEquals("a/chr=2", transport.sent.get(0));
+        assertEquals(1, scheduler.getCoalesced());
+        assertEquals(0, scheduler.getDropped());
+    }
+
+    @Test
+    public void notifications_timeOutWhenNeverReportedSent() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 30000, 3, timer);
+        scheduler.subscribe("a", "chr1", false);
+        scheduler.subscribe("a", "chr2", false);
+
+        scheduler.notifyChanged("chr1", value(1));
+        scheduler.notifyChanged("chr2", value(2));
+        assertEquals(NotificationScheduler.SENT_TIMEOUT_MS, timer.lastDelayMs);
+
+        timer.runNext();
+
+        assertEquals(1, scheduler.getTimeouts());
+        assertEquals(1, scheduler.getDropped());
+        assertEquals("a/chr2=2", transport.sent.get(1));
+        assertEquals(0, scheduler.pending("a"));
+    }
+
+    @Test
+    public void transport_isCalledWithoutSchedulerLock() {
+        List<NotificationScheduler<String, String>> holder = new ArrayList<>();
+        List<Boolean> locked = new ArrayList<>();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(
+                (device, characteristic, value, indicate) -> {
+                    locked.add(Thread.holdsLock(holder.get(0)));
+                    return true;
+                }, 4, 1000, 3, new ManualTimer());
+        holder.add(scheduler);
+        scheduler.subscribe("a", "chr", false);
+
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.notifyChanged("chr", value(2));
+        scheduler.onSent("a", true);
+
+        assertEquals(2, locked.size());
+        assertFalse(locked.get(0));
+        assertFalse(locked.get(1));
+    }
+
+    @Test
+    public void close_ignoresLateCallbacks() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 1000, 3, timer);
+        scheduler.subscribe("a", "chr", true);
+        scheduler.enqueue("a", "chr", value(1));
+        assertEquals(1, timer.tasks.size());
+
+        scheduler.close();
+        assertTrue(timer.tasks.isEmpty());
+
+        scheduler.onSent("a", false);
+        scheduler.enqueue("a", "chr", value(2));
+
+        assertTrue(timer.tasks.isEmpty());
+        assertEquals(1, transport.sent.size());
+    }
+
+    @Test
+    public void close_survivesLateCallbacksAfterShutdown() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport);
+        scheduler.subscribe("a", "chr", true);
+        scheduler.enqueue("a", "chr", value(1));
+
+        scheduler.close();
+        scheduler.onSent("a", false);
+        transport.accept = false;
+        scheduler.enqueue("a", "chr", value(2));
+
+        assertEquals(1, transport.sent.size());
+    }
+
+    @Test
+    public void removeDevice_dropsPendingAndSubscriptions() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport);
+        scheduler.subscribe("a", "chr1", false);
+        scheduler.subscribe("a", "chr2", false);
+        scheduler.subscribe("b", "chr1", false);
+
+        scheduler.notifyChanged("chr1", value(1));
+        scheduler.notifyChanged("chr2", value(2));
+        NotificationScheduler.DeviceStats stats = scheduler.removeDevice("a");
+
+        /* One waiting, one in flight and never reported as sent */
+        assertEquals(2, stats.getDropped());
+        assertFalse(scheduler.isSubscribed("a", "chr1"));
+        assertEquals(1, scheduler.getSubscribers("chr1").size());
+        assertTrue(scheduler.getSubscribers("chr2").isEmpty());
+        assertNull(scheduler.removeDevice("a"));
+    }
+
+    @Test
+    public void unsubscribe_stopsDelivery() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport);
+        scheduler.subscribe("a", "chr", false);
+
+        assertTrue(scheduler.unsubscribe("a", "chr"));
+        assertFalse(scheduler.unsubscribe("a", "chr"));
+        assertEquals(0, scheduler.notifyChanged("chr", value(1)));
+        assertTrue(transport.sent.isEmpty());
+    }
+
+    @Test
+    public void indications_areQueuedInOrder() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport);
+        scheduler.subscribe("a", "chr", true);
+
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.notifyChanged("chr", value(2));
+        scheduler.notifyChanged("chr", value(3));
+        assertEquals(2, scheduler.pending("a"));
+
+        scheduler.onSent("a", true);
+        scheduler.onSent("a", true);
+        scheduler.onSent("a", true);
+
+        assertEquals(3, transport.sent.size());
+        assertEquals("a/chr=2", transport.sent.get(1));
+        assertEquals("a/chr=3", transport.sent.get(2));
+        assertEquals(3, scheduler.getConfirmed());
+        assertEquals(0, scheduler.getCoalesced());
+        assertEquals(2, scheduler.getMaxDepth());
+        scheduler.close();
+    }
+
+    @Test
+    public void indications_areLimitedInDepth() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                2, 1000, 0);
+        scheduler.subscribe("a", "chr", true);
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.notifyChanged("chr", value(i));
+        }
+
+        assertEquals(2, scheduler.pending("a"));
+        assertEquals(2, scheduler.getDropped());
+        scheduler.close();
+    }
+
+    @Test
+    public void indications_areRetriedAfterFailure() {
+        RecordingTransport transport = new RecordingTransport();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 1000, 1);
+        scheduler.subscribe("a", "chr", true);
+
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.onSent("a", false);
+        scheduler.onSent("a", false);
+
+        assertEquals(2, transport.sent.size());
+        assertEquals(1, scheduler.getRetries());
+        assertEquals(1, scheduler.getDropped());
+        scheduler.close();
+    }
+
+    @Test
+    public void indications_areRetriedWhenRejected() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 1000, 1, timer);
+        scheduler.subscribe("a", "chr", true);
+
+        transport.accept = false;
+        scheduler.notifyChanged("chr", value(1));
+        assertEquals(1, scheduler.pending("a"));
+        assertEquals(1, timer.tasks.size());
+        assertEquals(NotificationScheduler.RETRY_DELAY_MS, timer.lastDelayMs);
+
+        transport.accept = true;
+        timer.runNext();
+
+        assertEquals(1, transport.sent.size());
+        assertEquals(1, scheduler.getRetries());
+        assertEquals(0, scheduler.getDropped());
+    }
+
+    @Test
+    public void indications_areDroppedOnTimeout() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 30000, 3, timer);
+        scheduler.subscribe("a", "chr", true);
+
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.notifyChanged("chr", value(2));
+        assertEquals(30000, timer.lastDelayMs);
+
+        timer.runNext();
+        assertEquals(1, scheduler.getTimeouts());
+        assertEquals(1, scheduler.getDropped());
+        assertEquals("a/chr=2", transport.sent.get(1));
+
+        timer.runNext();
+        assertEquals(2, scheduler.getTimeouts());
+        assertEquals(2, scheduler.getDropped());
+        assertEquals(0, scheduler.getRetries());
+        assertEquals(2, transport.sent.size());
+        assertTrue(timer.tasks.isEmpty());
+    }
+
+    @Test
+    public void indications_cancelTimeoutWhenConfirmed() {
+        RecordingTransport transport = new RecordingTransport();
+        ManualTimer timer = new ManualTimer();
+        NotificationScheduler<String, String> scheduler = new NotificationScheduler<>(transport,
+                4, 30000, 3, timer);
+        scheduler.subscribe("a", "chr", true);
+
+        scheduler.notifyChanged("chr", value(1));
+        scheduler.onSent("a", true);
+
+        assertTrue(timer.tasks.isEmpty());
+        assertEquals(1, scheduler.getConfirmed());
+    }
+}
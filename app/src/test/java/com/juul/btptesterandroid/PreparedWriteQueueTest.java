@@ -0,0 +1,168 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PreparedWriteQueueTest {
+    private final Map<String, byte[]> values = new HashMap<>();
+    private final List<String> applied = new ArrayList<>();
+
+    private int execute(PreparedWriteQueue<String, String> queue, String device, boolean commit) {
+        return queue.execute(device, commit, values::get, (d, attr, value) -> {
+            applied.add(d + "/" + attr);
+            values.put(attr, value);
+        });
+    }
+
+    private static byte[] range(int from, int len) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte) (from + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void outOfOrderPartsAssemble() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+
+        assertEquals(0, queue.prepare("a", "chr", 18, range(18, 18)));
+        assertEquals(0, queue.prepare("a", "chr", 36, range(36, 4)));
+        assertEquals(0, queue.prepare("a", "chr", 0, range(0, 18)));
+        assertEquals(0, execute(queue, "a", true));
+
+        assertArrayEquals(range(0, 40), values.get("chr"));
+        assertEquals(0, queue.queuedBytes("a"));
+    }
+
+    @Test
+    public void devicesDoNotCollide() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+
+        queue.prepare("a", "chr", 0, new byte[]{1, 1});
+        queue.prepare("b", "chr", 0, new byte[]{2, 2, 2});
+        queue.prepare("a", "chr", 2, new byte[]{1});
+
+        assertEquals(0, execute(queue, "b", true));
+        assertArrayEquals(new byte[]{2, 2, 2}, values.get("chr"));
+        assertEquals(3, queue.queuedBytes("a"));
+
+        assertEquals(0, execute(queue, "a", true));
+        assertArrayEquals(new byte[]{1, 1, 1}, values.get("chr"));
+    }
+
+    @Test
+    public void gapsKeepCurrentValue() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+        values.put("chr", new byte[]{9, 9, 9, 9});
+
+        queue.prepare("a", "chr", 2, new byte[]{5, 6});
+        assertEquals(0, execute(queue, "a", true));
+        assertArrayEquals(new byte[]{9, 9, 5, 6}, values.get("chr"));
+    }
+
+    @Test
+    public void uncoveredGapAppliesNothing() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+        values.put("chr", new byte[]{9});
+
+        queue.prepare("a", "dsc", 0, new byte[]{1});
+        queue.prepare("a", "chr", 4, new byte[]{1});
+
+        assertEquals(PreparedWriteQueue.ATT_ERR_INVALID_OFFSET, execute(queue, "a", true));
+        assertTrue(applied.isEmpty());
+        assertEquals(0, queue.queuedBytes("a"));
+    }
+
+    @Test
+    public void executeAppliesInOrder() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+
+        queue.prepare("a", "chr", 0, new byte[]{1});
+        queue.prepare("a", "dsc", 0, new byte[]{2});
+        queue.prepare("a", "chr", 1, new byte[]{3});
+
+        assertEquals(0, execute(queue, "a", true));
+        assertEquals(2, applied.size());
+        assertEquals("a/chr", applied.get(0));
+        assertEquals("a/dsc", applied.get(1));
+        assertEquals(1, queue.getExecuted());
+    }
+
+    @Test
+    public void cancelDropsQueue() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+
+        queue.prepare("a", "chr", 0, new byte[]{1});
+        assertEquals(0, execute(queue, "a", false));
+        assertTrue(applied.isEmpty());
+        assertEquals(1, queue.getCancelled());
+
+        queue.prepare("a", "chr", 0, new byte[]{1});
+        queue.removeDevice("a");
+        assertEquals(2, queue.getCancelled());
+        assertEquals(0, execute(queue, "a", true));
+        assertTrue(applied.isEmpty());
+    }
+
+    @Test
+    public void queueFullIsReportedOnPrepare() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>(600);
+        int max = PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH;
+
+        assertEquals(0, queue.prepare("a", "chr", 0, new byte[max]));
+        assertEquals(PreparedWriteQueue.ATT_ERR_PREPARE_QUEUE_FULL,
+                queue.prepare("a", "dsc", 0, new byte[100]));
+        assertEquals(0, queue.prepare("b", "dsc", 0, new byte[100]));
+        assertEquals(1, queue.getRejected());
+
+        assertEquals(0, execute(queue, "a", true));
+        assertEquals(max, values.get("chr").length);
+    }
+
+    @Test
+    public void invalidOffsetIsReportedOnExecute() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+        int max = PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH;
+
+        assertEquals(0, queue.prepare("a", "dsc", 0, new byte[]{1}));
+        assertEquals(0, queue.prepare("a", "chr", max + 1, new byte[1]));
+        assertEquals(0, queue.getRejected());
+
+        assertEquals(PreparedWriteQueue.ATT_ERR_INVALID_OFFSET, execute(queue, "a", true));
+        assertTrue(applied.isEmpty());
+        assertEquals(1, queue.getRejected());
+    }
+
+    @Test
+    public void invalidLengthIsReportedOnExecute() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+        int max = PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH;
+
+        assertEquals(0, queue.prepare("a", "chr", 0, new byte[max - 1]));
+        assertEquals(0, queue.prepare("a", "chr", max - 1, new byte[2]));
+
+        assertEquals(PreparedWriteQueue.ATT_ERR_INVALID_ATTRIBUTE_LENGTH,
+                execute(queue, "a", true));
+        assertTrue(applied.isEmpty());
+        assertEquals(0, queue.queuedBytes("a"));
+    }
+
+    @Test
+    public void cancelDropsInvalidParts() {
+        PreparedWriteQueue<String, String> queue = new PreparedWriteQueue<>();
+
+        queue.prepare("a", "chr", PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH + 1, new byte[1]);
+        assertEquals(0, execute(queue, "a", false));
+
+        queue.prepare("a", "chr", 0, new byte[]{7});
+        assertEquals(0, execute(queue, "a", true));
+        assertArrayEquals(new byte[]{7}, values.get("chr"));
+    }
+}
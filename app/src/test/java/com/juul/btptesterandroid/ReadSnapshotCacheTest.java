@@ -0,0 +1,118 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ReadSnapshotCacheTest {
+    private static final int MTU = 23;
+
+    private static byte[] value(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) i;
+        }
+        return value;
+    }
+
+    private static byte[] longRead(ReadSnapshotCache<String, String> cache, String device,
+                                   byte[] current) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] last = {MTU - 1};
+        while (last[0] == MTU - 1) {
+            assertTrue(cache.serve(device, "chr", current, out.size(), MTU, slice -> {
+                out.write(slice, 0, slice.length);
+                last[0] = slice.length;
+            }));
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void serve_readsLongValueInSlices() {
+        ReadSnapshotCache<String, String> cache = new ReadSnapshotCache<>();
+        byte[] value = value(100);
+
+        assertArrayEquals(value, longRead(cache, "a", value));
+        assertEquals(5, cache.getReads());
+        assertEquals(100, cache.getBytes());
+        assertEquals(1, cache.getSnapshots());
+        assertEquals(3, cache.getReused());
+    }
+
+    @Test
+    public void serve_sharesSnapshotOfUnchangedValue() {
+        ReadSnapshotCache<String, String> cache = new ReadSnapshotCache<>();
+        byte[] value = value(10);
+        byte[][] sent = new byte[1][];
+
+        cache.serve("a", "chr", value, 0, MTU, slice -> sent[0] = slice);
+        cache.serve("b", "chr", value, 0, MTU, slice -> assertSame(sent[0], slice));
+
+        assertEquals(1, cache.getSnapshots());
+        assertArrayEquals(value, sent[0]);
+    }
+
+    @Test
+    public void serve_keepsSnapshotDuringLongRead() {
+        ReadSnapshotCache<String, String> cache = new ReadSnapshotCache<>();
+        byte[] value = value(30);
+        byte[] changed = new byte[30];
+        byte[][] sent = new byte[1][];
+
+        cache.serve("a", "chr", value, 0, MTU, slice -> { });
+        cache.serve("a", "chr", changed, MTU - 1, MTU, slice -> sent[0] = slice.clone());
+
+        assertEquals(30 - (MTU - 1), sent[0].length);
+        assertEquals(MTU - 1, sent[0][0]);
+    }
+
+    @Test
+    public void serve_rejectsOffsetPastEnd() {
+        ReadSnapshotCache<String, String> cache = new ReadSnapshotCache<>();
+        byte[] value = value(10);
+        int[] length = {-1};
+
+        assertTrue(cache.serve("a", "chr", value, 10, MTU, slice -> length[0] = slice.length));
+        assertEquals(0, length[0]);
+        assertFalse(cache.serve("a", "chr", value, 11, MTU, slice -> fail("sent past the end")));
+        assertTrue(cache.serve("a", "chr", null, 0, MTU, slice -> length[0] = slice.length));
+        assertEquals(0, length[0]);
+    }
+
+    @Test
+    public void serve_unpinsAfterLastSlice() {
+        ReadSnapshotCache<String, String> cache = new ReadSnapshotCache<>();
+        byte[] value = value(30);
+        byte[] changed = new byte[30];
+        byte[][] sent = new byte[1][];
+
+        assertArrayEquals(value, longRead(cache, "a", value));
+        assertEquals(0, cache.pinned("a"));
+
+        /* A Read Blob without a fresh read at offset 0 sees the new value */
+        cache.serve("a", "chr", changed, MTU - 1, MTU, slice -> sent[0] = slice.clone());
+        assertEquals(0, sent[0][0]);
+    }
+
+    @Test
+    public void serve_otherOffsetReadsCurrentValue() {
+        ReadSnapshotCache<String, String> cache = new ReadSnapshotCache<>();
+        byte[] value = value(100);
+        byte[] changed = new byte[100];
+        byte[][] sent = new byte[1][];
+
+        /* A long read abandoned after its first slice */
+        cache.serve("a", "chr", value, 0, MTU, slice -> { });
+        assertEquals(1, cache.pinned("a"));
+
+        cache.serve("a", "chr", changed, 10, MTU, slice -> sent[0] = slice.clone());
+        assertEquals(0, sent[0][0]);
+
+        /* Which started a new long read of the current value */
+        cache.serve("a", "chr", value, 10 + MTU - 1, MTU, slice -> sent[0] = slice.clone());
+        assertEquals(0, sent[0][0]);
+    }
+}
@@ -0,0 +1,94 @@
+package com.juul.btptesterandroid;
+
+import com.juul.btptesterandroid.DiscoveredDeviceCache.DiscoveredDevice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ScanCoalescerTest {
+    private static final String ADDR = "C0:11:22:33:44:55";
+    private static final long MS = 1000000L;
+
+    /* Flags + complete local name "abc" */
+    private static final byte[] ADV = {0x02, 0x01, 0x06, 0x04, 0x09, 'a', 'b', 'c'};
+    /* The same advertisement with a TX power scan response */
+    private static final byte[] ADV_SCAN_RSP = {0x02, 0x01, 0x06, 0x04, 0x09, 'a', 'b', 'c',
+            0x02, 0x0a, 0x00};
+
+    private static DiscoveredDevice device(String addr) {
+        return new DiscoveredDevice(addr, 0);
+    }
+
+    private static byte[] padded(byte[] data) {
+        return Arrays.copyOf(data, 62);
+    }
+
+    @Test
+    public void adLength_stopsAtPadding() {
+        assertEquals(ADV.length, ScanCoalescer.adLength(padded(ADV)));
+        assertEquals(ADV_SCAN_RSP.length, ScanCoalescer.adLength(ADV_SCAN_RSP));
+        assertEquals(0, ScanCoalescer.adLength(null));
+        /* Truncated AD structure */
+        assertEquals(3, ScanCoalescer.adLength(new byte[]{0x02, 0x01, 0x06, 0x05, 0x09}));
+    }
+
+    @Test
+    public void offer_dropsDuplicates() {
+        ScanCoalescer coalescer = new ScanCoalescer(100);
+        DiscoveredDevice dev = device(ADDR);
+
+        assertTrue(coalescer.offer(dev, padded(ADV), ADV.length, 0));
+        assertFalse(coalescer.offer(dev, padded(ADV), ADV.length, 500 * MS));
+        assertTrue(coalescer.offer(device("C0:11:22:33:44:66"), padded(ADV), ADV.length,
+                500 * MS));
+
+        assertEquals(3, coalescer.getOffered());
+        assertEquals(2, coalescer.getForwarded());
+        assertEquals(1, coalescer.getDuplicates());
+    }
+
+    @Test
+    public void offer_mergesScanResponse() {
+        ScanCoalescer coalescer = new ScanCoalescer(100);
+        DiscoveredDevice dev = device(ADDR);
+
+        assertTrue(coalescer.offer(dev, ADV, ADV.length, 0));
+        assertTrue(coalescer.offer(dev, ADV_SCAN_RSP, ADV_SCAN_RSP.length, 200 * MS));
+        assertFalse(coalescer.offer(dev, ADV, ADV.length, 400 * MS));
+
+        assertEquals(1, coalescer.getMerged());
+    }
+
+    @Test
+    public void offer_throttlesChangedPayloads() {
+        ScanCoalescer coalescer = new ScanCoalescer(100);
+        byte[] changed = ADV.clone();
+        changed[7] = 'd';
+        DiscoveredDevice dev = device(ADDR);
+
+        assertTrue(coalescer.offer(dev, ADV, ADV.length, 0));
+        assertFalse(coalescer.offer(dev, changed, changed.length, 50 * MS));
+        assertTrue(coalescer.offer(dev, changed, changed.length, 150 * MS));
+
+        assertEquals(1, coalescer.getThrottled());
+
+        /* A new record, e.g. after the device expired from the cache, is reported again */
+        assertTrue(coalescer.offer(device(ADDR), changed, changed.length, 160 * MS));
+    }
+
+    @Test
+    public void offer_doesNotThrottleByDefault() {
+        ScanCoalescer coalescer = new ScanCoalescer();
+        byte[] changed = ADV.clone();
+        changed[7] = 'd';
+        DiscoveredDevice dev = device(ADDR);
+
+        assertTrue(coalescer.offer(dev, ADV, ADV.length, 0));
+        assertTrue(coalescer.offer(dev, changed, changed.length, MS));
+
+        assertEquals(0, coalescer.getThrottled());
+    }
+}
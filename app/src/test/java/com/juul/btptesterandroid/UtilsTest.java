@@ -0,0 +1,64 @@
+package com.juul.btptesterandroid;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class UtilsTest {
+    private static final UUID HRM_UUID = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    private static final UUID SIG32_UUID = UUID.fromString("12345678-0000-1000-8000-00805f9b34fb");
+    private static final UUID VENDOR_UUID = UUID.fromString("00000015-8c26-476f-89a7-a108033a69c7");
+
+    @Test
+    public void isBluetoothSIGUuid_matchesBaseUuidOnly() {
+        assertTrue(Utils.isBluetoothSIGUuid(HRM_UUID));
+        assertTrue(Utils.isBluetoothSIGUuid(SIG32_UUID));
+        assertFalse(Utils.isBluetoothSIGUuid(VENDOR_UUID));
+    }
+
+    @Test
+    public void UUIDtoBTP_usesShortestLittleEndianForm() {
+        assertArrayEquals(new byte[]{0x37, 0x2a}, Utils.UUIDtoBTP(HRM_UUID));
+        assertArrayEquals(new byte[]{0x78, 0x56, 0x34, 0x12}, Utils.UUIDtoBTP(SIG32_UUID));
+
+        byte[] vendor = Utils.UUIDtoBTP(VENDOR_UUID);
+        assertEquals(16, vendor.length);
+        assertEquals((byte) 0xc7, vendor[0]);
+        assertEquals(0x00, vendor[15]);
+        assertEquals(0x15, vendor[12]);
+    }
+
+    @Test
+    public void btpToUUID_roundTrips() {
+        assertEquals(HRM_UUID, Utils.btpToUUID(new byte[]{0x2a, 0x37}));
+        assertEquals(SIG32_UUID, Utils.btpToUUID(new byte[]{0x12, 0x34, 0x56, 0x78}));
+
+        byte[] vendor = Utils.UUIDtoBTP(VENDOR_UUID);
+        Utils.reverseBytes(vendor);
+        assertEquals(VENDOR_UUID, Utils.btpToUUID(vendor));
+
+        assertNull(Utils.btpToUUID(new byte[3]));
+    }
+
+    @Test
+    public void btpToUUID_internsCommonSigUuids() {
+        assertSame(Utils.btpToUUID(new byte[]{0x28, 0x00}),
+                Utils.btpToUUID(new byte[]{0x28, 0x00}));
+    }
+
+    @Test
+    public void putUUID_ignoresBufferOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(18).order(ByteOrder.BIG_ENDIAN);
+        Utils.putUUID(buffer, HRM_UUID);
+        Utils.putUUID(buffer, VENDOR_UUID);
+
+        assertEquals(18, buffer.position());
+        assertEquals(0x37, buffer.get(0));
+        assertEquals(0x2a, buffer.get(1));
+        assertEquals((byte) 0xc7, buffer.get(2));
+    }
+}
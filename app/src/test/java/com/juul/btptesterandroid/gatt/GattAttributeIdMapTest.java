@@ -0,0 +1,48 @@
+package com.juul.btptesterandroid.gatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GattAttributeIdMapTest {
+
+    @Test
+    public void get_returnsRegisteredAttributes() {
+        GattAttributeIdMap map = new GattAttributeIdMap();
+        Object svc = new Object();
+        Object chr = new Object();
+
+        map.register(1, svc);
+        map.register(2, chr);
+
+        assertSame(svc, map.get(1));
+        assertSame(chr, map.get(2));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void get_unknownIdsReturnNull() {
+        GattAttributeIdMap map = new GattAttributeIdMap();
+        map.register(0, new Object());
+        map.register(-1, new Object());
+        map.register(3, new Object());
+
+        assertNull(map.get(0));
+        assertNull(map.get(-1));
+        assertNull(map.get(2));
+        assertNull(map.get(4));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void register_growsPastInitialCapacity() {
+        GattAttributeIdMap map = new GattAttributeIdMap();
+        for (int id = 1; id <= 1000; id++) {
+            map.register(id, id);
+        }
+
+        assertEquals(1, map.get(1));
+        assertEquals(1000, map.get(1000));
+        assertEquals(1000, map.size());
+    }
+}
@@ -0,0 +1,137 @@
+package com.juul.btptesterandroid.gatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.juul.btptesterandroid.Utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/* The framework GATT classes are empty in plain unit tests */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class GattDBIndexTest {
+    static final UUID HRS_UUID = uuid16(0x180d);
+    static final UUID BAS_UUID = uuid16(0x180f);
+    static final UUID HRM_UUID = uuid16(0x2a37);
+    static final UUID LEVEL_UUID = uuid16(0x2a19);
+    static final UUID CCCD_UUID = uuid16(0x2902);
+
+    static UUID uuid16(int uuid) {
+        return UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid));
+    }
+
+    /**
+     * Heart rate service 1-6 with two measurements, the first one with a CCCD, and battery
+     * service 7-10 including the heart rate service.
+     */
+    static List<BluetoothGattService> database() {
+        List<BluetoothGattService> svcs = new ArrayList<>();
+
+        BluetoothGattService hrs = new BluetoothGattService(HRS_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic hrm = new BluetoothGattCharacteristic(HRM_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        hrm.addDescriptor(new BluetoothGattDescriptor(CCCD_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ));
+        hrs.addCharacteristic(hrm);
+        hrs.addCharacteristic(new BluetoothGattCharacteristic(HRM_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ));
+        svcs.add(hrs);
+
+        BluetoothGattService bas = new BluetoothGattService(BAS_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        bas.addService(hrs);
+        bas.addCharacteristic(new BluetoothGattCharacteristic(LEVEL_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ));
+        svcs.add(bas);
+
+        return svcs;
+    }
+
+    private static GattDBIndex index() {
+        return GattDBIndex.build(Utils.initializeGattDB(database()));
+    }
+
+    @Test
+    public void lookupsByHandle() {
+        GattDBIndex index = index();
+
+        assertEquals(10, index.getMaxHandle());
+        assertEquals(GattDBIndex.TYPE_SERVICE, index.getType(1));
+        assertEquals(GattDBIndex.TYPE_CHRC_DECLARATION, index.getType(2));
+        assertEquals(GattDBIndex.TYPE_CHRC_VALUE, index.getType(3));
+        assertEquals(GattDBIndex.TYPE_DESCRIPTOR, index.getType(4));
+        assertEquals(GattDBIndex.TYPE_INCLUDE, index.getType(8));
+        assertEquals(GattDBIndex.TYPE_NONE, index.getType(0));
+        assertEquals(GattDBIndex.TYPE_NONE, index.getType(11));
+        assertNull(index.getAttribute(11));
+
+        assertEquals(BAS_UUID, index.getService(7).getService().getUuid());
+        assertNull(index.getService(8));
+
+        GattDBCharacteristic hrm = index.getCharacteristicByValueHandle(3);
+        assertEquals(2, hrm.getDefHandle());
+        assertNull(index.getCharacteristicByValueHandle(2));
+        assertSame(hrm, index.getDescriptorCharacteristic(4));
+        assertEquals(CCCD_UUID, index.getDescriptor(4).getDescriptor().getUuid());
+        assertNull(index.getDescriptor(3));
+    }
+
+    @Test
+    public void lookupsByUuid() {
+        GattDBIndex index = index();
+
+        List<GattDBService> services = index.getPrimaryServices(BAS_UUID);
+        assertEquals(1, services.size());
+        assertEquals(7, services.get(0).getStartHandle());
+        assertTrue(index.getPrimaryServices(LEVEL_UUID).isEmpty());
+
+        List<GattDBCharacteristic> chrcs = index.getCharacteristics(1, 0xffff, HRM_UUID);
+        assertEquals(2, chrcs.size());
+        assertEquals(2, chrcs.get(0).getDefHandle());
+        assertEquals(5, chrcs.get(1).getDefHandle());
+        assertEquals(1, index.getCharacteristics(3, 6, HRM_UUID).size());
+        assertTrue(index.getCharacteristics(1, 0xffff, CCCD_UUID).isEmpty());
+    }
+
+    @Test
+    public void rangeQueriesStayInsideRange() {
+        GattDBIndex index = index();
+
+        assertEquals(3, index.getCharacteristics(1, 0xffff).size());
+        assertEquals(2, index.getCharacteristics(1, 6).size());
+        assertEquals(1, index.getIncludedServices(7, 10).size());
+        assertTrue(index.getIncludedServices(1, 6).isEmpty());
+        assertEquals(1, index.getDescriptors(0, 0xffff).size());
+        assertTrue(index.getDescriptors(5, 10).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void primaryServicesAreUnmodifiable() {
+        GattDBIndex index = index();
+
+        assertEquals(2, index.getPrimaryServices().size());
+        index.getPrimaryServices().clear();
+    }
+
+    @Test
+    public void emptyIndexHasNoAttributes() {
+        assertEquals(0, GattDBIndex.EMPTY.getMaxHandle());
+        assertEquals(GattDBIndex.TYPE_NONE, GattDBIndex.EMPTY.getType(1));
+        assertTrue(GattDBIndex.EMPTY.getPrimaryServices().isEmpty());
+        assertTrue(GattDBIndex.EMPTY.getCharacteristics(1, 0xffff, HRM_UUID).isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+package com.juul.btptesterandroid.gatt;
+
+import android.bluetooth.BluetoothGattService;
+
+import com.juul.btptesterandroid.BTP;
+import com.juul.btptesterandroid.Utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/* The framework GATT classes are empty in plain unit tests */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class GattDBServerTableTest {
+    /* GATT service 1-4 and GAP service 5-11 */
+    private static final int CORE_HANDLES = 11;
+    private static final UUID CHRC_TYPE_UUID = Utils.btpToUUID(new byte[]{0x28, 0x03});
+
+    /**
+     * Core services followed by the services of {@link GattDBIndexTest#database()}, heart
+     * rate at 12-17 and battery at 18-21.
+     */
+    private static GattDBServerTable table() {
+        GattDBServerTable table = new GattDBServerTable(Utils.getCoreGattServices());
+        for (BluetoothGattService svc : GattDBIndexTest.database()) {
+            table.addService(svc);
+        }
+        return table;
+    }
+
+    private static int[] handles(List<BTP.GattAttribute> attrs) {
+        int[] handles = new int[attrs.size()];
+        for (int i = 0; i < handles.length; i++) {
+            ByteBuffer buf = ByteBuffer.wrap(attrs.get(i).toBytes());
+            handles[i] = Short.toUnsignedInt(buf.order(ByteOrder.LITTLE_ENDIAN).getShort());
+        }
+        return handles;
+    }
+
+    private static byte[] type(BTP.GattAttribute attr) {
+        byte[] bytes = attr.toBytes();
+        return Arrays.copyOfRange(bytes, 4, 4 + bytes[3]);
+    }
+
+    @Test
+    public void registeredServicesFollowCoreServices() {
+        GattDBServerTable table = table();
+        List<GattDBService> services = table.getServices();
+
+        assertEquals(4, services.size());
+        assertEquals(CORE_HANDLES + 1, services.get(2).getStartHandle());
+        assertEquals(CORE_HANDLES + 7, services.get(3).getStartHandle());
+        assertEquals(CORE_HANDLES + 10, services.get(3).getEndHandle());
+    }
+
+    @Test
+    public void findServerService_countsWithoutCoreServices() {
+        GattDBServerTable table = table();
+
+        assertEquals(GattDBIndexTest.HRS_UUID, table.findServerService(1).getUuid());
+        assertEquals(GattDBIndexTest.BAS_UUID, table.findServerService(7).getUuid());
+        assertNull(table.findServerService(0));
+        assertNull(table.findServerService(2));
+        assertNull(table.findServerService(11));
+    }
+
+    @Test
+    public void getAttributes_skipsCharacteristicValues() {
+        GattDBServerTable table = table();
+
+        /* Heart rate service, two declarations and the CCCD */
+        assertArrayEquals(new int[]{12, 13, 15, 16},
+                handles(table.getAttributes(CORE_HANDLES + 1, CORE_HANDLES + 6, null)));
+        assertArrayEquals(new int[]{18, 19, 20},
+                handles(table.getAttributes(CORE_HANDLES + 7, 0xffff, null)));
+        assertTrue(table.getAttributes(CORE_HANDLES + 11, 0xffff, null).isEmpty());
+    }
+
+    @Test
+    public void getAttributes_filtersByType() {
+        GattDBServerTable table = table();
+
+        List<BTP.GattAttribute> chrcs = table.getAttributes(1, 0xffff, CHRC_TYPE_UUID);
+        assertArrayEquals(new int[]{2, 6, 8, 10, 13, 16, 20}, handles(chrcs));
+        assertArrayEquals(Utils.BT_CHRC_TYPE_UUID_BYTES, type(chrcs.get(0)));
+
+        assertArrayEquals(new int[]{13, 16},
+                handles(table.getAttributes(CORE_HANDLES + 1, CORE_HANDLES + 6,
+                        CHRC_TYPE_UUID)));
+        assertArrayEquals(new int[]{4, 15},
+                handles(table.getAttributes(1, 0xffff, GattDBIndexTest.CCCD_UUID)));
+        assertTrue(table.getAttributes(1, 0xffff, GattDBIndexTest.HRM_UUID).isEmpty());
+    }
+
+    @Test
+    public void getAttributeValue_outsideTableIsNull() {
+        GattDBServerTable table = table();
+
+        assertNull(table.getAttributeValue(0));
+        assertNull(table.getAttributeValue(CORE_HANDLES + 11));
+        assertNotNull(table.getAttributeValue(CORE_HANDLES + 1));
+    }
+}
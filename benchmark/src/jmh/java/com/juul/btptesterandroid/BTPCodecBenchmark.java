@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import com.juul.btptesterandroid.gatt.GattDBCharacteristic;
+import com.juul.btptesterandroid.gatt.GattDBServerTable;
+import com.juul.btptesterandroid.gatt.GattDBService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command parsing and response encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BTPCodecBenchmark {
+    private static final int DEVICE_FOUND_EVENTS = 64;
+
+    private byte[] writeLongFrame;
+    private byte[] readFrame;
+    private BTP.GattDiscChrcRp discChrcRp;
+    private BTP.GattGetAttributtesRp getAttributesRp;
+    private BTP.GapDeviceFoundEv[] deviceFound;
+    private BTPFramePool framePool;
+
+    @Setup
+    public void setup() {
+        writeLongFrame = BenchmarkData.writeLongFrame(512);
+        readFrame = BenchmarkData.readFrame();
+
+        List<GattDBService> services = Utils.initializeGattDB(
+                BenchmarkData.database(8, 16, 1));
+        List<BTP.GattCharacteristic> chrcs = new ArrayList<>();
+        for (GattDBService svc : services) {
+            for (GattDBCharacteristic chr : svc.getCharacteristics()) {
+                chrcs.add(new BTP.GattCharacteristic(chr));
+            }
+        }
+        discChrcRp = new BTP.GattDiscChrcRp();
+        discChrcRp.characteristics = chrcs.toArray(new BTP.GattCharacteristic[0]);
+        discChrcRp.characteristicsCount = (byte) chrcs.size();
+
+        GattDBServerTable table = new GattDBServerTable(BenchmarkData.database(8, 16, 1));
+        List<BTP.GattAttribute> attrs = table.getAttributes(1, 0xffff, null);
+        getAttributesRp = new BTP.GattGetAttributtesRp();
+        getAttributesRp.attributes = attrs.toArray(new BTP.GattAttribute[0]);
+        getAttributesRp.attributesCount = (byte) attrs.size();
+
+        deviceFound = new BTP.GapDeviceFoundEv[DEVICE_FOUND_EVENTS];
+        for (int i = 0; i < deviceFound.length; i++) {
+            deviceFound[i] = BenchmarkData.deviceFound(i);
+        }
+
+        framePool = new BTPFramePool();
+    }
+
+    @Benchmark
+    public BTP.GattWriteLongCmd parseWriteLong() {
+        BTPMessage msg = BTPMessage.parse(ByteBuffer.wrap(writeLongFrame));
+        return BTP.GattWriteLongCmd.parse(msg.data);
+    }
+
+    @Benchmark
+    public BTP.GattReadCmd parseRead() {
+        BTPMessage msg = BTPMessage.parse(ByteBuffer.wrap(readFrame));
+        return BTP.GattReadCmd.parse(msg.data);
+    }
+
+    @Benchmark
+    public byte[] discChrcRpToBytes() {
+        return discChrcRp.toBytes();
+    }
+
+    @Benchmark
+    public byte[] getAttributesRpToBytes() {
+        return getAttributesRp.toBytes();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void deviceFoundBurst(Blackhole bh) {
+        for (BTP.GapDeviceFoundEv ev : deviceFound) {
+            ByteBuffer frame = framePool.encode(BTP.BTP_SERVICE_ID_GAP,
+                    BTP.GAP_EV_DEVICE_FOUND, (byte) 0, ev.toBytes());
+            bh.consume(frame);
+            framePool.release(frame);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static android.bluetooth.BluetoothGattCharacteristic.PERMISSION_READ;
+import static android.bluetooth.BluetoothGattCharacteristic.PERMISSION_WRITE;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_READ;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_WRITE;
+
+/**
+ * Payloads shared by the benchmarks, shaped after what PTS test cases send.
+ */
+final class BenchmarkData {
+    static final String VENDOR_UUID_FMT = "0000%04x-8c26-476f-89a7-a108033a69c7";
+    static final UUID CCCD_UUID = Utils.stringToUUID("00002902-0000-1000-8000-00805f9b34fb");
+
+    private BenchmarkData() {
+    }
+
+    static UUID sigUuid(int uuid16) {
+        return Utils.stringToUUID(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16));
+    }
+
+    static UUID vendorUuid(int id) {
+        return Utils.stringToUUID(String.format(VENDOR_UUID_FMT, id));
+    }
+
+    /**
+     * Builds a database alternating SIG and vendor UUIDs. Every characteristic gets a
+     * CCCD plus {@code extraDescriptors} user descriptors.
+     */
+    static List<BluetoothGattService> database(int services, int characteristics,
+                                               int extraDescriptors) {
+        List<BluetoothGattService> svcs = new ArrayList<>();
+        int id = 1;
+
+        for (int s = 0; s < services; s++) {
+            BluetoothGattService svc = new BluetoothGattService(
+                    s % 2 == 0 ? sigUuid(0x1800 + s) : vendorUuid(id++),
+                    BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+            if (s > 0 && s % 4 == 0) {
+                svc.addService(svcs.get(s - 1));
+            }
+
+            for (int c = 0; c < characteristics; c++) {
+                BluetoothGattCharacteristic chr = new BluetoothGattCharacteristic(
+                        c % 2 == 0 ? sigUuid(0x2a00 + c) : vendorUuid(id++),
+                        PROPERTY_READ | PROPERTY_WRITE | PROPERTY_NOTIFY,
+                        PERMISSION_READ | PERMISSION_WRITE);
+                chr.setValue(bytes(20, c));
+
+                BluetoothGattDescriptor cccd = new BluetoothGattDescriptor(CCCD_UUID,
+                        PERMISSION_READ | PERMISSION_WRITE);
+                cccd.setValue(new byte[]{0x00, 0x00});
+                chr.addDescriptor(cccd);
+
+                for (int d = 0; d < extraDescriptors; d++) {
+                    BluetoothGattDescriptor dsc = new BluetoothGattDescriptor(
+                            vendorUuid(id++), PERMISSION_READ);
+                    dsc.setValue(bytes(8, d));
+                    chr.addDescriptor(dsc);
+                }
+
+                svc.addCharacteristic(chr);
+            }
+
+            svcs.add(svc);
+        }
+
+        return svcs;
+    }
+
+    static byte[] bytes(int len, long seed) {
+        byte[] data = new byte[len];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    static byte[] frame(byte service, byte opcode, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(BTP.HDR_LEN + payload.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(service);
+        buffer.put(opcode);
+        buffer.put((byte) 0);
+        buffer.putShort((short) payload.length);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /** GATT_WRITE_LONG command carrying {@code len} bytes */
+    static byte[] writeLongFrame(int len) {
+        ByteBuffer buffer = ByteBuffer.allocate(13 + len);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0);
+        buffer.put(bytes(6, 1));
+        buffer.putShort((short) 0x002a);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) len);
+        buffer.put(bytes(len, 2));
+        return frame(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_WRITE_LONG, buffer.array());
+    }
+
+    /** GATT_READ command */
+    static byte[] readFrame() {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0);
+        buffer.put(bytes(6, 1));
+        buffer.putShort((short) 0x002a);
+        return frame(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_READ, buffer.array());
+    }
+
+    /** Device found event with a full advertising payload and scan response */
+    static BTP.GapDeviceFoundEv deviceFound(long seed) {
+        BTP.GapDeviceFoundEv ev = new BTP.GapDeviceFoundEv();
+        ev.addressType = 1;
+        ev.address = bytes(6, seed);
+        ev.rssi = (byte) -60;
+        ev.flags = 0x03;
+        ev.eirData = bytes(62, seed);
+        ev.eirDataLen = (short) ev.eirData.length;
+        return ev;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.juul.btptesterandroid.gatt.GattAttributeIdMap;
+import com.juul.btptesterandroid.gatt.GattDBIndex;
+import com.juul.btptesterandroid.gatt.GattDBServerTable;
+import com.juul.btptesterandroid.gatt.GattDBService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GattDB construction and the lookups behind discovery, GATT_GET_ATTRIBUTE* and
+ * GATT_SET_VALUE. The largest database holds a few thousand attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GattDBBenchmark {
+    @Param({"4", "32", "128"})
+    public int services;
+
+    private static final int CHARACTERISTICS = 8;
+    private static final UUID CHRC_TYPE_UUID = Utils.btpToUUID(new byte[]{0x28, 0x03});
+
+    private List<BluetoothGattService> database;
+    private List<GattDBService> dbServices;
+    private GattDBIndex index;
+    private GattDBServerTable serverTable;
+    private GattAttributeIdMap attributeIds;
+    private UUID chrcUuid;
+    private int lastHandle;
+    private int lastAttrId;
+    private byte[] value;
+
+    @Setup
+    public void setup() {
+        database = BenchmarkData.database(services, CHARACTERISTICS, 2);
+        dbServices = Utils.initializeGattDB(database);
+        index = GattDBIndex.build(dbServices);
+        serverTable = new GattDBServerTable(database);
+        lastHandle = dbServices.get(dbServices.size() - 1).getEndHandle();
+        chrcUuid = BenchmarkData.sigUuid(0x2a02);
+
+        /* Same numbering as GAP hands out for GATT_ADD_* commands */
+        attributeIds = new GattAttributeIdMap();
+        int id = 0;
+        for (BluetoothGattService svc : database) {
+            attributeIds.register(++id, svc);
+            for (BluetoothGattService inc : svc.getIncludedServices()) {
+                attributeIds.register(++id, inc);
+            }
+            for (BluetoothGattCharacteristic chr : svc.getCharacteristics()) {
+                attributeIds.register(++id, chr);
+                for (BluetoothGattDescriptor dsc : chr.getDescriptors()) {
+                    attributeIds.register(++id, dsc);
+                }
+            }
+        }
+        /* The last descriptor is the worst case for a walk */
+        lastAttrId = id;
+        value = BenchmarkData.bytes(20, 4);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<GattDBService> initializeGattDB() {
+        return Utils.initializeGattDB(database);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public GattDBIndex buildIndex() {
+        return GattDBIndex.build(dbServices);
+    }
+
+    @Benchmark
+    public Object indexCharacteristicsByUuid() {
+        return index.getCharacteristics(1, lastHandle, chrcUuid);
+    }
+
+    @Benchmark
+    public byte[] serverTableAttributeValue() {
+        return serverTable.getAttributeValue(lastHandle);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object serverTableAllAttributes() {
+        return serverTable.getAttributes(1, 0xffff, null);
+    }
+
+    @Benchmark
+    public Object serverTableCharacteristicDeclarations() {
+        return serverTable.getAttributes(1, 0xffff, CHRC_TYPE_UUID);
+    }
+
+    @Benchmark
+    public boolean setValueById() {
+        Object attr = attributeIds.get(lastAttrId);
+        if (attr instanceof BluetoothGattDescriptor) {
+            return ((BluetoothGattDescriptor) attr).setValue(value);
+        }
+
+        return false;
+    }
+
+    /** Attribute walk GATT_SET_VALUE used before the ID map, kept as the baseline */
+    @Benchmark
+    public boolean setValueByWalk() {
+        int i = 0;
+
+        for (BluetoothGattService svc : database) {
+            if (++i == lastAttrId) {
+                return false;
+            }
+
+            for (BluetoothGattService inc : svc.getIncludedServices()) {
+                if (++i == lastAttrId) {
+                    return false;
+                }
+            }
+
+            for (BluetoothGattCharacteristic chr : svc.getCharacteristics()) {
+                if (++i == lastAttrId) {
+                    return chr.setValue(value);
+                }
+
+                for (BluetoothGattDescriptor dsc : chr.getDescriptors()) {
+                    if (++i == lastAttrId) {
+                        return dsc.setValue(value);
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+}
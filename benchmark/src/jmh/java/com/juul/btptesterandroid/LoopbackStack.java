@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import org.java_websocket.WebSocket;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+/**
+ * Session fed through {@code BTTester.messageHandler}, with a {@link MemoryGap} behind it.
+ * Responses go through the dispatcher and frame pool of a real session and are counted by a
+ * WebSocket that drops them. Like a BTP client, the next command is only handed over once the
+ * previous one has been answered.
+ */
+class LoopbackStack implements BTPReplay.FrameHandler, AutoCloseable {
+    private final BTTester tester;
+    private long sent = 0;
+
+    LoopbackStack() throws InterruptedException {
+        WebSocket socket = (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(),
+                new Class<?>[]{WebSocket.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "send":
+                            sent();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "LoopbackSocket";
+                        default:
+                            return method.getReturnType() == boolean.class ? false : null;
+                    }
+                });
+
+        tester = new BTTester(socket, new BTPFramePool(), new ConnectionArbiter(), 1,
+                MemoryGap::new);
+        tester.open();
+        tester.messageHandler(BenchmarkData.frame(BTP.BTP_SERVICE_ID_CORE,
+                BTP.CORE_REGISTER_SERVICE, new byte[]{BTP.BTP_SERVICE_ID_GAP}));
+        awaitSent(2);
+    }
+
+    private synchronized void sent() {
+        ++sent;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the session has sent {@code count} messages since it was opened.
+     */
+    private synchronized void awaitSent(long count) throws InterruptedException {
+        while (sent < count) {
+            wait();
+        }
+    }
+
+    @Override
+    public void handleFrame(ByteBuffer frame) {
+        long count;
+        synchronized (this) {
+            count = sent + 1;
+        }
+
+        tester.messageHandler(frame);
+        try {
+            awaitSent(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        tester.close();
+    }
+}
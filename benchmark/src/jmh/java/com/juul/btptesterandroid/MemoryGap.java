@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import java.nio.ByteBuffer;
+
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GAP;
+import static com.juul.btptesterandroid.BTP.BTP_SERVICE_ID_GATT;
+import static com.juul.btptesterandroid.BTP.BTP_STATUS_FAILED;
+import static com.juul.btptesterandroid.BTP.BTP_STATUS_SUCCESS;
+import static com.juul.btptesterandroid.BTP.BTP_STATUS_UNKNOWN_CMD;
+import static com.juul.btptesterandroid.BTP.GATT_READ;
+import static com.juul.btptesterandroid.BTP.GATT_WRITE_LONG;
+
+/**
+ * GAP service of the benchmark sessions. It parses the GATT read and long write commands the
+ * replayed captures use and answers them from memory, everything else is an unknown command.
+ */
+class MemoryGap implements GapService {
+    private BTTester tester;
+    private final byte[] value = new byte[20];
+
+    @Override
+    public void setTargetMtu(int mtu) {
+    }
+
+    @Override
+    public void setScanInterval(long intervalMs) {
+    }
+
+    @Override
+    public byte init(BTTester tester) {
+        this.tester = tester;
+        return BTP_STATUS_SUCCESS;
+    }
+
+    @Override
+    public void handleGAP(byte opcode, byte index, ByteBuffer data) {
+        tester.response(BTP_SERVICE_ID_GAP, opcode, index, BTP_STATUS_UNKNOWN_CMD);
+    }
+
+    @Override
+    public void handleGATT(byte opcode, byte index, ByteBuffer data) {
+        switch (opcode) {
+            case GATT_READ:
+                if (BTP.GattReadCmd.parse(data) == null) {
+                    tester.response(BTP_SERVICE_ID_GATT, opcode, index, BTP_STATUS_FAILED);
+                    return;
+                }
+
+                BTP.GattReadRp rp = new BTP.GattReadRp();
+                rp.data = value;
+                rp.dataLen = (short) value.length;
+                tester.sendMessage(BTP_SERVICE_ID_GATT, opcode, index, rp.toBytes());
+                break;
+            case GATT_WRITE_LONG:
+                byte status = BTP.GattWriteLongCmd.parse(data) == null ? BTP_STATUS_FAILED :
+                        BTP_STATUS_SUCCESS;
+                tester.response(BTP_SERVICE_ID_GATT, opcode, index, status);
+                break;
+            default:
+                tester.response(BTP_SERVICE_ID_GATT, opcode, index, BTP_STATUS_UNKNOWN_CMD);
+                break;
+        }
+    }
+
+    @Override
+    public byte unregister() {
+        return BTP_STATUS_SUCCESS;
+    }
+
+    @Override
+    public void cleanup() {
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a synthetic PTS-like session of reads and long writes through the capture file
+ * format into a session, each command as soon as the previous one has been answered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+    private static final int COMMANDS = 1000;
+
+    private File file;
+    private BTPReplay replay;
+    private LoopbackStack stack;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        file = File.createTempFile("btp", ".cap");
+        byte[] read = BenchmarkData.readFrame();
+        byte[] writeLong = BenchmarkData.writeLongFrame(512);
+        byte[] response = BenchmarkData.frame(BTP.BTP_SERVICE_ID_GATT, BTP.GATT_READ,
+                BenchmarkData.bytes(23, 6));
+
+        try (BTPCapture capture = new BTPCapture(file)) {
+            for (int i = 0; i < COMMANDS; i++) {
+                capture.record(Trace.DIR_IN, ByteBuffer.wrap(i % 4 == 3 ? writeLong : read));
+                capture.record(Trace.DIR_OUT, ByteBuffer.wrap(response));
+            }
+        }
+
+        replay = new BTPReplay(file);
+        stack = new LoopbackStack();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stack.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public BTPReplay.Result replaySession() throws InterruptedException {
+        return replay.replay(stack, false);
+    }
+}
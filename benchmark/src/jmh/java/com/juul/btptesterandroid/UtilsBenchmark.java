@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.juul.btptesterandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UUID and address conversions and hex formatting, which run for every attribute, command
+ * and logged frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+    private UUID sigUuid;
+    private UUID vendorUuid;
+    private byte[] btpSigUuid;
+    private byte[] btpVendorUuid;
+    private byte[] longValue;
+    private String bdAddr;
+    private byte[] cmdAddress;
+
+    @Setup
+    public void setup() {
+        sigUuid = BenchmarkData.sigUuid(0x2a37);
+        vendorUuid = BenchmarkData.vendorUuid(0x0015);
+        /* btpToUUID takes the big endian form commands are converted to */
+        btpSigUuid = new byte[]{0x2a, 0x37};
+        btpVendorUuid = Utils.UUIDtoBTP(vendorUuid);
+        Utils.reverseBytes(btpVendorUuid);
+        longValue = BenchmarkData.bytes(512, 3);
+        bdAddr = "C0:11:22:33:44:55";
+        /* Address as left by the command parsers */
+        cmdAddress = new byte[]{(byte) 0xc0, 0x11, 0x22, 0x33, 0x44, 0x55};
+    }
+
+    @Benchmark
+    public byte[] sigUuidToBtp() {
+        return Utils.UUIDtoBTP(sigUuid);
+    }
+
+    @Benchmark
+    public byte[] vendorUuidToBtp() {
+        return Utils.UUIDtoBTP(vendorUuid);
+    }
+
+    @Benchmark
+    public UUID btpToSigUuid() {
+        return Utils.btpToUUID(btpSigUuid);
+    }
+
+    @Benchmark
+    public UUID btpToVendorUuid() {
+        return Utils.btpToUUID(btpVendorUuid);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return Utils.bytesToHex(longValue);
+    }
+
+    @Benchmark
+    public String btpToBdAddr() {
+        return Utils.btpToBdAddr(cmdAddress);
+    }
+
+    @Benchmark
+    public byte[] btAddrToBytes() {
+        return Utils.btAddrToBytes(bdAddr);
+    }
+
+    @Benchmark
+    public long parseBdAddr() {
+        return BdAddr.parse(bdAddr);
+    }
+}
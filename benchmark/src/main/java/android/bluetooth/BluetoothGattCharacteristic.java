@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plain JVM stand-in for the Android class, holding just enough state for the GattDB code.
+ */
+public class BluetoothGattCharacteristic {
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+    public static final int PROPERTY_SIGNED_WRITE = 0x40;
+    public static final int PROPERTY_EXTENDED_PROPS = 0x80;
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_WRITE = 0x10;
+
+    private final UUID uuid;
+    private final int properties;
+    private final int permissions;
+    private final List<BluetoothGattDescriptor> descriptors = new ArrayList<>();
+    private BluetoothGattService service;
+    private byte[] value;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+        this.uuid = uuid;
+        this.properties = properties;
+        this.permissions = permissions;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getProperties() {
+        return properties;
+    }
+
+    public int getPermissions() {
+        return permissions;
+    }
+
+    public BluetoothGattService getService() {
+        return service;
+    }
+
+    void setService(BluetoothGattService service) {
+        this.service = service;
+    }
+
+    public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+        descriptors.add(descriptor);
+        descriptor.setCharacteristic(this);
+        return true;
+    }
+
+    public List<BluetoothGattDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public boolean setValue(byte[] value) {
+        this.value = value;
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2019 JUUL Labs, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plain JVM stand-in for the Android class, holding just enough state for the GattDB code.
+ */
+public class BluetoothGattService {
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    private final UUID uuid;
+    private final int serviceType;
+    private final List<BluetoothGattService> includedServices = new ArrayList<>();
+    private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        this.uuid = uuid;
+        this.serviceType = serviceType;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getType() {
+        return serviceType;
+    }
+
+    public boolean addService(BluetoothGattService service) {
+        includedServices.add(service);
+        return true;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        characteristics.add(characteristic);
+        characteristic.setService(this);
+        return true;
+    }
+
+    public List<BluetoothGattService> getIncludedServices() {
+        return includedServices;
+    }
+
+    public List<BluetoothGattCharacteristic> getCharacteristics() {
+        return characteristics;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+
+        return null;
+    }
+}